@@ -0,0 +1,70 @@
+package org.patricbrc.circos;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.common.SolrDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building a feature track from Solr documents, the per-document work of the streaming callback without the network.
+ * asMaps builds the list of maps that held the features before FeatureTrack. Run with -Pjmh.prof=gc to compare the bytes
+ * allocated per track (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class FeatureTrackBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int featureCount;
+
+	private List<SolrDocument> documents;
+
+	@Setup
+	public void setUp() {
+		documents = SyntheticGenome.documents(featureCount, 10);
+	}
+
+	@Benchmark
+	public FeatureTrack fromDocuments() throws IOException {
+		FeatureTrack track = new FeatureTrack();
+		for (SolrDocument sd : documents) {
+			CircosData.feature(sd, track);
+		}
+		return track;
+	}
+
+	@Benchmark
+	public List<Map<String, Object>> asMaps() {
+		List<Map<String, Object>> docs = new LinkedList<Map<String, Object>>();
+		for (SolrDocument sd : documents) {
+			HashMap<String, Object> doc = new HashMap<String, Object>();
+			doc.put("accession", sd.get("accession"));
+			doc.put("start_max", sd.get("start_max"));
+			doc.put("end_min", sd.get("end_min"));
+			doc.put("sequence_info_id", sd.get("sequence_info_id"));
+			doc.put("gid", sd.get("gid"));
+			doc.put("na_feature_id", sd.get("na_feature_id"));
+			docs.add(doc);
+		}
+		return docs;
+	}
+}
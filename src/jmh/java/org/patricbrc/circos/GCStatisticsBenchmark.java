@@ -0,0 +1,49 @@
+package org.patricbrc.circos;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * GC content and skew of a whole genome at the default window, by genome size and number of accessions
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class GCStatisticsBenchmark {
+
+	@Param({ "1000000", "10000000", "100000000" })
+	public long genomeSize;
+
+	@Param({ "1", "50", "500" })
+	public int accessionCount;
+
+	private List<String> accessions;
+
+	private List<String> sequences;
+
+	@Setup
+	public void setUp() {
+		accessions = SyntheticGenome.accessions(accessionCount);
+		sequences = SyntheticGenome.sequences(genomeSize, accessionCount);
+	}
+
+	@Benchmark
+	public List<GCProfile> computeAll() {
+		return GCStatistics.computeAll(accessions, sequences, GCStatistics.DEFAULT_WINDOW_SIZE, GCStatistics.DEFAULT_WINDOW_SIZE);
+	}
+}
@@ -0,0 +1,72 @@
+package org.patricbrc.circos;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Joining the protein families of a comparative plot and writing its links file, by number of genomes of about 5000 CDS each,
+ * the size of a bacterial genome.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LinkBuilderBenchmark {
+
+	@Param({ "2", "5", "10" })
+	public int genomeCount;
+
+	@Param({ "5000" })
+	public int featureCount;
+
+	private FamilyTrack reference;
+
+	private Map<String, FamilyTrack> others;
+
+	private Map<String, String> colors;
+
+	private File file;
+
+	@Setup
+	public void setUp() throws IOException {
+		reference = SyntheticGenome.families(0, featureCount, featureCount);
+		others = new LinkedHashMap<>();
+		colors = new HashMap<>();
+		for (int genome = 1; genome < genomeCount; genome++) {
+			others.put(Integer.toString(genome), SyntheticGenome.families(genome, featureCount, featureCount));
+			colors.put(Integer.toString(genome), "vdblue_a3");
+		}
+		file = File.createTempFile("links", ".txt");
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public int writeLinks() throws IOException {
+		try (CircosDataWriter writer = new CircosDataWriter(file.getPath())) {
+			return LinkBuilder.write(reference, others, colors, 1, Integer.MAX_VALUE, writer);
+		}
+	}
+}
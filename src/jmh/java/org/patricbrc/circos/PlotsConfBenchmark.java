@@ -0,0 +1,76 @@
+package org.patricbrc.circos;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.samskivert.mustache.Mustache;
+import com.samskivert.mustache.Template;
+
+/**
+ * Building the plot data and rendering plots.conf from it, by number of feature tracks. Runs in the project directory to
+ * read conf_templates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PlotsConfBenchmark {
+
+	@Param({ "1", "4", "8" })
+	public int trackCount;
+
+	private CircosGenerator generator;
+
+	private Circos circos;
+
+	private Template template;
+
+	@Setup
+	public void setUp() throws FileNotFoundException {
+		generator = new CircosGenerator(".");
+		template = Mustache.compiler().compile(new BufferedReader(new FileReader("conf_templates/plots.mu")));
+
+		Map<String, FeatureTrack> genomeData = new LinkedHashMap<>();
+		for (int i = 0; i < trackCount; i++) {
+			genomeData.put("track_" + i, SyntheticGenome.features(100, 1));
+		}
+		circos = new Circos(".");
+		circos.setGenomeId("83332.12");
+		circos.setGenomeData(genomeData);
+		circos.setIncludeOuterTrack(true);
+		circos.setGcContentPlotType("line");
+		circos.setGcSkewPlotType("heatmap");
+	}
+
+	@TearDown
+	public void tearDown() {
+		generator.shutdown();
+	}
+
+	@Benchmark
+	public String renderPlotsConf() {
+		StringWriter writer = new StringWriter();
+		template.execute(generator.createPlotData(circos), writer);
+		return writer.toString();
+	}
+}
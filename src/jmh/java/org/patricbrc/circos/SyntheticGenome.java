@@ -0,0 +1,92 @@
+package org.patricbrc.circos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.solr.common.SolrDocument;
+
+/**
+ * Reproducible genomes and features for the benchmarks. Sequences, features and documents come from a fixed seed, so every run
+ * measures the same input.
+ */
+public class SyntheticGenome {
+
+	private static final long SEED = 42;
+
+	private static final char[] BASES = { 'a', 'c', 'g', 't' };
+
+	// Mean gene length of a bacterial genome, features are spread at about this distance
+	private static final int FEATURE_LENGTH = 1000;
+
+	public static List<String> accessions(int accessionCount) {
+		List<String> accessions = new ArrayList<>();
+		for (int i = 0; i < accessionCount; i++) {
+			accessions.add("NC_" + String.format("%06d", i));
+		}
+		return accessions;
+	}
+
+	/**
+	 * genomeSize bases split evenly over accessionCount sequences
+	 */
+	public static List<String> sequences(long genomeSize, int accessionCount) {
+		Random random = new Random(SEED);
+		List<String> sequences = new ArrayList<>();
+		for (int i = 0; i < accessionCount; i++) {
+			int length = (int) (genomeSize / accessionCount + ((i < genomeSize % accessionCount) ? 1 : 0));
+			char[] sequence = new char[length];
+			for (int j = 0; j < length; j++) {
+				sequence[j] = BASES[random.nextInt(BASES.length)];
+			}
+			sequences.add(new String(sequence));
+		}
+		return sequences;
+	}
+
+	public static FeatureTrack features(int featureCount, int accessionCount) {
+		FeatureTrack track = new FeatureTrack();
+		for (SolrDocument sd : documents(featureCount, accessionCount)) {
+			track.add(sd.get("accession").toString(), (Integer) sd.get("start_max"), (Integer) sd.get("end_min"),
+					(Long) sd.get("na_feature_id"));
+		}
+		return track;
+	}
+
+	/**
+	 * CDS features of the genome-th of several genomes, each in one of familyCount protein families shared by all of them.
+	 * Families drawn twice in a genome are its paralogs.
+	 */
+	public static FamilyTrack families(int genome, int featureCount, int familyCount) {
+		Random random = new Random(SEED + genome);
+		FamilyTrack track = new FamilyTrack();
+		String accession = "NC_" + String.format("%06d", genome);
+		for (int i = 0; i < featureCount; i++) {
+			int start = i * FEATURE_LENGTH + random.nextInt(FEATURE_LENGTH / 4) + 1;
+			track.add(accession, start, start + FEATURE_LENGTH / 2, 100000000L * (genome + 1) + i, "PGF_" + String.format("%08d",
+					random.nextInt(familyCount)));
+		}
+		return track;
+	}
+
+	/**
+	 * dnafeature documents with the fields read by CircosData, sorted by accession and start like the Solr query
+	 */
+	public static List<SolrDocument> documents(int featureCount, int accessionCount) {
+		Random random = new Random(SEED);
+		List<String> accessions = accessions(accessionCount);
+		List<SolrDocument> documents = new ArrayList<>(featureCount);
+		int perAccession = Math.max(1, featureCount / accessionCount);
+		for (int i = 0; i < featureCount; i++) {
+			int position = i % perAccession;
+			int start = position * FEATURE_LENGTH + random.nextInt(FEATURE_LENGTH / 4) + 1;
+			SolrDocument sd = new SolrDocument();
+			sd.setField("accession", accessions.get(Math.min(i / perAccession, accessionCount - 1)));
+			sd.setField("start_max", start);
+			sd.setField("end_min", start + FEATURE_LENGTH / 2 + random.nextInt(FEATURE_LENGTH / 2));
+			sd.setField("na_feature_id", 100000000L + i);
+			documents.add(sd);
+		}
+		return documents;
+	}
+}
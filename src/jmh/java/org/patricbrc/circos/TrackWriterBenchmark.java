@@ -0,0 +1,59 @@
+package org.patricbrc.circos;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing a feature track file as the generator does, by number of features. The file goes to the temp directory, so the
+ * result includes the page cache but rarely the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TrackWriterBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int featureCount;
+
+	private FeatureTrack track;
+
+	private File file;
+
+	@Setup
+	public void setUp() throws IOException {
+		track = SyntheticGenome.features(featureCount, 10);
+		file = File.createTempFile("track", ".txt");
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public long writeFeatures() throws IOException {
+		try (CircosDataWriter writer = new CircosDataWriter(file.getPath())) {
+			for (int i = 0; i < track.size(); i++) {
+				writer.writeFeature(track.getAccession(i), track.getStart(i), track.getEnd(i), track.getId(i));
+			}
+		}
+		return file.length();
+	}
+}
@@ -0,0 +1,310 @@
+package org.patricbrc.circos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the dnafeature, sequenceinfo and genomesummary cores from fixture files, in the javabin format read by SolrJ, so the
+ * servlet can be loaded without the PATRIC Solr. Each core has a directory of &lt;gid&gt;.json files, each holding a JSON array
+ * of the documents of that genome, features sorted by accession and start like the real query (see {@link FixtureGenerator}).
+ *
+ * Queries are matched on gid (or a group of gids), strand and the feature type filters used by {@link CircosData}. Keywords of custom tracks are
+ * ignored. Feature pages support both cursorMark and start.
+ *
+ * Usage: FakeSolrServer [-port 8983] [-threads 32] [-delay ms] fixtureDir
+ */
+public class FakeSolrServer {
+
+	private static final Logger logger = LoggerFactory.getLogger(FakeSolrServer.class);
+
+	private static final List<String> CORES = Arrays.asList("dnafeature", "sequenceinfo", "genomesummary");
+
+	// Solr int fields, json-simple reads every number as a Long
+	private static final List<String> INT_FIELDS = Arrays.asList("start_max", "end_min", "length");
+
+	// A single gid or a group, gid:(a OR b ...)
+	private static final Pattern GID = Pattern.compile("gid:(\\(([^)]*)\\)|\\S+)");
+
+	private static final Pattern STRAND = Pattern.compile("strand:\"([+-])\"");
+
+	private final Map<String, Map<String, List<SolrDocument>>> documents = new HashMap<>();
+
+	private final long delay;
+
+	private final AtomicLong requests = new AtomicLong();
+
+	private HttpServer server;
+
+	private ExecutorService executor;
+
+	public FakeSolrServer(Path fixtureDir, long delay) throws IOException {
+		this.delay = delay;
+		for (String core : CORES) {
+			Map<String, List<SolrDocument>> byGid = new HashMap<>();
+			Path coreDir = fixtureDir.resolve(core);
+			if (Files.isDirectory(coreDir)) {
+				try (DirectoryStream<Path> files = Files.newDirectoryStream(coreDir, "*.json")) {
+					for (Path file : files) {
+						String gid = file.getFileName().toString().replaceFirst("\\.json$", "");
+						byGid.put(gid, read(file));
+					}
+				}
+			}
+			documents.put(core, byGid);
+			logger.info("Loaded {} genomes of core {}", byGid.size(), core);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = 8983;
+		int threads = 32;
+		long delay = 0;
+		String fixtureDir = null;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-port":
+				port = Integer.parseInt(args[++i]);
+				break;
+			case "-threads":
+				threads = Integer.parseInt(args[++i]);
+				break;
+			case "-delay":
+				delay = Long.parseLong(args[++i]);
+				break;
+			default:
+				fixtureDir = args[i];
+			}
+		}
+		if (fixtureDir == null) {
+			System.err.println("Usage: FakeSolrServer [-port 8983] [-threads 32] [-delay ms] fixtureDir");
+			System.exit(1);
+		}
+		new FakeSolrServer(Paths.get(fixtureDir), delay).start(port, threads);
+	}
+
+	public void start(int port, int threads) throws IOException {
+		executor = Executors.newFixedThreadPool(threads);
+		server = HttpServer.create(new InetSocketAddress(port), 128);
+		server.setExecutor(executor);
+		for (final String core : CORES) {
+			server.createContext("/solr/" + core + "/select", new HttpHandler() {
+				@Override
+				public void handle(HttpExchange exchange) throws IOException {
+					try {
+						select(core, exchange);
+					}
+					catch (RuntimeException e) {
+						logger.error("Failed query on {}: {}", core, exchange.getRequestURI(), e);
+						exchange.sendResponseHeaders(500, -1);
+					}
+					finally {
+						exchange.close();
+					}
+				}
+			});
+		}
+		server.start();
+		logger.info("Fake Solr listening on http://localhost:{}/solr/", port);
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	private void select(String core, HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		Map<String, List<String>> params = params(exchange);
+		String q = first(params, "q", "");
+		Matcher gid = GID.matcher(q);
+		List<String> gids = new ArrayList<>();
+		if (gid.find()) {
+			gids.addAll((gid.group(2) != null) ? Arrays.asList(gid.group(2).split(" OR ")) : Arrays.asList(gid.group(1)));
+		}
+
+		// Match the features of the requested type and strand, genome by genome
+		List<SolrDocument> matches = new ArrayList<>();
+		Matcher strand = STRAND.matcher(q);
+		String wantedStrand = strand.find() ? strand.group(1) : null;
+		String fq = first(params, "fq", "");
+		for (String genomeId : gids) {
+			List<SolrDocument> genome = documents.get(core).get(genomeId.trim());
+			if (genome == null) {
+				continue;
+			}
+			for (SolrDocument sd : genome) {
+				if ((wantedStrand == null || wantedStrand.equals(sd.get("strand"))) && matchesType(fq, (String) sd.get("feature_type"))) {
+					matches.add(sd);
+				}
+			}
+		}
+
+		// One page, either after a cursor mark (the offset here) or at start
+		int rows = Integer.parseInt(first(params, "rows", "10"));
+		String cursorMark = first(params, "cursorMark", null);
+		int offset = (cursorMark != null) ? (cursorMark.equals("*") ? 0 : Integer.parseInt(cursorMark)) : Integer.parseInt(first(params,
+				"start", "0"));
+		List<String> fields = new ArrayList<>();
+		for (String field : first(params, "fl", "").split(",")) {
+			if (field.trim().isEmpty() == false) {
+				fields.add(field.trim());
+			}
+		}
+		SolrDocumentList page = new SolrDocumentList();
+		page.setNumFound(matches.size());
+		page.setStart(offset);
+		for (int i = offset; i < Math.min(matches.size(), offset + rows); i++) {
+			page.add(select(matches.get(i), fields));
+		}
+
+		NamedList<Object> response = new NamedList<>();
+		NamedList<Object> header = new NamedList<>();
+		header.add("status", 0);
+		header.add("QTime", 0);
+		response.add("responseHeader", header);
+		response.add("response", page);
+		if (cursorMark != null) {
+			// Like Solr, the mark stays the same once there are no more documents
+			response.add("nextCursorMark", page.isEmpty() ? cursorMark : Integer.toString(offset + page.size()));
+		}
+
+		if (delay > 0) {
+			try {
+				Thread.sleep(delay);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+		exchange.sendResponseHeaders(200, 0);
+		try (OutputStream out = exchange.getResponseBody()) {
+			new JavaBinCodec().marshal(response, out);
+		}
+	}
+
+	private static boolean matchesType(String fq, String featureType) {
+		if (fq.contains("feature_type") == false) {
+			return true;
+		}
+		if (featureType == null) {
+			return false;
+		}
+		boolean cds = featureType.equals("CDS");
+		boolean rna = featureType.endsWith("RNA");
+		if (fq.contains("!(")) {
+			return cds == false && rna == false && featureType.equals("source") == false;
+		}
+		return fq.contains("feature_type:CDS") ? cds : rna;
+	}
+
+	private static SolrDocument select(SolrDocument sd, List<String> fields) {
+		if (fields.isEmpty()) {
+			return sd;
+		}
+		SolrDocument selected = new SolrDocument();
+		for (String field : fields) {
+			if (sd.containsKey(field)) {
+				selected.setField(field, sd.get(field));
+			}
+		}
+		return selected;
+	}
+
+	private static Map<String, List<String>> params(HttpExchange exchange) throws IOException {
+		String query = exchange.getRequestURI().getRawQuery();
+		if ("POST".equals(exchange.getRequestMethod())) {
+			query = new String(readAll(exchange), StandardCharsets.UTF_8);
+		}
+		Map<String, List<String>> params = new LinkedHashMap<>();
+		if (query == null) {
+			return params;
+		}
+		for (String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			String name = URLDecoder.decode((eq < 0) ? pair : pair.substring(0, eq), "UTF-8");
+			String value = (eq < 0) ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+			if (params.containsKey(name) == false) {
+				params.put(name, new ArrayList<String>());
+			}
+			params.get(name).add(value);
+		}
+		return params;
+	}
+
+	private static byte[] readAll(HttpExchange exchange) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = exchange.getRequestBody().read(buffer)) > 0) {
+			bytes.write(buffer, 0, n);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static String first(Map<String, List<String>> params, String name, String defaultValue) {
+		List<String> values = params.get(name);
+		return (values != null && values.isEmpty() == false) ? values.get(0) : defaultValue;
+	}
+
+	private static List<SolrDocument> read(Path file) throws IOException {
+		List<SolrDocument> docs = new ArrayList<>();
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			for (Object item : (JSONArray) new JSONParser().parse(reader)) {
+				SolrDocument sd = new SolrDocument();
+				for (Object entry : ((JSONObject) item).entrySet()) {
+					Map.Entry<?, ?> field = (Map.Entry<?, ?>) entry;
+					Object value = field.getValue();
+					if (INT_FIELDS.contains(field.getKey()) && value instanceof Long) {
+						value = ((Long) value).intValue();
+					}
+					sd.setField(field.getKey().toString(), value);
+				}
+				docs.add(sd);
+			}
+		}
+		catch (ParseException e) {
+			throw new IOException("Invalid fixture " + file + ": " + e.getMessage());
+		}
+		return docs;
+	}
+}
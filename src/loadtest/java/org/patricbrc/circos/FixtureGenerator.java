@@ -0,0 +1,118 @@
+package org.patricbrc.circos;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Writes the fixture files of a synthetic genome for {@link FakeSolrServer}. Features are spaced about a gene apart on random
+ * strands, mostly CDS with some RNA and misc features, so every default track has data. The seed is the gid, so a genome comes
+ * out the same every time. CDS features get a pgfam_id by their rank, which links them to other synthetic genomes.
+ *
+ * Usage: FixtureGenerator [-size 5000000] [-accessions 1] fixtureDir gid ...
+ */
+public class FixtureGenerator {
+
+	private static final char[] BASES = { 'a', 'c', 'g', 't' };
+
+	private static final String[] FEATURE_TYPES = { "CDS", "CDS", "CDS", "CDS", "CDS", "CDS", "CDS", "tRNA", "rRNA", "repeat_region" };
+
+	private static final int GENE_LENGTH = 1000;
+
+	public static void main(String[] args) throws IOException {
+		long size = 5000000;
+		int accessionCount = 1;
+		String fixtureDir = null;
+		List<String> gids = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-size":
+				size = Long.parseLong(args[++i]);
+				break;
+			case "-accessions":
+				accessionCount = Integer.parseInt(args[++i]);
+				break;
+			default:
+				if (fixtureDir == null) {
+					fixtureDir = args[i];
+				}
+				else {
+					gids.add(args[i]);
+				}
+			}
+		}
+		if (fixtureDir == null || gids.isEmpty()) {
+			System.err.println("Usage: FixtureGenerator [-size 5000000] [-accessions 1] fixtureDir gid ...");
+			System.exit(1);
+		}
+		for (String gid : gids) {
+			write(Paths.get(fixtureDir), gid, size, accessionCount);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public static void write(Path fixtureDir, String gid, long size, int accessionCount) throws IOException {
+		Random random = new Random(gid.hashCode());
+		JSONArray sequences = new JSONArray();
+		JSONArray features = new JSONArray();
+		long featureId = Math.abs((long) gid.hashCode()) * 100000;
+		int cdsCount = 0;
+		for (int a = 0; a < accessionCount; a++) {
+			String accession = "NC_" + gid.replace('.', '_') + "_" + a;
+			int length = (int) (size / accessionCount);
+			char[] sequence = new char[length];
+			for (int i = 0; i < length; i++) {
+				sequence[i] = BASES[random.nextInt(BASES.length)];
+			}
+			JSONObject sequenceInfo = new JSONObject();
+			sequenceInfo.put("gid", gid);
+			sequenceInfo.put("genome_name", "Synthetic genome " + gid);
+			sequenceInfo.put("accession", accession);
+			sequenceInfo.put("length", length);
+			sequenceInfo.put("sequence", new String(sequence));
+			sequences.add(sequenceInfo);
+
+			for (int start = 1 + random.nextInt(GENE_LENGTH); start + GENE_LENGTH < length; start += GENE_LENGTH + random.nextInt(GENE_LENGTH / 2)) {
+				JSONObject feature = new JSONObject();
+				feature.put("gid", gid);
+				feature.put("accession", accession);
+				feature.put("start_max", start);
+				feature.put("end_min", start + GENE_LENGTH / 2 + random.nextInt(GENE_LENGTH / 2));
+				feature.put("strand", random.nextBoolean() ? "+" : "-");
+				feature.put("feature_type", FEATURE_TYPES[random.nextInt(FEATURE_TYPES.length)]);
+				if (feature.get("feature_type").equals("CDS")) {
+					feature.put("pgfam_id", String.format("PGF_%08d", cdsCount++));
+				}
+				feature.put("na_feature_id", featureId++);
+				features.add(feature);
+			}
+		}
+
+		JSONObject summary = new JSONObject();
+		summary.put("gid", gid);
+		summary.put("genome_name", "Synthetic genome " + gid);
+		JSONArray summaries = new JSONArray();
+		summaries.add(summary);
+
+		write(fixtureDir.resolve("genomesummary"), gid, summaries);
+		write(fixtureDir.resolve("sequenceinfo"), gid, sequences);
+		write(fixtureDir.resolve("dnafeature"), gid, features);
+		System.out.println("Wrote " + gid + ": " + accessionCount + " accessions, " + size + " bases, " + features.size() + " features");
+	}
+
+	private static void write(Path coreDir, String gid, JSONArray docs) throws IOException {
+		Files.createDirectories(coreDir);
+		try (Writer writer = Files.newBufferedWriter(coreDir.resolve(gid + ".json"), StandardCharsets.UTF_8)) {
+			docs.writeJSONString(writer);
+		}
+	}
+}
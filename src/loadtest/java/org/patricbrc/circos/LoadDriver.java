@@ -0,0 +1,408 @@
+package org.patricbrc.circos;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Replays image requests against a running CircosServlet. Each client thread posts the multipart form of the page, polls the job
+ * until it is done and records the time from post to image. At the end it prints throughput, latency percentiles and the peak
+ * threads and heap of the servlet JVM (read from /metrics) and of this JVM, which also runs the fake Solr when -solr is given.
+ *
+ * Usage: LoadDriver [-url http://localhost:8080/home] [-clients 8] [-requests 100] [-gids 1000.1,1000.2] [-param name=value ...]
+ * [-upload file:plotType ...] [-solr fixtureDir] [-solrPort 8983] [-solrDelay ms] [-poll ms] [-timeout s] [-report file.json]
+ *
+ * The servlet is started with -Dcircos.solr.url=http://localhost:8983/solr/ and, to stub circos, -Dcircos.command="sh
+ * WEB-INF/bin/circos-stub.sh" (or the worker stub) with CIRCOS_STUB_DELAY set to the render time to simulate.
+ */
+public class LoadDriver {
+
+	private static final List<String> DEFAULT_PARAMS = Arrays.asList("cds_forward=on", "cds_reverse=on", "rna_forward=on",
+			"misc_forward=on", "gc_content_plot_type=line", "gc_skew_plot_type=heatmap", "include_outer_track=on");
+
+	private final URL url;
+
+	private final URL metricsUrl;
+
+	private final List<String> gids;
+
+	private final Map<String, String> params = new LinkedHashMap<>();
+
+	private final Map<Path, String> uploads = new LinkedHashMap<>();
+
+	private final long pollMillis;
+
+	private final long timeoutMillis;
+
+	private final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+
+	private final List<Long> submitLatencies = Collections.synchronizedList(new ArrayList<Long>());
+
+	private final AtomicInteger done = new AtomicInteger();
+
+	private final AtomicInteger failed = new AtomicInteger();
+
+	private final AtomicInteger rejected = new AtomicInteger();
+
+	private final AtomicInteger errors = new AtomicInteger();
+
+	private final AtomicInteger next = new AtomicInteger();
+
+	// High-water marks sampled while the test runs
+	private final ConcurrentHashMap<String, AtomicLong> peaks = new ConcurrentHashMap<>();
+
+	public LoadDriver(URL url, List<String> gids, long pollMillis, long timeoutMillis) throws IOException {
+		this.url = url;
+		this.metricsUrl = new URL(url, "metrics?format=json");
+		this.gids = gids;
+		this.pollMillis = pollMillis;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String url = "http://localhost:8080/home";
+		int clients = 8;
+		int requests = 100;
+		List<String> gids = new ArrayList<>();
+		List<String> params = new ArrayList<>();
+		List<String> uploads = new ArrayList<>();
+		String solrFixtures = null;
+		int solrPort = 8983;
+		long solrDelay = 0;
+		long poll = 250;
+		long timeout = 600;
+		String report = null;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-url":
+				url = args[++i];
+				break;
+			case "-clients":
+				clients = Integer.parseInt(args[++i]);
+				break;
+			case "-requests":
+				requests = Integer.parseInt(args[++i]);
+				break;
+			case "-gids":
+				gids.addAll(Arrays.asList(args[++i].split(",")));
+				break;
+			case "-param":
+				params.add(args[++i]);
+				break;
+			case "-upload":
+				uploads.add(args[++i]);
+				break;
+			case "-solr":
+				solrFixtures = args[++i];
+				break;
+			case "-solrPort":
+				solrPort = Integer.parseInt(args[++i]);
+				break;
+			case "-solrDelay":
+				solrDelay = Long.parseLong(args[++i]);
+				break;
+			case "-poll":
+				poll = Long.parseLong(args[++i]);
+				break;
+			case "-timeout":
+				timeout = Long.parseLong(args[++i]);
+				break;
+			case "-report":
+				report = args[++i];
+				break;
+			default:
+				System.err.println("Unknown option " + args[i]);
+				System.exit(1);
+			}
+		}
+		if (gids.isEmpty()) {
+			gids.add("1000.1");
+		}
+
+		FakeSolrServer solr = null;
+		if (solrFixtures != null) {
+			solr = new FakeSolrServer(Paths.get(solrFixtures), solrDelay);
+			solr.start(solrPort, clients * 4);
+		}
+		LoadDriver driver = new LoadDriver(new URL(url), gids, poll, TimeUnit.SECONDS.toMillis(timeout));
+		for (String param : (params.isEmpty() ? DEFAULT_PARAMS : params)) {
+			int eq = param.indexOf('=');
+			driver.params.put(param.substring(0, eq), param.substring(eq + 1));
+		}
+		for (String upload : uploads) {
+			int colon = upload.lastIndexOf(':');
+			driver.uploads.put(Paths.get(upload.substring(0, colon)), upload.substring(colon + 1));
+		}
+		try {
+			Map<String, Object> result = driver.run(clients, requests);
+			if (solr != null) {
+				result.put("solrRequests", solr.getRequests());
+			}
+			System.out.println(format(result));
+			if (report != null) {
+				Files.write(Paths.get(report), JSONObject.toJSONString(result).getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		finally {
+			if (solr != null) {
+				solr.stop();
+			}
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Results by name, in the order they are printed
+	 */
+	public Map<String, Object> run(int clients, final int requests) throws InterruptedException {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			pool.resetPeakUsage();
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(clients + 1);
+		final CountDownLatch finished = new CountDownLatch(clients);
+		long start = System.nanoTime();
+		for (int c = 0; c < clients; c++) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						int n;
+						while ((n = next.getAndIncrement()) < requests) {
+							request(gids.get(n % gids.size()));
+						}
+					}
+					finally {
+						finished.countDown();
+					}
+				}
+			});
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				while (finished.getCount() > 0) {
+					sample();
+					try {
+						finished.await(1, TimeUnit.SECONDS);
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		});
+		finished.await();
+		long elapsed = System.nanoTime() - start;
+		sample();
+		executor.shutdownNow();
+
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("clients", clients);
+		result.put("requests", requests);
+		result.put("done", done.get());
+		result.put("failed", failed.get());
+		result.put("rejected", rejected.get());
+		result.put("errors", errors.get());
+		result.put("seconds", elapsed / 1e9);
+		result.put("imagesPerSecond", done.get() / (elapsed / 1e9));
+		result.put("latencyMillis", percentiles(latencies));
+		result.put("submitMillis", percentiles(submitLatencies));
+		Map<String, Long> peakValues = new TreeMap<>();
+		for (Map.Entry<String, AtomicLong> peak : peaks.entrySet()) {
+			peakValues.put(peak.getKey(), peak.getValue().get());
+		}
+		result.put("peaks", peakValues);
+		return result;
+	}
+
+	/**
+	 * Posts one image request and waits for its job
+	 */
+	private void request(String gid) {
+		long start = System.nanoTime();
+		try {
+			Map<String, String> fields = new LinkedHashMap<>();
+			fields.put("gid", gid);
+			fields.putAll(params);
+			String boundary = "----circos" + UUID.randomUUID().toString().replace("-", "");
+			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+			connection.setDoOutput(true);
+			connection.setRequestMethod("POST");
+			connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+			connection.setChunkedStreamingMode(64 * 1024);
+			try (OutputStream out = connection.getOutputStream()) {
+				int fileNum = 0;
+				for (Map.Entry<Path, String> upload : uploads.entrySet()) {
+					write(out, "--" + boundary + "\r\nContent-Disposition: form-data; name=\"file_" + fileNum + "\"; filename=\""
+							+ upload.getKey().getFileName() + "\"\r\nContent-Type: text/plain\r\n\r\n");
+					Files.copy(upload.getKey(), out);
+					write(out, "\r\n");
+					fields.put("file_plot_type_" + fileNum, upload.getValue());
+					fileNum++;
+				}
+				for (Map.Entry<String, String> field : fields.entrySet()) {
+					write(out, "--" + boundary + "\r\nContent-Disposition: form-data; name=\"" + field.getKey() + "\"\r\n\r\n" + field.getValue()
+							+ "\r\n");
+				}
+				write(out, "--" + boundary + "--\r\n");
+			}
+			int status = connection.getResponseCode();
+			if (status == 429) {
+				rejected.incrementAndGet();
+				return;
+			}
+			if (status != 200) {
+				System.err.println("Request for " + gid + " failed with HTTP " + status);
+				errors.incrementAndGet();
+				return;
+			}
+			String jobId = (String) ((JSONObject) parse(connection.getInputStream())).get("jobId");
+			submitLatencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+			// Poll until the job is done
+			URL statusUrl = new URL(url.toString() + "?jobId=" + URLEncoder.encode(jobId, "UTF-8"));
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			while (System.currentTimeMillis() < deadline) {
+				Thread.sleep(pollMillis);
+				HttpURLConnection poll = (HttpURLConnection) statusUrl.openConnection();
+				if (poll.getResponseCode() != 200) {
+					System.err.println("Status of job " + jobId + " failed with HTTP " + poll.getResponseCode());
+					errors.incrementAndGet();
+					return;
+				}
+				Object jobStatus = ((JSONObject) parse(poll.getInputStream())).get("status");
+				if ("done".equals(jobStatus)) {
+					latencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+					done.incrementAndGet();
+					return;
+				}
+				if ("failed".equals(jobStatus)) {
+					failed.incrementAndGet();
+					return;
+				}
+			}
+			errors.incrementAndGet();
+		}
+		catch (IOException | ParseException e) {
+			System.err.println("Request for " + gid + " failed: " + e.getMessage());
+			errors.incrementAndGet();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Samples the threads and heap of the servlet and of this JVM, and the load of the render queue and circos processes
+	 */
+	private void sample() {
+		for (Map.Entry<String, Long> stat : Metrics.getJvmStats().entrySet()) {
+			peak("driver." + stat.getKey(), stat.getValue());
+		}
+		try {
+			JSONObject gauges = (JSONObject) ((JSONObject) parse(metricsUrl.openStream())).get("gauges");
+			for (Object component : gauges.keySet()) {
+				JSONObject stats = (JSONObject) gauges.get(component);
+				for (Object stat : stats.keySet()) {
+					if (stats.get(stat) instanceof Number) {
+						peak("servlet." + component + "." + stat, ((Number) stats.get(stat)).longValue());
+					}
+				}
+			}
+		}
+		catch (IOException | ParseException e) {
+			System.err.println("Cannot read " + metricsUrl + ": " + e.getMessage());
+		}
+	}
+
+	private void peak(String name, long value) {
+		AtomicLong peak = peaks.get(name);
+		if (peak == null) {
+			AtomicLong created = new AtomicLong(Long.MIN_VALUE);
+			peak = peaks.putIfAbsent(name, created);
+			if (peak == null) {
+				peak = created;
+			}
+		}
+		long current = peak.get();
+		while (current < value && peak.compareAndSet(current, value) == false) {
+			current = peak.get();
+		}
+	}
+
+	private static Map<String, Long> percentiles(List<Long> values) {
+		List<Long> sorted;
+		synchronized (values) {
+			sorted = new ArrayList<>(values);
+		}
+		Collections.sort(sorted);
+		Map<String, Long> result = new LinkedHashMap<>();
+		if (sorted.isEmpty()) {
+			return result;
+		}
+		result.put("p50", sorted.get(rank(sorted.size(), 50)));
+		result.put("p95", sorted.get(rank(sorted.size(), 95)));
+		result.put("p99", sorted.get(rank(sorted.size(), 99)));
+		result.put("max", sorted.get(sorted.size() - 1));
+		return result;
+	}
+
+	// Nearest rank
+	private static int rank(int size, int percentile) {
+		return Math.max(0, (int) Math.ceil(percentile / 100.0 * size) - 1);
+	}
+
+	private static String format(Map<String, Object> result) {
+		StringBuilder text = new StringBuilder();
+		text.append(String.format("%s images in %.1f s with %s clients: %.2f images/s, %s failed, %s rejected, %s errors%n", result
+				.get("done"), result.get("seconds"), result.get("clients"), result.get("imagesPerSecond"), result.get("failed"), result
+				.get("rejected"), result.get("errors")));
+		text.append("latency ms (post to image): ").append(JSONObject.toJSONString((Map<?, ?>) result.get("latencyMillis"))).append("\n");
+		text.append("submit ms: ").append(JSONObject.toJSONString((Map<?, ?>) result.get("submitMillis"))).append("\n");
+		text.append("peaks:\n");
+		for (Map.Entry<?, ?> peak : ((Map<?, ?>) result.get("peaks")).entrySet()) {
+			text.append("  ").append(peak.getKey()).append(" ").append(peak.getValue()).append("\n");
+		}
+		return text.toString();
+	}
+
+	private static void write(OutputStream out, String text) throws IOException {
+		out.write(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static Object parse(InputStream in) throws IOException, ParseException {
+		try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+			return new JSONParser().parse(reader);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package org.patricbrc.circos;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Images of many genomes rendered with the same parameters by the {@link BatchRenderer}. Keeps the image id of every finished
+ * genome, which makes up the manifest of the batch.
+ */
+public class BatchJob {
+
+	public enum Status {
+		QUEUED, RUNNING, DONE
+	}
+
+	private final String id;
+
+	private final List<String> gids;
+
+	private final Map<String, Object> parameters;
+
+	// Image id by gid, null for a genome that failed
+	private final Map<String, String> images = new LinkedHashMap<>();
+
+	private volatile Status status = Status.QUEUED;
+
+	private volatile int prefetched;
+
+	private int failed;
+
+	private final long submitted = System.currentTimeMillis();
+
+	private volatile long finished;
+
+	public BatchJob(List<String> gids, Map<String, Object> parameters) {
+		this.id = UUID.randomUUID().toString();
+		this.gids = gids;
+		this.parameters = parameters;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public List<String> getGids() {
+		return gids;
+	}
+
+	public Map<String, Object> getParameters() {
+		return parameters;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public long getFinished() {
+		return finished;
+	}
+
+	void start() {
+		status = Status.RUNNING;
+	}
+
+	void prefetched(int count) {
+		prefetched += count;
+	}
+
+	/**
+	 * Records the image of one genome and returns true once every genome of the batch is finished
+	 */
+	synchronized boolean finish(String gid, String imageId) {
+		images.put(gid, imageId);
+		if (imageId == null) {
+			failed++;
+		}
+		if (images.size() == gids.size()) {
+			finished = System.currentTimeMillis();
+			status = Status.DONE;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Progress of the batch. With the manifest, also the shared parameters and the image id of each finished genome.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized JSONObject toJSON(boolean manifest) {
+		JSONObject json = new JSONObject();
+		json.put("batchId", id);
+		json.put("status", status.name().toLowerCase());
+		json.put("total", gids.size());
+		json.put("prefetched", prefetched);
+		json.put("done", images.size() - failed);
+		json.put("failed", failed);
+		json.put("runTime", ((finished > 0) ? finished : System.currentTimeMillis()) - submitted);
+		if (manifest) {
+			JSONObject options = new JSONObject();
+			for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+				options.put(parameter.getKey(), parameter.getValue().toString());
+			}
+			json.put("parameters", options);
+			JSONObject imageIds = new JSONObject();
+			JSONArray failedGids = new JSONArray();
+			for (Map.Entry<String, String> image : images.entrySet()) {
+				if (image.getValue() != null) {
+					imageIds.put(image.getKey(), image.getValue());
+				}
+				else {
+					failedGids.add(image.getKey());
+				}
+			}
+			json.put("images", imageIds);
+			json.put("failedGids", failedGids);
+			List<String> pending = new ArrayList<>(gids);
+			pending.removeAll(images.keySet());
+			json.put("pendingGids", pending.size());
+		}
+		return json;
+	}
+}
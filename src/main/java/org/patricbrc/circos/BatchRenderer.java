@@ -0,0 +1,223 @@
+package org.patricbrc.circos;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Renders the images of many genomes with one set of parameters. The Solr data of the genomes is prefetched circos.batch.gidsPerQuery
+ * genomes at a time with gid:(a OR b ...) queries into the genome data cache, while the genomes prefetched before are rendered
+ * by circos.batch.workers workers through {@link CircosGenerator#createCircosImage}. At most two groups are prefetched ahead of
+ * the renders, so the cache holds them until they are used. Batches run one after the other.
+ *
+ * When a batch is done its manifest, the image id of each genome, is written to batches/&lt;batchId&gt;.json.
+ *
+ * Usage: BatchRenderer [-app dir] [-param name=value ...] (gid ... | -gids file)
+ */
+public class BatchRenderer {
+
+	private static final Logger logger = LoggerFactory.getLogger(BatchRenderer.class);
+
+	private final CircosGenerator circosGenerator;
+
+	private final Path manifestDir;
+
+	private final int gidsPerQuery;
+
+	private final long retention;
+
+	private final ExecutorService prefetcher = Executors.newSingleThreadExecutor();
+
+	private final ExecutorService renderers;
+
+	private final Map<String, BatchJob> jobs = new ConcurrentHashMap<>();
+
+	public BatchRenderer(CircosGenerator circosGenerator, String appDir) {
+		this.circosGenerator = circosGenerator;
+		manifestDir = Paths.get(appDir, "batches");
+		gidsPerQuery = Integer.parseInt(System.getProperty("circos.batch.gidsPerQuery", "20"));
+		retention = TimeUnit.SECONDS.toMillis(Long.parseLong(System.getProperty("circos.jobs.retention", "3600")));
+		renderers = Executors.newFixedThreadPool(Integer.parseInt(System.getProperty("circos.batch.workers", "4")));
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String appDir = ".";
+		Map<String, Object> parameters = new LinkedHashMap<>();
+		List<String> gids = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-app":
+				appDir = args[++i];
+				break;
+			case "-param":
+				String param = args[++i];
+				parameters.put(param.substring(0, param.indexOf('=')), param.substring(param.indexOf('=') + 1));
+				break;
+			case "-gids":
+				for (String line : Files.readAllLines(Paths.get(args[++i]), StandardCharsets.UTF_8)) {
+					if (line.trim().isEmpty() == false) {
+						gids.add(line.trim());
+					}
+				}
+				break;
+			default:
+				gids.add(args[i]);
+			}
+		}
+		if (gids.isEmpty()) {
+			System.err.println("Usage: BatchRenderer [-app dir] [-param name=value ...] (gid ... | -gids file)");
+			System.exit(1);
+		}
+
+		CircosGenerator circosGenerator = new CircosGenerator(appDir);
+		BatchRenderer batchRenderer = new BatchRenderer(circosGenerator, appDir);
+		BatchJob job = batchRenderer.submit(gids, parameters);
+		while (job.getStatus() != BatchJob.Status.DONE) {
+			Thread.sleep(5000);
+			logger.info("Batch {}: {}", job.getId(), job.toJSON(false));
+		}
+		batchRenderer.shutdown();
+		circosGenerator.shutdown();
+		System.out.println(batchRenderer.getManifest(job.getId()));
+		System.exit(((Number) job.toJSON(false).get("failed")).intValue() > 0 ? 2 : 0);
+	}
+
+	/**
+	 * Queues a batch. Duplicate gids are rendered once, a gid in the parameters is ignored.
+	 */
+	public BatchJob submit(List<String> gids, Map<String, Object> parameters) {
+		removeExpiredJobs();
+		Map<String, Object> shared = new LinkedHashMap<>(parameters);
+		shared.remove("gid");
+		final BatchJob job = new BatchJob(new ArrayList<>(new LinkedHashSet<>(gids)), shared);
+		jobs.put(job.getId(), job);
+		prefetcher.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					runBatch(job);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		logger.info("Queued batch {} of {} genomes", job.getId(), job.getGids().size());
+		return job;
+	}
+
+	public BatchJob getJob(String batchId) {
+		return jobs.get(batchId);
+	}
+
+	/**
+	 * Path of the manifest of a finished batch, which stays after the job is forgotten
+	 */
+	public Path getManifest(String batchId) {
+		return manifestDir.resolve(batchId + ".json");
+	}
+
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new LinkedHashMap<>();
+		long running = 0;
+		for (BatchJob job : jobs.values()) {
+			if (job.getStatus() != BatchJob.Status.DONE) {
+				running++;
+			}
+		}
+		stats.put("batches", (long) jobs.size());
+		stats.put("unfinished", running);
+		return stats;
+	}
+
+	public void shutdown() {
+		prefetcher.shutdownNow();
+		renderers.shutdownNow();
+	}
+
+	private void runBatch(final BatchJob job) throws InterruptedException {
+		job.start();
+		final List<String> gids = job.getGids();
+		final Semaphore ahead = new Semaphore(2 * gidsPerQuery);
+		for (int i = 0; i < gids.size(); i += gidsPerQuery) {
+			List<String> group = gids.subList(i, Math.min(gids.size(), i + gidsPerQuery));
+			ahead.acquire(group.size());
+			try {
+				circosGenerator.prefetch(group, job.getParameters());
+			}
+			catch (RuntimeException e) {
+				// Like bad parameters, which fail every genome, or a Solr error. Genomes queued before still finish the batch.
+				logger.error("Prefetch of batch " + job.getId() + " failed, its remaining " + (gids.size() - i) + " genomes are not rendered", e);
+				for (String gid : gids.subList(i, gids.size())) {
+					if (job.finish(gid, null)) {
+						writeManifest(job);
+					}
+				}
+				return;
+			}
+			job.prefetched(group.size());
+
+			for (final String gid : group) {
+				renderers.execute(new Runnable() {
+					@Override
+					public void run() {
+						String imageId = null;
+						try {
+							Map<String, Object> parameters = new LinkedHashMap<>(job.getParameters());
+							parameters.put("gid", gid);
+							imageId = circosGenerator.createCircosImage(parameters);
+						}
+						catch (RuntimeException e) {
+							logger.error("Image of " + gid + " in batch " + job.getId() + " failed", e);
+						}
+						finally {
+							// Also after an Error, so the batch still completes
+							ahead.release();
+							if (job.finish(gid, imageId)) {
+								writeManifest(job);
+							}
+						}
+					}
+				});
+			}
+		}
+	}
+
+	private void writeManifest(BatchJob job) {
+		try {
+			Files.createDirectories(manifestDir);
+			Files.write(getManifest(job.getId()), job.toJSON(true).toJSONString().getBytes(StandardCharsets.UTF_8));
+			logger.info("Finished batch {}: {}", job.getId(), job.toJSON(false));
+		}
+		catch (IOException e) {
+			logger.error("Cannot write manifest of batch {}: {}", job.getId(), e.getMessage());
+		}
+	}
+
+	private void removeExpiredJobs() {
+		long now = System.currentTimeMillis();
+		Iterator<BatchJob> iter = jobs.values().iterator();
+		while (iter.hasNext()) {
+			BatchJob job = iter.next();
+			if (job.getFinished() > 0 && now - job.getFinished() > retention) {
+				iter.remove();
+			}
+		}
+	}
+}
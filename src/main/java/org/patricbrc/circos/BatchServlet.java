@@ -0,0 +1,157 @@
+package org.patricbrc.circos;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Batch API on top of the {@link CircosServlet}'s generator. POST /batch takes the fields of the image form plus gids, a comma or
+ * whitespace separated list of genomes, and returns the batch id. GET /batch?batchId=... returns the progress of the batch and
+ * the image id of each finished genome, and the manifest once the batch is done.
+ */
+public class BatchServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger logger = LoggerFactory.getLogger(BatchServlet.class);
+
+	private BatchRenderer batchRenderer;
+
+	private int maxGids;
+
+	@Override
+	public void init(ServletConfig config) throws ServletException {
+		super.init(config);
+		CircosGenerator circosGenerator = (CircosGenerator) config.getServletContext().getAttribute(CircosGenerator.class.getName());
+		if (circosGenerator == null) {
+			throw new ServletException("CircosServlet is not initialized");
+		}
+		batchRenderer = new BatchRenderer(circosGenerator, config.getServletContext().getRealPath("/"));
+		// Shared with MetricsServlet
+		config.getServletContext().setAttribute(BatchRenderer.class.getName(), batchRenderer);
+		maxGids = Integer.parseInt(System.getProperty("circos.batch.maxGids", "1000"));
+	}
+
+	@Override
+	public void destroy() {
+		batchRenderer.shutdown();
+		super.destroy();
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		String batchId = request.getParameter("batchId");
+		if (batchId == null) {
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "batchId is missing");
+			return;
+		}
+		response.setContentType("application/json");
+		BatchJob job = batchRenderer.getJob(batchId);
+		if (job != null) {
+			response.getWriter().write(job.toJSON(true).toJSONString());
+			return;
+		}
+		// Finished batches that are no longer tracked still have their manifest
+		Path manifest = batchRenderer.getManifest(batchId.replaceAll("[^0-9a-f-]", ""));
+		if (Files.exists(manifest)) {
+			response.getWriter().write(new String(Files.readAllBytes(manifest), StandardCharsets.UTF_8));
+			return;
+		}
+		sendError(response, HttpServletResponse.SC_NOT_FOUND, "Unknown batch " + batchId);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		Map<String, Object> parameters = new LinkedHashMap<>();
+		if (ServletFileUpload.isMultipartContent(request)) {
+			try {
+				FileItemIterator items = new ServletFileUpload().getItemIterator(request);
+				while (items.hasNext()) {
+					FileItemStream item = items.next();
+					try (InputStream in = item.openStream()) {
+						if (item.isFormField() == false) {
+							sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Uploaded files are not supported in batches");
+							return;
+						}
+						parameters.put(item.getFieldName(), Streams.asString(in));
+					}
+				}
+			}
+			catch (FileUploadException e) {
+				throw new ServletException("Cannot parse multipart request", e);
+			}
+		}
+		else {
+			for (Map.Entry<String, String[]> parameter : ((Map<String, String[]>) request.getParameterMap()).entrySet()) {
+				parameters.put(parameter.getKey(), parameter.getValue()[0]);
+			}
+		}
+
+		Object gidList = parameters.remove("gids");
+		List<String> gids = new ArrayList<>();
+		if (gidList != null) {
+			for (String gid : Arrays.asList(gidList.toString().split("[\\s,]+"))) {
+				if (gid.isEmpty() == false) {
+					gids.add(gid);
+				}
+			}
+		}
+		if (gids.isEmpty()) {
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "gids is missing");
+			return;
+		}
+		// Gids go into gid:(a OR b ...) Solr queries
+		for (String gid : gids) {
+			if (CircosGenerator.isGenomeId(gid) == false) {
+				sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid gid: " + gid);
+				return;
+			}
+		}
+		if (gids.size() > maxGids) {
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "A batch can have at most " + maxGids + " genomes");
+			return;
+		}
+
+		BatchJob job = batchRenderer.submit(gids, parameters);
+		logger.info("batchId:{} parameters: {}", job.getId(), parameters);
+		JSONObject json = new JSONObject();
+		json.put("success", true);
+		json.put("batchId", job.getId());
+		json.put("total", job.getGids().size());
+		response.setContentType("application/json");
+		response.getWriter().write(json.toJSONString());
+	}
+
+	@SuppressWarnings("unchecked")
+	private void sendError(HttpServletResponse response, int status, String message) throws IOException {
+		response.setStatus(status);
+		response.setContentType("application/json");
+		JSONObject json = new JSONObject();
+		json.put("success", false);
+		json.put("message", message);
+		response.getWriter().write(json.toJSONString());
+	}
+}
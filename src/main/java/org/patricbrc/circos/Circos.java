@@ -1,5 +1,6 @@
 package org.patricbrc.circos;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -7,6 +8,15 @@ import java.util.UUID;
 public class Circos {
 	private String genomeId;
 
+	private String genomeName;
+
+	// Other genomes of a comparative plot, linked to genomeId by shared protein families
+	private List<String> compareGenomeIds = new ArrayList<>();
+
+	private String familyField;
+
+	private Map<String, FamilyTrack> families;
+
 	private String uuid;
 
 	private String tmpDir;
@@ -21,13 +31,45 @@ public class Circos {
 
 	private String gcSkewPlotType = null;
 
-	private Map<String, List<Map<String, Object>>> genomeData;
+	private int gcWindowSize = GCStatistics.DEFAULT_WINDOW_SIZE;
+
+	private int gcStepSize = GCStatistics.DEFAULT_WINDOW_SIZE;
+
+	private boolean gcSkewCumulative = false;
+
+	private Map<String, FeatureTrack> genomeData;
+
+	private List<GCProfile> gcProfiles;
+
+	private float gcSkewMin = -1.0f;
+
+	private float gcSkewMax = 1.0f;
+
+	private List<Map<String, Object>> userUploads;
+
+	private List<Map<String, Object>> accessions;
 
 	public Circos(String dir) {
 		uuid = UUID.randomUUID().toString();
 		tmpDir = dir + "/images/" + uuid;
 	}
 
+	public List<Map<String, Object>> getAccessions() {
+		return accessions;
+	}
+
+	public List<String> getCompareGenomeIds() {
+		return compareGenomeIds;
+	}
+
+	public Map<String, FamilyTrack> getFamilies() {
+		return families;
+	}
+
+	public String getFamilyField() {
+		return familyField;
+	}
+
 	public String getGcContentPlotType() {
 		return gcContentPlotType;
 	}
@@ -36,7 +78,27 @@ public class Circos {
 		return gcSkewPlotType;
 	}
 
-	public Map<String, List<Map<String, Object>>> getGenomeData() {
+	public int getGcStepSize() {
+		return gcStepSize;
+	}
+
+	public int getGcWindowSize() {
+		return gcWindowSize;
+	}
+
+	public List<GCProfile> getGcProfiles() {
+		return gcProfiles;
+	}
+
+	public float getGcSkewMax() {
+		return gcSkewMax;
+	}
+
+	public float getGcSkewMin() {
+		return gcSkewMin;
+	}
+
+	public Map<String, FeatureTrack> getGenomeData() {
 		return genomeData;
 	}
 
@@ -44,6 +106,20 @@ public class Circos {
 		return genomeId;
 	}
 
+	/**
+	 * The genome and the genomes it is compared with
+	 */
+	public List<String> getGenomeIds() {
+		List<String> genomeIds = new ArrayList<>();
+		genomeIds.add(genomeId);
+		genomeIds.addAll(compareGenomeIds);
+		return genomeIds;
+	}
+
+	public String getGenomeName() {
+		return genomeName;
+	}
+
 	public int getImageSize() {
 		return imageSize;
 	}
@@ -56,14 +132,42 @@ public class Circos {
 		return trackWidth;
 	}
 
+	public List<Map<String, Object>> getUserUploads() {
+		return userUploads;
+	}
+
 	public String getUuid() {
 		return uuid;
 	}
 
+	public boolean isComparative() {
+		return compareGenomeIds.isEmpty() == false;
+	}
+
+	public boolean isGcSkewCumulative() {
+		return gcSkewCumulative;
+	}
+
 	public boolean isIncludeOuterTrack() {
 		return includeOuterTrack;
 	}
 
+	public void setAccessions(List<Map<String, Object>> accessions) {
+		this.accessions = accessions;
+	}
+
+	public void setCompareGenomeIds(List<String> compareGenomeIds) {
+		this.compareGenomeIds = compareGenomeIds;
+	}
+
+	public void setFamilies(Map<String, FamilyTrack> families) {
+		this.families = families;
+	}
+
+	public void setFamilyField(String familyField) {
+		this.familyField = familyField;
+	}
+
 	public void setGcContentPlotType(String gcContentPlotType) {
 		this.gcContentPlotType = gcContentPlotType;
 	}
@@ -72,7 +176,28 @@ public class Circos {
 		this.gcSkewPlotType = gcSkewPlotType;
 	}
 
-	public void setGenomeData(Map<String, List<Map<String, Object>>> genomeData) {
+	public void setGcSkewCumulative(boolean gcSkewCumulative) {
+		this.gcSkewCumulative = gcSkewCumulative;
+	}
+
+	public void setGcProfiles(List<GCProfile> gcProfiles) {
+		this.gcProfiles = gcProfiles;
+	}
+
+	public void setGcSkewRange(float gcSkewMin, float gcSkewMax) {
+		this.gcSkewMin = gcSkewMin;
+		this.gcSkewMax = gcSkewMax;
+	}
+
+	public void setGcStepSize(int gcStepSize) {
+		this.gcStepSize = gcStepSize;
+	}
+
+	public void setGcWindowSize(int gcWindowSize) {
+		this.gcWindowSize = gcWindowSize;
+	}
+
+	public void setGenomeData(Map<String, FeatureTrack> genomeData) {
 		this.genomeData = genomeData;
 	}
 
@@ -80,6 +205,10 @@ public class Circos {
 		this.genomeId = id;
 	}
 
+	public void setGenomeName(String genomeName) {
+		this.genomeName = genomeName;
+	}
+
 	public void setImageSize(int imageSize) {
 		this.imageSize = imageSize;
 	}
@@ -88,6 +217,10 @@ public class Circos {
 		this.includeOuterTrack = includeOuterTrack;
 	}
 
+	public void setUserUploads(List<Map<String, Object>> userUploads) {
+		this.userUploads = userUploads;
+	}
+
 	public void setTrackWidth(float trackWidth) {
 		this.trackWidth = trackWidth;
 	}
@@ -1,7 +1,11 @@
 package org.patricbrc.circos;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -10,10 +14,25 @@ import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrQuery.SortClause;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.StreamingResponseCallback;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
 import org.apache.solr.client.solrj.impl.HttpSolrServer;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.ModifiableSolrParams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,79 +42,252 @@ public class CircosData {
 
 	private static final Logger logger = LoggerFactory.getLogger(CircosData.class);
 
+	// One pooled HttpClient is shared by the clients of all cores, which live as long as the servlet
+	private HttpClient httpClient;
+
+	private SolrServer dnaFeatureServer;
+
+	private SolrServer sequenceInfoServer;
+
+	private SolrServer genomeSummaryServer;
+
+	private int pageSize;
+
+	private final Metrics metrics;
+
 	public CircosData() {
+		this(null);
+	}
+
+	/**
+	 * Response sizes of the Solr queries are counted in metrics, by core, if it is not null
+	 */
+	public CircosData(Metrics metrics) {
+		this.metrics = metrics;
 		boolean isProduction = System.getProperty("solr.isProduction", "false").equals("true");
 		if (isProduction) {
 			baseUrlSolr = "http://macleod.vbi.vt.edu:8080/solr/";
 		} else {
 			baseUrlSolr = "http://macleod.vbi.vt.edu:8983/solr/";
 		}
+		// Points the cores at another Solr, e.g. the fake Solr of the load test
+		baseUrlSolr = System.getProperty("circos.solr.url", baseUrlSolr);
+		if (baseUrlSolr.endsWith("/") == false) {
+			baseUrlSolr += "/";
+		}
+
+		ModifiableSolrParams params = new ModifiableSolrParams();
+		params.set(HttpClientUtil.PROP_MAX_CONNECTIONS, Integer.parseInt(System.getProperty("circos.solr.maxConnections", "64")));
+		params.set(HttpClientUtil.PROP_MAX_CONNECTIONS_PER_HOST,
+				Integer.parseInt(System.getProperty("circos.solr.maxConnectionsPerHost", "32")));
+		params.set(HttpClientUtil.PROP_CONNECTION_TIMEOUT, Integer.parseInt(System.getProperty("circos.solr.connectTimeout", "5000")));
+		params.set(HttpClientUtil.PROP_SO_TIMEOUT, Integer.parseInt(System.getProperty("circos.solr.readTimeout", "60000")));
+		httpClient = HttpClientUtil.createClient(params);
+		if (metrics != null && httpClient instanceof AbstractHttpClient) {
+			((AbstractHttpClient) httpClient).addResponseInterceptor(new HttpResponseInterceptor() {
+				@Override
+				public void process(HttpResponse response, HttpContext context) {
+					HttpRequest request = (HttpRequest) context.getAttribute(ExecutionContext.HTTP_REQUEST);
+					if (response.getEntity() != null && request != null) {
+						response.setEntity(new CountingEntity(response.getEntity(), core(request.getRequestLine().getUri())));
+					}
+				}
+			});
+		}
+
+		dnaFeatureServer = new HttpSolrServer(baseUrlSolr + "dnafeature", httpClient);
+		sequenceInfoServer = new HttpSolrServer(baseUrlSolr + "sequenceinfo", httpClient);
+		genomeSummaryServer = new HttpSolrServer(baseUrlSolr + "genomesummary", httpClient);
+
+		pageSize = Integer.parseInt(System.getProperty("circos.solr.pageSize", "10000"));
 	}
 
-	public List<Map<String, Object>> getFeatures(String genome_info_id, String feature_type, String strand, String keyword) {
-		List<Map<String, Object>> docs = new LinkedList<Map<String, Object>>();
+	public void shutdown() {
+		dnaFeatureServer.shutdown();
+		sequenceInfoServer.shutdown();
+		genomeSummaryServer.shutdown();
+		httpClient.getConnectionManager().shutdown();
+	}
 
+	/**
+	 * Connection pool usage of the shared Solr client: leased, pending, available and max connections.
+	 */
+	public Map<String, Integer> getPoolStats() {
+		Map<String, Integer> stats = new LinkedHashMap<>();
+		ClientConnectionManager connectionManager = httpClient.getConnectionManager();
+		if (connectionManager instanceof PoolingClientConnectionManager) {
+			PoolStats poolStats = ((PoolingClientConnectionManager) connectionManager).getTotalStats();
+			stats.put("leased", poolStats.getLeased());
+			stats.put("pending", poolStats.getPending());
+			stats.put("available", poolStats.getAvailable());
+			stats.put("max", poolStats.getMax());
+		}
+		return stats;
+	}
+
+	public FeatureTrack getFeatures(String genome_info_id, String feature_type, String strand, String keyword) {
+		FeatureTrack track = new FeatureTrack();
+		try {
+			streamFeatures(genome_info_id, feature_type, strand, keyword, track);
+		}
+		catch (SolrServerException | IOException e) {
+			e.printStackTrace();
+			track = new FeatureTrack();
+		}
+		return track;
+	}
+
+	/**
+	 * Passes each feature to the handler as soon as it is read from the response, without keeping the features in memory.
+	 * Returns the number of features read.
+	 */
+	public long streamFeatures(String genome_info_id, String feature_type, String strand, String keyword, final FeatureHandler handler)
+			throws SolrServerException, IOException {
+		return queryFeatures(genome_info_id, feature_type, strand, keyword, new StreamingResponseCallback() {
+			@Override
+			public void streamSolrDocument(SolrDocument sd) {
+				try {
+					feature(sd, handler);
+				}
+				catch (IOException e) {
+					throw new RuntimeException("Feature could not be handled", e);
+				}
+			}
+
+			@Override
+			public void streamDocListInfo(long numFound, long start, Float maxScore) {
+			}
+		});
+	}
+
+	/**
+	 * Passes the fields of one dnafeature document to the handler
+	 */
+	static void feature(SolrDocument sd, FeatureHandler handler) throws IOException {
+		handler.feature(sd.get("accession").toString(), ((Number) sd.get("start_max")).intValue(), ((Number) sd.get("end_min")).intValue(),
+				((Number) sd.get("na_feature_id")).longValue());
+	}
+
+	/**
+	 * Reads all features of a genome page by page. Pages are requested with cursorMark on the (accession, start_max,
+	 * na_feature_id) sort; Solr versions without cursor support fall back to start offsets. Documents of each page are streamed
+	 * to the callback instead of being collected into a SolrDocumentList.
+	 */
+	private long queryFeatures(String genome_info_id, String feature_type, String strand, String keyword, final StreamingResponseCallback callback)
+			throws SolrServerException, IOException {
+		return queryFeatures(genome_info_id, feature_type, strand, keyword, null, null, callback);
+	}
+
+	/**
+	 * gidQuery is a single gid or a group like (a OR b), sorts go first by the optional sortField. The optional extraField is
+	 * read along with the feature fields.
+	 */
+	private long queryFeatures(String gidQuery, String feature_type, String strand, String keyword, String sortField, String extraField,
+			final StreamingResponseCallback callback) throws SolrServerException, IOException {
 		Map<String, String> solrQueryByType = new HashMap<>();
 		solrQueryByType.put("cds", "feature_type:CDS");
 		solrQueryByType.put("rna", "feature_type:*RNA");
 		solrQueryByType.put("misc", "!(feature_type:*RNA OR feature_type:CDS OR feature_type:source)");
 
 		SolrQuery query = new SolrQuery();
-		query.setQuery("gid:" + genome_info_id + ((keyword != null) ? " AND " + keyword : "")
+		query.setQuery("gid:" + gidQuery + ((keyword != null) ? " AND " + keyword : "")
 				+ ((strand != null) ? " AND strand:\"" + strand + "\"" : ""));
 		query.addFilterQuery("annotation_f:PATRIC AND " + solrQueryByType.get(feature_type));
-		query.setFields("accession, start_max, end_min, sequence_info_id, gid, na_feature_id");
+		query.setFields("accession, start_max, end_min, sequence_info_id, gid, na_feature_id" + ((extraField != null) ? ", " + extraField : ""));
 		List<SortClause> sorts = new ArrayList<>();
+		if (sortField != null) {
+			sorts.add(SortClause.create(sortField, SolrQuery.ORDER.asc));
+		}
 		sorts.add(SortClause.create("accession", SolrQuery.ORDER.asc));
 		sorts.add(SortClause.create("start_max", SolrQuery.ORDER.asc));
+		sorts.add(SortClause.create("na_feature_id", SolrQuery.ORDER.asc));
 		query.setSorts(sorts);
-		query.setRows(10000);
+		query.setRows(pageSize);
 
-		logger.info("SolrRequest [DNAFeature]{}", query.toString());
-		QueryResponse qr;
-		try {
-			SolrServer solrServer = new HttpSolrServer(baseUrlSolr + "dnafeature");
-			qr = solrServer.query(query);
-			SolrDocumentList sdl = qr.getResults();
+		final long[] pageCount = new long[1];
+		StreamingResponseCallback pageCallback = new StreamingResponseCallback() {
+			@Override
+			public void streamSolrDocument(SolrDocument doc) {
+				pageCount[0]++;
+				callback.streamSolrDocument(doc);
+			}
 
-			for (SolrDocument sd : sdl) {
-				HashMap<String, Object> doc = new HashMap<String, Object>();
-				doc.put("accession", sd.get("accession"));
-				doc.put("start_max", sd.get("start_max"));
-				doc.put("end_min", sd.get("end_min"));
-				doc.put("sequence_info_id", sd.get("sequence_info_id"));
-				doc.put("gid", sd.get("gid"));
-				doc.put("na_feature_id", sd.get("na_feature_id"));
-				docs.add(doc);
+			@Override
+			public void streamDocListInfo(long numFound, long start, Float maxScore) {
+				callback.streamDocListInfo(numFound, start, maxScore);
+			}
+		};
+
+		long total = 0;
+		String cursorMark = "*";
+		int start = 0;
+		while (true) {
+			if (cursorMark != null) {
+				query.set("cursorMark", cursorMark);
+			}
+			else {
+				query.setStart(start);
+			}
+			logger.info("SolrRequest [DNAFeature]{}", query.toString());
+
+			pageCount[0] = 0;
+			QueryResponse qr = dnaFeatureServer.queryAndStreamResponse(query, pageCallback);
+			total += pageCount[0];
+
+			Object nextCursorMark = qr.getResponse().get("nextCursorMark");
+			if (cursorMark != null && nextCursorMark != null) {
+				if (nextCursorMark.toString().equals(cursorMark)) {
+					break;
+				}
+				cursorMark = nextCursorMark.toString();
+			}
+			else {
+				if (pageCount[0] < pageSize) {
+					break;
+				}
+				cursorMark = null;
+				query.remove("cursorMark");
+				start += pageSize;
 			}
 		}
-		catch (SolrServerException e) {
-			e.printStackTrace();
-		}
-		return docs;
+		return total;
 	}
 
 	public List<Map<String, Object>> getAccessions(String genome_info_id) {
+		return getAccessions(genome_info_id, true);
+	}
+
+	/**
+	 * Accessions with their length, and with their sequence only if withSequence is set, read page by page like the accessions
+	 * of a batch
+	 */
+	public List<Map<String, Object>> getAccessions(String genome_info_id, boolean withSequence) {
 		List<Map<String, Object>> accessions = new LinkedList<Map<String, Object>>();
 
 		SolrQuery query = new SolrQuery();
 		query.setQuery("gid:" + genome_info_id);
-		query.setFields("genome_name, accession, length, sequence");
+		query.setFields(withSequence ? "genome_name, accession, length, sequence" : "genome_name, accession, length");
 		query.setSort("accession", SolrQuery.ORDER.asc);
+		query.setRows(pageSize);
 
-		logger.info("SolrRequest [SequenceInfo]{}", query.toString());
-		QueryResponse qr;
 		try {
-			SolrServer solrServer = new HttpSolrServer(baseUrlSolr + "sequenceinfo");
-			qr = solrServer.query(query);
-			SolrDocumentList sdl = qr.getResults();
-			for (SolrDocument sd : sdl) {
-				HashMap<String, Object> doc = new HashMap<String, Object>();
+			for (int start = 0;; start += pageSize) {
+				query.setStart(start);
+				logger.info("SolrRequest [SequenceInfo]{}", query.toString());
+				SolrDocumentList sdl = sequenceInfoServer.query(query).getResults();
+				for (SolrDocument sd : sdl) {
+					HashMap<String, Object> doc = new HashMap<String, Object>();
 
-				doc.put("accession", sd.get("accession"));
-				doc.put("length", sd.get("length"));
-				doc.put("sequence", sd.get("sequence"));
-				accessions.add(doc);
+					doc.put("accession", sd.get("accession"));
+					doc.put("length", sd.get("length"));
+					if (withSequence) {
+						doc.put("sequence", sd.get("sequence"));
+					}
+					accessions.add(doc);
+				}
+				if (sdl.size() < pageSize) {
+					break;
+				}
 			}
 		}
 		catch (SolrServerException e) {
@@ -113,8 +305,7 @@ public class CircosData {
 		logger.info("SolrRequest [GenomeSummary]{}", query.toString());
 		QueryResponse qr;
 		try {
-			SolrServer solrServer = new HttpSolrServer(baseUrlSolr + "genomesummary");
-			qr = solrServer.query(query);
+			qr = genomeSummaryServer.query(query);
 			SolrDocumentList sdl = qr.getResults();
 			for (SolrDocument sd : sdl) {
 				genomeName = sd.get("genome_name").toString();
@@ -125,4 +316,192 @@ public class CircosData {
 		}
 		return genomeName;
 	}
+
+	/**
+	 * Features of several genomes from one query per page, gid:(a OR b ...), split into one track per gid. Every gid gets a
+	 * track, empty if it has no features.
+	 */
+	public Map<String, FeatureTrack> getFeatures(List<String> gids, String feature_type, String strand, String keyword)
+			throws SolrServerException, IOException {
+		final Map<String, FeatureTrack> tracks = new LinkedHashMap<>();
+		for (String gid : gids) {
+			tracks.put(gid, new FeatureTrack());
+		}
+		queryFeatures(gidGroup(gids), feature_type, strand, keyword, "gid", null, new StreamingResponseCallback() {
+			@Override
+			public void streamSolrDocument(SolrDocument sd) {
+				FeatureTrack track = tracks.get(sd.get("gid").toString());
+				if (track != null) {
+					try {
+						feature(sd, track);
+					}
+					catch (IOException e) {
+						throw new RuntimeException("Feature could not be handled", e);
+					}
+				}
+			}
+
+			@Override
+			public void streamDocListInfo(long numFound, long start, Float maxScore) {
+			}
+		});
+		return tracks;
+	}
+
+	/**
+	 * CDS features of several genomes with their protein family in familyField (e.g. pgfam_id), one track per gid. Features
+	 * without a family are left out.
+	 */
+	public Map<String, FamilyTrack> getFamilies(List<String> gids, final String familyField) throws SolrServerException, IOException {
+		final Map<String, FamilyTrack> tracks = new LinkedHashMap<>();
+		for (String gid : gids) {
+			tracks.put(gid, new FamilyTrack());
+		}
+		queryFeatures(gidGroup(gids), "cds", null, familyField + ":[* TO *]", "gid", familyField, new StreamingResponseCallback() {
+			@Override
+			public void streamSolrDocument(SolrDocument sd) {
+				FamilyTrack track = tracks.get(sd.get("gid").toString());
+				Object family = sd.get(familyField);
+				if (track != null && family != null) {
+					track.add(sd.get("accession").toString(), ((Number) sd.get("start_max")).intValue(), ((Number) sd.get("end_min")).intValue(),
+							((Number) sd.get("na_feature_id")).longValue(), family.toString());
+				}
+			}
+
+			@Override
+			public void streamDocListInfo(long numFound, long start, Float maxScore) {
+			}
+		});
+		return tracks;
+	}
+
+	/**
+	 * Accessions of several genomes, by gid, read page by page. Genomes without accessions are left out.
+	 */
+	public Map<String, List<Map<String, Object>>> getAccessions(List<String> gids, boolean withSequence) throws SolrServerException {
+		Map<String, List<Map<String, Object>>> accessions = new LinkedHashMap<>();
+		SolrQuery query = new SolrQuery();
+		query.setQuery("gid:" + gidGroup(gids));
+		query.setFields(withSequence ? "gid, genome_name, accession, length, sequence" : "gid, genome_name, accession, length");
+		query.addSort("gid", SolrQuery.ORDER.asc);
+		query.addSort("accession", SolrQuery.ORDER.asc);
+		query.setRows(pageSize);
+		for (int start = 0;; start += pageSize) {
+			query.setStart(start);
+			logger.info("SolrRequest [SequenceInfo]{}", query.toString());
+			SolrDocumentList sdl = sequenceInfoServer.query(query).getResults();
+			for (SolrDocument sd : sdl) {
+				String gid = sd.get("gid").toString();
+				if (accessions.containsKey(gid) == false) {
+					accessions.put(gid, new LinkedList<Map<String, Object>>());
+				}
+				HashMap<String, Object> doc = new HashMap<String, Object>();
+				doc.put("accession", sd.get("accession"));
+				doc.put("length", sd.get("length"));
+				if (withSequence) {
+					doc.put("sequence", sd.get("sequence"));
+				}
+				accessions.get(gid).add(doc);
+			}
+			if (sdl.size() < pageSize) {
+				break;
+			}
+		}
+		return accessions;
+	}
+
+	/**
+	 * Names of several genomes, by gid. Genomes that were not found are left out.
+	 */
+	public Map<String, String> getGenomeNames(List<String> gids) throws SolrServerException {
+		Map<String, String> genomeNames = new LinkedHashMap<>();
+		SolrQuery query = new SolrQuery();
+		query.setQuery("gid:" + gidGroup(gids));
+		query.setFields("gid, genome_name");
+		query.setRows(gids.size());
+
+		logger.info("SolrRequest [GenomeSummary]{}", query.toString());
+		for (SolrDocument sd : genomeSummaryServer.query(query).getResults()) {
+			genomeNames.put(sd.get("gid").toString(), sd.get("genome_name").toString());
+		}
+		return genomeNames;
+	}
+
+	/**
+	 * Core of a request to .../solr/core/select?...
+	 */
+	private static String core(String uri) {
+		int end = uri.indexOf('?');
+		String[] path = ((end >= 0) ? uri.substring(0, end) : uri).split("/");
+		return (path.length >= 2) ? path[path.length - 2] : "unknown";
+	}
+
+	/**
+	 * Counts the bytes of a response body as Solrj reads it, recorded when the body is closed
+	 */
+	private class CountingEntity extends HttpEntityWrapper {
+
+		private final String core;
+
+		CountingEntity(HttpEntity entity, String core) {
+			super(entity);
+			this.core = core;
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			return new FilterInputStream(super.getContent()) {
+				private long bytes = 0;
+
+				private boolean recorded = false;
+
+				@Override
+				public int read() throws IOException {
+					int b = super.read();
+					if (b >= 0) {
+						bytes++;
+					}
+					return b;
+				}
+
+				@Override
+				public int read(byte[] buffer, int offset, int length) throws IOException {
+					int n = super.read(buffer, offset, length);
+					if (n > 0) {
+						bytes += n;
+					}
+					return n;
+				}
+
+				@Override
+				public long skip(long n) throws IOException {
+					long skipped = super.skip(n);
+					bytes += skipped;
+					return skipped;
+				}
+
+				@Override
+				public void close() throws IOException {
+					if (recorded == false) {
+						recorded = true;
+						metrics.increment("solr_" + core + "_responses", 1);
+						metrics.increment("solr_" + core + "_response_bytes", bytes);
+						logger.debug("Solr response from {}: {} bytes", core, bytes);
+					}
+					super.close();
+				}
+			};
+		}
+	}
+
+	private static String gidGroup(List<String> gids) {
+		StringBuilder group = new StringBuilder("(");
+		for (String gid : gids) {
+			if (group.length() > 1) {
+				group.append(" OR ");
+			}
+			group.append(gid);
+		}
+		return group.append(")").toString();
+	}
 }
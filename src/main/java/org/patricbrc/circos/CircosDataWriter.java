@@ -0,0 +1,195 @@
+package org.patricbrc.circos;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes Circos data files. Numbers are formatted directly into a reusable byte buffer, which is flushed to a FileChannel when
+ * full, so no format string is parsed and no value is boxed per line. Output matches PrintWriter.format with "%d" and "%f".
+ */
+public class CircosDataWriter implements Closeable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// Enough room for the longest number or a chunk of a string
+	private static final int MAX_NUMBER_LENGTH = 64;
+
+	private static final long[] POWERS_OF_TEN = { 1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L };
+
+	// "%f" prints six decimals
+	private static final int DECIMALS = 6;
+
+	private final FileChannel channel;
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+	private final byte[] digits = new byte[20];
+
+	public CircosDataWriter(String path) throws IOException {
+		channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * accession start end id=featureId, or accession start end for merged tiles without an id
+	 */
+	public void writeFeature(String accession, int start, int end, long featureId) throws IOException {
+		write(accession);
+		write('\t');
+		write(start);
+		write('\t');
+		write(end);
+		if (featureId != FeatureTrack.NO_ID) {
+			write("\tid=");
+			write(featureId);
+		}
+		write('\n');
+	}
+
+	/**
+	 * accession start end value, the value formatted like "%f"
+	 */
+	public void writeValue(String accession, int start, int end, float value) throws IOException {
+		write(accession);
+		write('\t');
+		write(start);
+		write('\t');
+		write(end);
+		write('\t');
+		write(value);
+		write('\n');
+	}
+
+	/**
+	 * accession start end otherAccession otherStart otherEnd color=color, a link on one line; the color is left out if null
+	 */
+	public void writeLink(String accession, int start, int end, String otherAccession, int otherStart, int otherEnd, String color)
+			throws IOException {
+		write(accession);
+		write('\t');
+		write(start);
+		write('\t');
+		write(end);
+		write('\t');
+		write(otherAccession);
+		write('\t');
+		write(otherStart);
+		write('\t');
+		write(otherEnd);
+		if (color != null) {
+			write("\tcolor=");
+			write(color);
+		}
+		write('\n');
+	}
+
+	public void write(char c) throws IOException {
+		ensureCapacity(1);
+		buffer.put((byte) c);
+	}
+
+	public void write(String s) throws IOException {
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x80) {
+				// Not plain ASCII, let the charset encode the whole string
+				write(s.getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+		}
+		for (int i = 0; i < length; i += MAX_NUMBER_LENGTH) {
+			int end = Math.min(i + MAX_NUMBER_LENGTH, length);
+			ensureCapacity(end - i);
+			for (int j = i; j < end; j++) {
+				buffer.put((byte) s.charAt(j));
+			}
+		}
+	}
+
+	public void write(long value) throws IOException {
+		ensureCapacity(MAX_NUMBER_LENGTH);
+		if (value == Long.MIN_VALUE) {
+			write(Long.toString(value));
+			return;
+		}
+		if (value < 0) {
+			buffer.put((byte) '-');
+			value = -value;
+		}
+		int pos = digits.length;
+		do {
+			digits[--pos] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while (value != 0);
+		buffer.put(digits, pos, digits.length - pos);
+	}
+
+	/**
+	 * Writes the value with six decimals, rounded half up like "%f". Values too close to a rounding boundary to be decided in
+	 * double arithmetic, and non finite values, are left to String.format.
+	 */
+	public void write(float value) throws IOException {
+		double d = value;
+		if (Double.isNaN(d) || Double.isInfinite(d) || Math.abs(d) >= 1e12) {
+			write(String.format("%f", value));
+			return;
+		}
+		boolean negative = d < 0 || (d == 0 && 1 / d < 0);
+		double scaled = Math.abs(d) * POWERS_OF_TEN[DECIMALS];
+		double fraction = scaled - Math.floor(scaled);
+		if (Math.abs(fraction - 0.5) < 1e-4) {
+			write(String.format("%f", value));
+			return;
+		}
+		long rounded = (long) Math.floor(scaled + 0.5);
+
+		ensureCapacity(MAX_NUMBER_LENGTH);
+		if (negative) {
+			buffer.put((byte) '-');
+		}
+		write(rounded / POWERS_OF_TEN[DECIMALS]);
+		buffer.put((byte) '.');
+		long decimals = rounded % POWERS_OF_TEN[DECIMALS];
+		for (int i = DECIMALS - 1; i >= 0; i--) {
+			buffer.put((byte) ('0' + (decimals / POWERS_OF_TEN[i]) % 10));
+		}
+	}
+
+	private void write(byte[] bytes) throws IOException {
+		for (int offset = 0; offset < bytes.length; offset += BUFFER_SIZE) {
+			int length = Math.min(BUFFER_SIZE, bytes.length - offset);
+			ensureCapacity(length);
+			buffer.put(bytes, offset, length);
+		}
+	}
+
+	private void ensureCapacity(int length) throws IOException {
+		if (buffer.remaining() < length) {
+			flush();
+		}
+	}
+
+	public void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		}
+		finally {
+			channel.close();
+		}
+	}
+}
@@ -2,15 +2,17 @@ package org.patricbrc.circos;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -21,11 +23,15 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 
-import org.apache.commons.fileupload.FileItem;
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,6 +46,16 @@ public class CircosGenerator {
 
 	private final String DIR_DATA = "/data";
 
+	// Family fields of dnafeature a comparative plot can link features by
+	private static final List<String> FAMILY_FIELDS = Arrays.asList("pgfam_id", "plfam_id", "figfam_id");
+
+	// PATRIC genome ids, e.g. 83332.12. Gids name store directories and go into Solr queries, so nothing else is accepted.
+	private static final Pattern GENOME_ID = Pattern.compile("\\d+\\.\\d+");
+
+	// Karyotype and link color of each genome of a comparative plot, the first one is the compared genome
+	private static final String[] GENOME_COLORS = { "grey", "vdblue", "vdgreen", "vdred", "vdpurple", "vdorange", "dblue", "dgreen", "dred",
+			"dpurple" };
+
 	private String appDir;
 
 	private Template tmplPlotConf;
@@ -50,9 +66,70 @@ public class CircosGenerator {
 
 	CircosData circosData;
 
+	GenomeStore genomeStore;
+
+	GenomeDataCache genomeDataCache;
+
+	ImageCache imageCache;
+
+	DataDirCache dataDirCache;
+
+	CircosProcessRunner processRunner;
+
+	CircosWorkerPool workerPool;
+
+	Metrics metrics;
+
+	private ExecutorService solrExecutor;
+
+	private long solrTimeout;
+
+	private boolean featureStreaming;
+
+	private boolean nativeRenderer;
+
+	private double lodPixels;
+
+	private TrackReducer.Aggregate uploadReduce;
+
+	private double uploadPointsPerPixel;
+
+	private int compareMaxGenomes;
+
+	private String compareFamilyField;
+
+	private int compareMaxCopies;
+
+	private int compareMaxLinks;
+
+	private int gcMinWindow;
+
+	private int gcMaxWindows;
+
 	public CircosGenerator(String path) {
 		appDir = path;
-		circosData = new CircosData();
+		metrics = new Metrics();
+		circosData = new CircosData(metrics);
+		genomeStore = new GenomeStore(System.getProperty("circos.store.dir", path + "/store"), circosData);
+		genomeDataCache = new GenomeDataCache(circosData, genomeStore);
+		imageCache = new ImageCache(path);
+		dataDirCache = new DataDirCache(path);
+		processRunner = new CircosProcessRunner();
+		workerPool = new CircosWorkerPool(path, processRunner);
+		solrExecutor = Executors.newFixedThreadPool(Integer.parseInt(System.getProperty("circos.solr.threads", "8")));
+		solrTimeout = TimeUnit.SECONDS.toMillis(Long.parseLong(System.getProperty("circos.solr.timeout", "60")));
+		featureStreaming = System.getProperty("circos.features.streaming", "false").equals("true");
+		nativeRenderer = System.getProperty("circos.renderer", "circos").equals("native");
+		lodPixels = Double.parseDouble(System.getProperty("circos.lod.pixels", "0"));
+		String reduce = System.getProperty("circos.upload.reduce", "none");
+		uploadReduce = reduce.equals("none") ? null : TrackReducer.Aggregate.valueOf(reduce.toUpperCase());
+		uploadPointsPerPixel = Double.parseDouble(System.getProperty("circos.upload.pointsPerPixel", "1"));
+		compareMaxGenomes = Integer.parseInt(System.getProperty("circos.compare.maxGenomes", "10"));
+		compareFamilyField = System.getProperty("circos.compare.family", "pgfam_id");
+		compareMaxCopies = Integer.parseInt(System.getProperty("circos.compare.maxCopies", "1"));
+		compareMaxLinks = Integer.parseInt(System.getProperty("circos.compare.maxLinks", "25000"));
+		gcMinWindow = Integer.parseInt(System.getProperty("circos.gc.minWindow", "100"));
+		gcMaxWindows = Integer.parseInt(System.getProperty("circos.gc.maxWindows", "100000"));
 		try {
 			tmplPlotConf = Mustache.compiler().compile(new BufferedReader(new FileReader(path + "/conf_templates/plots.mu")));
 			tmplImageConf = Mustache.compiler().compile(new BufferedReader(new FileReader(path + "/conf_templates/image.mu")));
@@ -63,79 +140,307 @@ public class CircosGenerator {
 		}
 	}
 
+	public void shutdown() {
+		solrExecutor.shutdownNow();
+		circosData.shutdown();
+		workerPool.shutdown();
+		processRunner.shutdown();
+	}
+
 	public String createCircosImage(Map<String, Object> parameters) {
+		Metrics.Request timings = metrics.startRequest();
+		String imageId = createCircosImage(parameters, timings);
+		metrics.increment((imageId != null) ? "images_created" : "images_failed", 1);
+		logger.info("Image {} stage times in ms: {}", imageId, timings.finish("total"));
+		return imageId;
+	}
+
+	private String createCircosImage(Map<String, Object> parameters, Metrics.Request timings) {
 		if (parameters.isEmpty()) {
 			logger.error("Circos image could not be created");
 			return null;
 		}
 		else {
-			// create instance
-			Circos circos = new Circos(appDir);
-			circos.setGenomeId(parameters.get("gid").toString());
+			Circos circos = createCircos(parameters);
+			if (circos == null) {
+				return null;
+			}
 
-			// Record whether to include GC content track or not
-			if (parameters.containsKey("gc_content_plot_type")) {
-				circos.setGcContentPlotType(parameters.get("gc_content_plot_type").toString());
+			// Create temp directory and data folder for this image. In streaming mode the track files are written while the
+			// features are being fetched.
+			String tmpFolderName = circos.getTmpDir();
+			try {
+				Files.createDirectory(Paths.get(tmpFolderName));
+				Files.createDirectory(Paths.get(tmpFolderName + DIR_DATA));
 			}
-			if (parameters.containsKey("gc_skew_plot_type")) {
-				circos.setGcSkewPlotType(parameters.get("gc_skew_plot_type").toString());
+			catch (IOException e) {
+				e.printStackTrace();
+				deleteImageDir(tmpFolderName);
+				return null;
 			}
 
-			// Record whether to include outer track or not
-			if (parameters.containsKey("include_outer_track")) {
-				circos.setIncludeOuterTrack(parameters.get("include_outer_track").equals("on"));
+			// Data files of an earlier render with the same genome, tracks and GC settings are linked instead of written again.
+			// Native rendering needs the data in memory, so it does not reuse them. Comparative plots are always written.
+			Map<String, String[]> dataTracks = dataTracks(parameters);
+			boolean reuse = dataDirCache.isEnabled() && circos.isComparative() == false && (nativeRenderer == false || featureStreaming);
+			String dataKey = reuse ? dataKey(parameters, circos, dataTracks) : null;
+			DataDirCache.Entry reusable = (dataKey != null) ? dataDirCache.lookup(dataKey) : null;
+			Map<String, Double> trackGaps = (reusable != null) ? reuseDataFiles(circos, dataTracks, reusable, timings) : null;
+			long dataCreated = (trackGaps != null) ? reusable.getCreated() : System.currentTimeMillis();
+			// Data of a failed or timed out query is drawn empty, but neither the data files nor the image are reused later
+			boolean complete = true;
+			long start;
+			if (trackGaps != null) {
+				metrics.increment("data_reused", 1);
 			}
+			else {
+				if (reusable != null) {
+					try {
+						ImageCache.deleteDirectory(tmpFolderName + DIR_DATA);
+						Files.createDirectory(Paths.get(tmpFolderName + DIR_DATA));
+					}
+					catch (IOException e) {
+						e.printStackTrace();
+						deleteImageDir(tmpFolderName);
+						return null;
+					}
+				}
 
-			// Store image size parameter from form
-			if (parameters.containsKey("image_dimensions") && parameters.get("image_dimensions").equals("") == false) {
-				circos.setImageSize(Integer.parseInt(parameters.get("image_dimensions").toString()));
-			}
+				// Collect genome data using Solr API for PATRIC
+				complete = this.collectGenomeData(circos, dataTracks, timings);
+				if (circos.getGenomeName() == null) {
+					logger.error("Genome {} could not be found", circos.getGenomeId());
+					deleteImageDir(tmpFolderName);
+					return null;
+				}
+
+				start = System.nanoTime();
+				computeGCProfiles(circos);
+				timings.stage("gc_compute", start);
+				start = System.nanoTime();
+				trackGaps = binFeatureTracks(circos);
+				timings.stage("lod_binning", start);
+
+				// Simple plots are drawn in-process, straight from the data in memory
+				if (nativeRenderer && SvgRenderer.isSupported(circos, parameters, featureStreaming)) {
+					try (Writer svg = Files.newBufferedWriter(Paths.get(tmpFolderName, "circos.svg"), StandardCharsets.UTF_8);
+							Writer html = Files.newBufferedWriter(Paths.get(tmpFolderName, "circos.html"), StandardCharsets.UTF_8)) {
+						start = System.nanoTime();
+						new SvgRenderer(circos).render(createPlotData(circos), svg, html);
+						timings.stage("native_render", start);
+						return circos.getUuid();
+					}
+					catch (IOException e) {
+						logger.error("Native rendering failed, falling back to circos: {}", e.getMessage());
+					}
+				}
 
-			// Convert track width parameter to percentage and store it
-			if (parameters.containsKey("track_width")) {
-				circos.setTrackWidth((float) (Integer.parseInt(parameters.get("track_width").toString()) / 100.0));
+				// Create data files for Circos
+				createCircosDataFiles(parameters, circos, timings);
 			}
 
-			// Collect genome data using Solr API for PATRIC
-			circos.setGenomeData(this.getGenomeData(parameters));
+			// Config files are written for every request, they hold the presentation parameters
+			start = System.nanoTime();
+			createCircosConfigFiles(circos);
+			timings.stage("config_templates", start);
 
-			// Create temp directory for this image's data
-			String tmpFolderName = circos.getTmpDir();
+			// Reuse the image of an identical request rendered before
+			String requestHash = null;
 			try {
-				Files.createDirectory(Paths.get(tmpFolderName));
+				start = System.nanoTime();
+				requestHash = imageCache.hash(circos, DIR_CONFIG, DIR_DATA);
+				String cachedImageId = imageCache.lookup(requestHash);
+				timings.stage("image_hash", start);
+				if (cachedImageId != null) {
+					logger.info("Reusing image {} for request {}", cachedImageId, requestHash);
+					ImageCache.deleteDirectory(tmpFolderName);
+					if (dataKey != null && complete) {
+						dataDirCache.record(dataKey, cachedImageId, trackGaps, circos.getGcSkewMin(), circos.getGcSkewMax(), dataCreated);
+					}
+					return cachedImageId;
+				}
 			}
 			catch (IOException e) {
-				e.printStackTrace();
-				return null;
+				logger.error(e.getMessage());
 			}
 
-			// Create data and config files for Circos
-			createCircosDataFiles(parameters, circos);
-			createCircosConfigFiles(circos);
 
 			// Run Circos script to generate final image
 			// `circos -conf #{folder_name}/circos_configs/circos.conf -debug_group summary,timer > circos.log.out`
-			String command = "circos -conf " + tmpFolderName + DIR_CONFIG + "/circos.conf -debug_group summary,timer";
 			try {
-				logger.info("Starting Circos script: " + command);
-				Process p = Runtime.getRuntime().exec(command);
-				p.waitFor();
-				logger.info(IOUtils.toString(p.getInputStream()));
+				start = System.nanoTime();
+				CircosProcessRunner.Result result = workerPool.render(tmpFolderName + DIR_CONFIG + "/circos.conf");
+				timings.stage("circos_process", start);
+				if (result.isSuccess() == false) {
+					logger.error("Circos script failed for image {}: {}", circos.getUuid(), result.getOutput());
+					deleteImageDir(tmpFolderName);
+					return null;
+				}
 			}
-			catch (Exception e) {
+			catch (IOException e) {
 				e.printStackTrace();
+				deleteImageDir(tmpFolderName);
+				return null;
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				deleteImageDir(tmpFolderName);
+				return null;
+			}
+			if (complete == false) {
+				logger.warn("Image {} is missing data of failed Solr queries, it is not reused", circos.getUuid());
+			}
+			else {
+				if (dataKey != null) {
+					dataDirCache.record(dataKey, circos.getUuid(), trackGaps, circos.getGcSkewMin(), circos.getGcSkewMax(), dataCreated);
+				}
+				if (requestHash != null) {
+					imageCache.record(requestHash, circos);
+				}
 			}
 
 			return circos.getUuid();
 		}
 	}
 
-	private Map<String, List<Map<String, Object>>> getGenomeData(Map<String, Object> parameters) {
-		String gId = parameters.get("gid").toString();
+	/**
+	 * True if gid has the form of a PATRIC genome id
+	 */
+	static boolean isGenomeId(String gid) {
+		return GENOME_ID.matcher(gid).matches();
+	}
+
+	/**
+	 * Removes the directory of an image that could not be created
+	 */
+	private void deleteImageDir(String tmpFolderName) {
+		try {
+			if (Files.exists(Paths.get(tmpFolderName))) {
+				ImageCache.deleteDirectory(tmpFolderName);
+			}
+		}
+		catch (IOException e) {
+			logger.error("Image directory {} could not be deleted: {}", tmpFolderName, e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads the genome and the presentation and GC options of a request. Returns null if the gid is not a genome id.
+	 */
+	private Circos createCircos(Map<String, Object> parameters) {
+		Object gid = parameters.get("gid");
+		if (gid == null || isGenomeId(gid.toString()) == false) {
+			logger.error("Invalid gid: {}", gid);
+			return null;
+		}
+		// create instance
+		Circos circos = new Circos(appDir);
+		circos.setGenomeId(gid.toString());
+
+		// Record whether to include GC content track or not
+		if (parameters.containsKey("gc_content_plot_type")) {
+			circos.setGcContentPlotType(parameters.get("gc_content_plot_type").toString());
+		}
+		if (parameters.containsKey("gc_skew_plot_type")) {
+			circos.setGcSkewPlotType(parameters.get("gc_skew_plot_type").toString());
+		}
+		if (parameters.containsKey("gc_skew_cumulative")) {
+			circos.setGcSkewCumulative(parameters.get("gc_skew_cumulative").equals("on"));
+		}
+
+		// Store GC window and step size. Step defaults to the window size, which gives non-overlapping windows
+		if (parameters.containsKey("gc_window_size") && parameters.get("gc_window_size").equals("") == false) {
+			int windowSize = Integer.parseInt(parameters.get("gc_window_size").toString());
+			if (windowSize > 0) {
+				circos.setGcWindowSize(windowSize);
+				circos.setGcStepSize(windowSize);
+			}
+		}
+		if (parameters.containsKey("gc_step_size") && parameters.get("gc_step_size").equals("") == false) {
+			int stepSize = Integer.parseInt(parameters.get("gc_step_size").toString());
+			if (stepSize > 0) {
+				circos.setGcStepSize(stepSize);
+			}
+		}
+		// Every window costs memory in the cached profiles and a line in the data files, so tiny windows and steps are raised to
+		// at least circos.gc.minWindow bases and a tenth of the window
+		int windowSize = Math.max(circos.getGcWindowSize(), gcMinWindow);
+		int stepSize = Math.max(circos.getGcStepSize(), (windowSize + 9) / 10);
+		if (windowSize != circos.getGcWindowSize() || stepSize != circos.getGcStepSize()) {
+			logger.warn("GC window {} and step {} raised to {} and {}", circos.getGcWindowSize(), circos.getGcStepSize(), windowSize, stepSize);
+			circos.setGcWindowSize(windowSize);
+			circos.setGcStepSize(stepSize);
+		}
+
+		// Record whether to include outer track or not
+		if (parameters.containsKey("include_outer_track")) {
+			circos.setIncludeOuterTrack(parameters.get("include_outer_track").equals("on"));
+		}
+
+		// Store image size parameter from form
+		if (parameters.containsKey("image_dimensions") && parameters.get("image_dimensions").equals("") == false) {
+			circos.setImageSize(Integer.parseInt(parameters.get("image_dimensions").toString()));
+		}
+
+		// Convert track width parameter to percentage and store it
+		if (parameters.containsKey("track_width")) {
+			circos.setTrackWidth((float) (Integer.parseInt(parameters.get("track_width").toString()) / 100.0));
+		}
+
+		// Genomes drawn in the same plot and linked to gid by a protein family field, up to circos.compare.maxGenomes in all
+		if (parameters.containsKey("compare_gids")) {
+			List<String> compareGids = new ArrayList<>();
+			for (String compareGid : parameters.get("compare_gids").toString().trim().split("[,\\s]+")) {
+				if (isGenomeId(compareGid) && compareGid.equals(circos.getGenomeId()) == false && compareGids.contains(compareGid) == false) {
+					compareGids.add(compareGid);
+				}
+			}
+			if (compareGids.size() >= compareMaxGenomes) {
+				logger.warn("Comparing {} with the first {} of {} genomes", circos.getGenomeId(), compareMaxGenomes - 1, compareGids.size());
+				compareGids = new ArrayList<>(compareGids.subList(0, Math.max(0, compareMaxGenomes - 1)));
+			}
+			circos.setCompareGenomeIds(compareGids);
+		}
+		Object familyField = parameters.get("link_family");
+		circos.setFamilyField(FAMILY_FIELDS.contains(familyField) ? familyField.toString() : compareFamilyField);
+		return circos;
+	}
+
+	/**
+	 * Prefetches the Solr data of several genomes rendered with the same parameters into the genome data cache, see
+	 * {@link GenomeDataCache#prefetch}. Sequences are only fetched for GC tracks that were not precomputed.
+	 */
+	void prefetch(List<String> gids, Map<String, Object> parameters) {
+		if (gids.isEmpty()) {
+			return;
+		}
+		long start = System.nanoTime();
+		Map<String, Object> options = new LinkedHashMap<>(parameters);
+		options.put("gid", gids.get(0));
+		Circos circos = createCircos(options);
+		List<String> withSequence = new ArrayList<>();
+		if (circos.getGcContentPlotType() != null || circos.getGcSkewPlotType() != null) {
+			for (String gid : gids) {
+				if (genomeDataCache.hasStoredGCProfiles(gid, circos.getGcWindowSize(), circos.getGcStepSize()) == false) {
+					withSequence.add(gid);
+				}
+			}
+		}
+		// Streamed tracks go straight from Solr to the track files
+		List<String[]> featureQueries = featureStreaming ? new ArrayList<String[]>() : new ArrayList<>(dataTracks(parameters).values());
+		genomeDataCache.prefetch(gids, withSequence, featureQueries);
+		metrics.record("batch_prefetch", start);
+	}
+
+	/**
+	 * Feature tracks of the request in plot order, default tracks first, each with its feature type, strand and keyword query
+	 */
+	@SuppressWarnings("unchecked")
+	Map<String, String[]> dataTracks(Map<String, Object> parameters) {
+		Map<String, String[]> tracks = new LinkedHashMap<>();
 		List<String> defaultDataTracks = new ArrayList<>();
 		defaultDataTracks.addAll(Arrays.asList(new String[] { "cds_forward", "cds_reverse", "rna_forward", "rna_reverse", "misc_forward",
 				"misc_reverse" }));
-		Map<String, List<Map<String, Object>>> genomeData = new LinkedHashMap<>();
 
 		// Iterate over each checked off data type
 		Iterator<String> paramKeys = (Iterator<String>) parameters.keySet().iterator();
@@ -149,7 +454,7 @@ public class CircosGenerator {
 			String featureType = parameter.split("_")[0];
 			String strand = parameter.split("_")[1].equals("forward") ? "+" : "-";
 
-			genomeData.put(parameter, circosData.getFeatures(gId, featureType, strand, null));
+			tracks.put(parameter, new String[] { featureType, strand, null });
 		}
 
 		// Create a set of all the entered custom track numbers
@@ -165,7 +470,7 @@ public class CircosGenerator {
 			}
 		}
 
-		// Gather data for each custom track
+		// Query of each custom track
 		for (Integer trackNum : trackNums) {
 			String customTrackName = "custom_track_" + trackNum;
 			String featureType = parameters.get("custom_track_type_" + trackNum).toString();
@@ -185,170 +490,604 @@ public class CircosGenerator {
 			if (parameters.containsKey("custom_track_keyword_" + trackNum)) {
 				keywords = parameters.get("custom_track_keyword_" + trackNum).toString();
 			}
-			genomeData.put(customTrackName, circosData.getFeatures(gId, featureType, strand, keywords));
+			tracks.put(customTrackName, new String[] { featureType, strand, keywords });
+		}
+
+		return tracks;
+	}
+
+	/**
+	 * Describes everything the data files are made from: the genome, the feature track queries and the GC settings. Requests
+	 * with uploaded files have no key, their files are moved into the image directory.
+	 */
+	private String dataKey(Map<String, Object> parameters, Circos circos, Map<String, String[]> dataTracks) {
+		for (Object value : parameters.values()) {
+			if (value instanceof TrackUpload && ((TrackUpload) value).isEmpty() == false) {
+				return null;
+			}
+		}
+		StringBuilder key = new StringBuilder(circos.getGenomeId());
+		for (Map.Entry<String, String[]> track : dataTracks.entrySet()) {
+			key.append('\n').append(track.getKey()).append('\t').append(Arrays.toString(track.getValue()));
 		}
-		return genomeData;
+		key.append("\ngc_content=").append(circos.getGcContentPlotType() != null);
+		key.append(" gc_skew=").append(circos.getGcSkewPlotType() != null);
+		key.append(" window=").append(circos.getGcWindowSize());
+		key.append(" step=").append(circos.getGcStepSize());
+		key.append(" cumulative=").append(circos.isGcSkewCumulative());
+		key.append(" streaming=").append(featureStreaming);
+		return key.toString();
 	}
 
-	private void createCircosDataFiles(Map<String, Object> parameters, Circos circos) {
+	/**
+	 * Links the data files of an earlier render into the data directory of this request. Only the genome name and the
+	 * accession lengths are fetched, for the karyotype and the binning resolution. Tracks binned at another resolution than
+	 * before, because the image size or track width changed, are binned again from the genome data cache. Returns the gaps the
+	 * tracks are binned at, or null if a file could not be reused.
+	 */
+	private Map<String, Double> reuseDataFiles(Circos circos, Map<String, String[]> dataTracks, DataDirCache.Entry reusable,
+			Metrics.Request timings) {
+		String gId = circos.getGenomeId();
+		String dirData = circos.getTmpDir() + DIR_DATA;
+		long deadline = System.currentTimeMillis() + solrTimeout;
+		Future<String> genomeName = submitGenomeName(gId, timings);
+		Future<List<Map<String, Object>>> accessions = submitAccessions(gId, false, timings);
+		Map<String, FeatureTrack> genomeData = new LinkedHashMap<>();
+		for (String track : dataTracks.keySet()) {
+			genomeData.put(track, new FeatureTrack());
+		}
+		circos.setGenomeData(genomeData);
+		circos.setGenomeName(await(genomeName, deadline, "genome name"));
+		List<Map<String, Object>> accessionList = await(accessions, deadline, "accessions");
+		if (circos.getGenomeName() == null || accessionList == null) {
+			return null;
+		}
+		circos.setAccessions(accessionList);
+		circos.setGcProfiles(new ArrayList<GCProfile>());
+		circos.setGcSkewRange(reusable.getGcSkewMin(), reusable.getGcSkewMax());
+
+		long start = System.nanoTime();
+		List<String> files = new ArrayList<>(Arrays.asList("karyotype.txt", "large.tiles.txt"));
+		if (circos.getGcContentPlotType() != null) {
+			files.add("gc.content.txt");
+		}
+		if (circos.getGcSkewPlotType() != null) {
+			files.add("gc.skew.txt");
+		}
+		Map<String, Double> trackGaps = binningGaps(circos);
+		List<String> rebin = new ArrayList<>();
+		for (Map.Entry<String, Double> track : trackGaps.entrySet()) {
+			if (track.getValue().equals(reusable.getTrackGap(track.getKey()))) {
+				files.add(trackFileName(track.getKey()).substring(1));
+			}
+			else {
+				rebin.add(track.getKey());
+			}
+		}
+		// Files are linked before any track is fetched again, so a failed link leaves no query writing into the data directory
+		// the caller deletes for a full render
+		for (String file : files) {
+			if (dataDirCache.link(reusable, file, dirData) == false) {
+				return null;
+			}
+		}
+		Map<String, Future<FeatureTrack>> rebinned = new LinkedHashMap<>();
+		for (String track : rebin) {
+			String[] query = dataTracks.get(track);
+			rebinned.put(track, submitFeatures(gId, query[0], query[1], query[2], dirData + trackFileName(track), isStreaming(circos),
+					timings));
+		}
+		for (Map.Entry<String, Future<FeatureTrack>> track : rebinned.entrySet()) {
+			FeatureTrack features = await(track.getValue(), deadline, "features of " + track.getKey());
+			if (features == null) {
+				for (Future<FeatureTrack> future : rebinned.values()) {
+					future.cancel(true);
+				}
+				return null;
+			}
+			double gap = trackGaps.get(track.getKey());
+			writeTrack(track.getKey(), (gap > 0) ? FeatureBinner.bin(features, gap) : features, dirData, timings);
+		}
+		timings.stage("data_reuse", start);
+		logger.info("Reused {} data files of {}, binned {} tracks again", files.size(), reusable.getDataDir(), rebinned.size());
+		return trackGaps;
+	}
 
-		// Create folder for all data files
+	/**
+	 * Sends all Solr queries of one request at the same time and waits for them before any file is written. Each query is
+	 * given circos.solr.timeout seconds from the moment it was submitted. Returns false if a query failed or timed out; its
+	 * track is left empty.
+	 */
+	private boolean collectGenomeData(Circos circos, Map<String, String[]> dataTracks, Metrics.Request timings) {
+		if (circos.isComparative()) {
+			return collectComparativeData(circos, dataTracks, timings);
+		}
+		String gId = circos.getGenomeId();
 		String dirData = circos.getTmpDir() + DIR_DATA;
+		long deadline = System.currentTimeMillis() + solrTimeout;
+
+		Future<String> genomeName = submitGenomeName(gId, timings);
+		// Sequences are only needed for GC tracks that were not precomputed
+		boolean gcPlots = circos.getGcContentPlotType() != null || circos.getGcSkewPlotType() != null;
+		boolean withSequence = gcPlots && genomeDataCache.hasStoredGCProfiles(gId, circos.getGcWindowSize(), circos.getGcStepSize()) == false;
+		Future<List<Map<String, Object>>> accessions = submitAccessions(gId, withSequence, timings);
+
+		// Futures are kept in track order so the resulting map has the same order as before
+		Map<String, Future<FeatureTrack>> trackFutures = new LinkedHashMap<>();
+		for (Map.Entry<String, String[]> track : dataTracks.entrySet()) {
+			String[] query = track.getValue();
+			trackFutures.put(track.getKey(), submitFeatures(gId, query[0], query[1], query[2], dirData + trackFileName(track.getKey()),
+					featureStreaming, timings));
+		}
+
+		boolean complete = true;
+		Map<String, FeatureTrack> genomeData = new LinkedHashMap<>();
+		for (Map.Entry<String, Future<FeatureTrack>> track : trackFutures.entrySet()) {
+			FeatureTrack features = await(track.getValue(), deadline, "features of " + track.getKey());
+			complete &= features != null;
+			if (features == null && featureStreaming) {
+				writeEmptyTrack(dirData + trackFileName(track.getKey()));
+			}
+			genomeData.put(track.getKey(), (features != null) ? features : new FeatureTrack());
+		}
+		circos.setGenomeData(genomeData);
+		circos.setGenomeName(await(genomeName, deadline, "genome name"));
+		List<Map<String, Object>> accessionList = await(accessions, deadline, "accessions");
+		complete &= accessionList != null;
+		circos.setAccessions((accessionList != null) ? accessionList : new LinkedList<Map<String, Object>>());
+		logger.info("Solr connection pool: {}, genome data cache: {}", circosData.getPoolStats(), genomeDataCache.getStats());
+		return complete;
+	}
+
+	/**
+	 * Like collectGenomeData for the genome and the genomes it is compared with, whose feature tracks and accessions follow its
+	 * own in the order of the genomes. The protein families of all genomes are fetched with one query. Compared genomes that
+	 * cannot be found are left out of the plot, a failed query of a genome that was found makes the data incomplete.
+	 */
+	private boolean collectComparativeData(Circos circos, Map<String, String[]> dataTracks, Metrics.Request timings) {
+		List<String> gids = circos.getGenomeIds();
+		long deadline = System.currentTimeMillis() + solrTimeout;
+		boolean gcPlots = circos.getGcContentPlotType() != null || circos.getGcSkewPlotType() != null;
+
+		Future<Map<String, FamilyTrack>> families = submitFamilies(gids, circos.getFamilyField(), timings);
+		Map<String, Future<String>> genomeNames = new LinkedHashMap<>();
+		Map<String, Future<List<Map<String, Object>>>> accessions = new LinkedHashMap<>();
+		Map<String, Map<String, Future<FeatureTrack>>> trackFutures = new LinkedHashMap<>();
+		for (String gid : gids) {
+			genomeNames.put(gid, submitGenomeName(gid, timings));
+			boolean withSequence = gcPlots && genomeDataCache.hasStoredGCProfiles(gid, circos.getGcWindowSize(), circos.getGcStepSize()) == false;
+			accessions.put(gid, submitAccessions(gid, withSequence, timings));
+			Map<String, Future<FeatureTrack>> genomeTracks = new LinkedHashMap<>();
+			for (Map.Entry<String, String[]> track : dataTracks.entrySet()) {
+				String[] query = track.getValue();
+				genomeTracks.put(track.getKey(), submitFeatures(gid, query[0], query[1], query[2], null, false, timings));
+			}
+			trackFutures.put(gid, genomeTracks);
+		}
+
+		boolean complete = true;
+		List<String> found = new ArrayList<>();
+		List<Map<String, Object>> accessionList = new ArrayList<>();
+		for (String gid : gids) {
+			String genomeName = await(genomeNames.get(gid), deadline, "genome name of " + gid);
+			List<Map<String, Object>> genomeAccessions = await(accessions.get(gid), deadline, "accessions of " + gid);
+			if (genomeName == null || genomeAccessions == null || genomeAccessions.isEmpty()) {
+				logger.warn("Genome {} could not be found, it is left out of the plot", gid);
+				for (Future<FeatureTrack> track : trackFutures.get(gid).values()) {
+					track.cancel(true);
+				}
+				continue;
+			}
+			if (gid.equals(circos.getGenomeId())) {
+				circos.setGenomeName(genomeName);
+			}
+			// Cached accessions are shared between requests, so each one is copied to label it with its genome
+			String color = GENOME_COLORS[gids.indexOf(gid) % GENOME_COLORS.length];
+			for (Map<String, Object> accession : genomeAccessions) {
+				Map<String, Object> labelled = new HashMap<>(accession);
+				labelled.put("gid", gid);
+				labelled.put("genome_name", genomeName);
+				labelled.put("color", color);
+				accessionList.add(labelled);
+			}
+			found.add(gid);
+		}
+		circos.setAccessions(accessionList);
+
+		Map<String, FeatureTrack> genomeData = new LinkedHashMap<>();
+		for (String track : dataTracks.keySet()) {
+			FeatureTrack merged = new FeatureTrack();
+			for (String gid : found) {
+				FeatureTrack features = await(trackFutures.get(gid).get(track), deadline, "features of " + track + " of " + gid);
+				complete &= features != null;
+				for (int i = 0; features != null && i < features.size(); i++) {
+					merged.add(features.getAccession(i), features.getStart(i), features.getEnd(i), features.getId(i));
+				}
+			}
+			genomeData.put(track, merged);
+		}
+		circos.setGenomeData(genomeData);
+
+		Map<String, FamilyTrack> allFamilies = await(families, deadline, "protein families");
+		complete &= allFamilies != null;
+		Map<String, FamilyTrack> genomeFamilies = new LinkedHashMap<>();
+		for (String gid : found) {
+			if (allFamilies != null && allFamilies.containsKey(gid)) {
+				genomeFamilies.put(gid, allFamilies.get(gid));
+			}
+		}
+		circos.setFamilies(genomeFamilies);
+		logger.info("Solr connection pool: {}, genome data cache: {}", circosData.getPoolStats(), genomeDataCache.getStats());
+		return complete;
+	}
+
+	/**
+	 * True if feature tracks are written while they are fetched. The tracks of a comparative plot are merged from several
+	 * genomes, so they are always kept in memory.
+	 */
+	private boolean isStreaming(Circos circos) {
+		return featureStreaming && circos.isComparative() == false;
+	}
+
+	/**
+	 * Query stages are timed from submission, so they include the wait for a free Solr thread. Cached results count as well.
+	 * Streamed features are written to a .part file next to the data directory, which is moved to trackFile only when the query
+	 * succeeded and was not cancelled. A failed or timed out query leaves no track file.
+	 */
+	private Future<FeatureTrack> submitFeatures(final String gId, final String featureType, final String strand, final String keyword,
+			final String trackFile, boolean streaming, final Metrics.Request timings) {
+		final long start = System.nanoTime();
+		if (streaming) {
+			// Write each feature to the track file as it arrives; the track itself stays empty in memory
+			return solrExecutor.submit(new Callable<FeatureTrack>() {
+				@Override
+				public FeatureTrack call() throws Exception {
+					Path track = Paths.get(trackFile);
+					// Outside the data directory, so neither circos nor the image hash see a partial track
+					Path part = track.getParent().resolveSibling(track.getFileName() + ".part");
+					try {
+						long count;
+						try (final CircosDataWriter writer = new CircosDataWriter(part.toString())) {
+							count = circosData.streamFeatures(gId, featureType, strand, keyword, new FeatureHandler() {
+								@Override
+								public void feature(String accession, int start, int end, long featureId) throws IOException {
+									writer.writeFeature(accession, start, end, featureId);
+								}
+							});
+						}
+						if (Thread.currentThread().isInterrupted()) {
+							throw new InterruptedException("Streaming to " + trackFile + " was cancelled");
+						}
+						Files.move(part, track, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+						logger.info("Streamed {} features to {}", count, trackFile);
+						metrics.increment("feature_rows", count);
+					}
+					finally {
+						Files.deleteIfExists(part);
+					}
+					timings.stage("solr_features", start);
+					return new FeatureTrack();
+				}
+			});
+		}
+		return solrExecutor.submit(new Callable<FeatureTrack>() {
+			@Override
+			public FeatureTrack call() throws Exception {
+				FeatureTrack track = genomeDataCache.getFeatures(gId, featureType, strand, keyword);
+				timings.stage("solr_features", start);
+				metrics.increment("feature_rows", track.size());
+				return track;
+			}
+		});
+	}
+
+	/**
+	 * Writes an empty track file in place of a streamed track whose query failed, so circos still finds the file
+	 */
+	private void writeEmptyTrack(String trackFile) {
 		try {
-			Files.createDirectory(Paths.get(dirData));
+			new CircosDataWriter(trackFile).close();
 		}
 		catch (IOException e) {
-			e.printStackTrace();
+			logger.error("Empty track {} could not be written: {}", trackFile, e.getMessage());
 		}
-		Map<String, List<Map<String, Object>>> genomeData = circos.getGenomeData();
-		Iterator<String> iter = genomeData.keySet().iterator();
-		while (iter.hasNext()) {
-			String track = iter.next();
-			List<Map<String, Object>> featureData = genomeData.get(track);
+	}
 
-			// Create a Circos data file for each selected feature
-			logger.info("Writing data file for track, {}", track);
+	/**
+	 * File name has the following format: feature.strand.txt e.g. cds.forward.txt, rna.reverse.txt
+	 */
+	private String trackFileName(String track) {
+		return "/" + track.replace("_", ".") + ".txt";
+	}
 
-			// File name has the following format: feature.strand.txt e.g. cds.forward.txt, rna.reverse.txt
-			String fileName = "/" + track.replace("_", ".") + ".txt";
-			try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(dirData + fileName)))) {
-				for (Map<String, Object> gene : featureData) {
-					writer.format("%s\t%d\t%d\tid=%d\n", gene.get("accession"), gene.get("start_max"), gene.get("end_min"), gene.get("na_feature_id"));
+	private Future<List<Map<String, Object>>> submitAccessions(final String gId, final boolean withSequence, final Metrics.Request timings) {
+		final long start = System.nanoTime();
+		return solrExecutor.submit(new Callable<List<Map<String, Object>>>() {
+			@Override
+			public List<Map<String, Object>> call() {
+				List<Map<String, Object>> accessions = genomeDataCache.getAccessions(gId, withSequence);
+				timings.stage("solr_accessions", start);
+				for (Map<String, Object> accession : accessions) {
+					if (accession.containsKey("sequence")) {
+						metrics.increment("sequence_bases", ((CharSequence) accession.get("sequence")).length());
+					}
 				}
+				return accessions;
 			}
-			catch (IOException e) {
-				e.printStackTrace();
+		});
+	}
+
+	private Future<Map<String, FamilyTrack>> submitFamilies(final List<String> gids, final String familyField, final Metrics.Request timings) {
+		final long start = System.nanoTime();
+		return solrExecutor.submit(new Callable<Map<String, FamilyTrack>>() {
+			@Override
+			public Map<String, FamilyTrack> call() {
+				Map<String, FamilyTrack> families = genomeDataCache.getFamilies(gids, familyField);
+				timings.stage("solr_families", start);
+				for (FamilyTrack track : families.values()) {
+					metrics.increment("feature_rows", track.size());
+				}
+				return families;
+			}
+		});
+	}
+
+	private Future<String> submitGenomeName(final String gId, final Metrics.Request timings) {
+		final long start = System.nanoTime();
+		return solrExecutor.submit(new Callable<String>() {
+			@Override
+			public String call() {
+				String genomeName = genomeDataCache.getGenomeName(gId);
+				timings.stage("solr_genome_name", start);
+				return genomeName;
+			}
+		});
+	}
+
+	/**
+	 * Waits for a Solr query until the request deadline. Returns null and cancels the query if it failed or timed out.
+	 */
+	private <T> T await(Future<T> future, long deadline, String description) {
+		try {
+			return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException e) {
+			logger.error("Solr query for {} timed out", description);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e) {
+			logger.error("Solr query for " + description + " failed", e.getCause());
+		}
+		future.cancel(true);
+		return null;
+	}
+
+	/**
+	 * Computes GC content and GC skew together from one prefix-count index per accession, shared by both plot types. Accessions
+	 * are computed in parallel, profiles come back in the same order as the accessions.
+	 */
+	private void computeGCProfiles(Circos circos) {
+		List<GCProfile> gcProfiles = new ArrayList<>();
+		if ((circos.getGcContentPlotType() != null || circos.getGcSkewPlotType() != null) && circos.isComparative()) {
+			// Profiles are cached per genome, so the accessions are computed genome by genome
+			Map<String, List<Map<String, Object>>> genomeAccessions = new LinkedHashMap<>();
+			for (Map<String, Object> accession : circos.getAccessions()) {
+				String gid = accession.get("gid").toString();
+				if (genomeAccessions.containsKey(gid) == false) {
+					genomeAccessions.put(gid, new ArrayList<Map<String, Object>>());
+				}
+				genomeAccessions.get(gid).add(accession);
+			}
+			for (Map.Entry<String, List<Map<String, Object>>> genome : genomeAccessions.entrySet()) {
+				gcProfiles.addAll(genomeDataCache.getGCProfiles(genome.getKey(), genome.getValue(), circos.getGcWindowSize(),
+						gcStepSize(genome.getKey(), genome.getValue(), circos)));
+			}
+		}
+		else if (circos.getGcContentPlotType() != null || circos.getGcSkewPlotType() != null) {
+			gcProfiles = genomeDataCache.getGCProfiles(circos.getGenomeId(), circos.getAccessions(), circos.getGcWindowSize(),
+					gcStepSize(circos.getGenomeId(), circos.getAccessions(), circos));
+		}
+		circos.setGcProfiles(gcProfiles);
+
+		// Cumulative skew is not bounded by [-1, 1], so keep its range for the plot configuration
+		if (circos.getGcSkewPlotType() != null && circos.isGcSkewCumulative()) {
+			float skewMin = 0.0f;
+			float skewMax = 0.0f;
+			for (GCProfile profile : gcProfiles) {
+				for (int i = 0; i < profile.size(); i++) {
+					skewMin = Math.min(skewMin, profile.getCumulativeSkew(i));
+					skewMax = Math.max(skewMax, profile.getCumulativeSkew(i));
+				}
+			}
+			circos.setGcSkewRange(skewMin, skewMax);
+		}
+	}
+
+	/**
+	 * Step of the GC windows of one genome, raised so the genome has at most circos.gc.maxWindows windows. Stored profiles are
+	 * read at the requested step, their sequence was not fetched.
+	 */
+	private int gcStepSize(String gid, List<Map<String, Object>> accessions, Circos circos) {
+		int stepSize = circos.getGcStepSize();
+		if (genomeDataCache.hasStoredGCProfiles(gid, circos.getGcWindowSize(), stepSize)) {
+			return stepSize;
+		}
+		long genomeLength = 0;
+		for (Map<String, Object> accession : accessions) {
+			genomeLength += ((Number) accession.get("length")).longValue();
+		}
+		if (genomeLength / stepSize > gcMaxWindows) {
+			int raised = (int) Math.min(Integer.MAX_VALUE, (genomeLength + gcMaxWindows - 1) / gcMaxWindows);
+			logger.warn("GC step {} of genome {} raised to {}, at most {} windows", stepSize, gid, raised, gcMaxWindows);
+			return raised;
+		}
+		return stepSize;
+	}
+
+	/**
+	 * Gap in bases below which features of each feature track are merged: circos.lod.pixels pixels along the track radius, or 0
+	 * if tracks are not binned
+	 */
+	private Map<String, Double> binningGaps(Circos circos) {
+		Map<String, Double> gaps = new LinkedHashMap<>();
+		if (lodPixels <= 0 || isStreaming(circos)) {
+			for (String track : circos.getGenomeData().keySet()) {
+				gaps.put(track, 0.0);
+			}
+			return gaps;
+		}
+		long karyotypeLength = 0;
+		for (Map<String, Object> accession : circos.getAccessions()) {
+			karyotypeLength += ((Number) accession.get("length")).longValue();
+		}
+
+		// Ideograms are drawn at 0.85r of the image radius (ideogram.conf) and track radii are relative to them
+		for (Map<String, String> plot : createPlotData(circos).get("tileplots")) {
+			if (circos.getGenomeData().containsKey(plot.get("track"))) {
+				double radius = Float.parseFloat(plot.get("r1").replace("r", "")) * 0.85 * circos.getImageSize();
+				gaps.put(plot.get("track"), lodPixels * FeatureBinner.basesPerPixel(karyotypeLength, circos.getAccessions().size(), radius));
+			}
+		}
+		return gaps;
+	}
+
+	/**
+	 * Replaces each feature track by its features merged down to the resolution of the track, see {@link #binningGaps}. Tracks
+	 * streamed to disk are written as they are. Returns the gap of each track.
+	 */
+	private Map<String, Double> binFeatureTracks(Circos circos) {
+		Map<String, Double> gaps = binningGaps(circos);
+		Map<String, FeatureTrack> genomeData = circos.getGenomeData();
+		for (Map.Entry<String, Double> gap : gaps.entrySet()) {
+			FeatureTrack features = genomeData.get(gap.getKey());
+			if (gap.getValue() <= 0 || features.size() == 0) {
+				continue;
+			}
+			FeatureTrack binned = FeatureBinner.bin(features, gap.getValue());
+			logger.info("Binned track {} at {} bases per pixel: {} features into {} tiles", gap.getKey(), Math.round(gap.getValue() / lodPixels),
+					features.size(), binned.size());
+			genomeData.put(gap.getKey(), binned);
+		}
+		return gaps;
+	}
+
+	/**
+	 * Writes the Circos data file of one feature track
+	 */
+	private void writeTrack(String track, FeatureTrack featureData, String dirData, Metrics.Request timings) {
+		logger.info("Writing data file for track, {}", track);
+
+		long start = System.nanoTime();
+		try (CircosDataWriter writer = new CircosDataWriter(dirData + trackFileName(track))) {
+			for (int i = 0; i < featureData.size(); i++) {
+				writer.writeFeature(featureData.getAccession(i), featureData.getStart(i), featureData.getEnd(i), featureData.getId(i));
 			}
 		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		timings.stage("write_track", start);
+	}
+
+	private void createCircosDataFiles(Map<String, Object> parameters, Circos circos, Metrics.Request timings) {
+
+		String dirData = circos.getTmpDir() + DIR_DATA;
+		Map<String, FeatureTrack> genomeData = circos.getGenomeData();
+		Iterator<String> iter = genomeData.keySet().iterator();
+		while (iter.hasNext() && isStreaming(circos) == false) {
+			String track = iter.next();
+
+			// Create a Circos data file for each selected feature
+			writeTrack(track, genomeData.get(track), dirData, timings);
+		}
 
-		String genome = circosData.getGenomeName(circos.getGenomeId());
+		String genome = circos.getGenomeName();
 
-		List<Map<String, Object>> accessions = circosData.getAccessions(circos.getGenomeId());
+		List<Map<String, Object>> accessions = circos.getAccessions();
 
 		// Write karyotype file
 		logger.info("Creating karyotype file for genome,{}", genome);
-		try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(dirData + "/karyotype.txt")))) {
+		long start = System.nanoTime();
+		try (CircosDataWriter writer = new CircosDataWriter(dirData + "/karyotype.txt")) {
+			String genomeLabel = genome.replace(" ", "_");
 			for (Map<String, Object> accession : accessions) {
-				writer.format("chr\t-\t %s\t %s\t 0\t %d\t grey\n", accession.get("accession"), genome.replace(" ", "_"), accession.get("length"));
+				// Accessions of a comparative plot carry the name and color of their own genome
+				writer.write("chr\t-\t ");
+				writer.write(accession.get("accession").toString());
+				writer.write("\t ");
+				writer.write(accession.containsKey("genome_name") ? accession.get("genome_name").toString().replace(" ", "_") : genomeLabel);
+				writer.write("\t 0\t ");
+				writer.write(((Number) accession.get("length")).longValue());
+				writer.write("\t ");
+				writer.write(accession.containsKey("color") ? accession.get("color").toString() : "grey");
+				writer.write('\n');
 			}
 		}
 		catch (IOException e) {
 			e.printStackTrace();
 		}
 
-		// Default window size for GC calculations
-		int defaultWindowSize = 2000;
+		timings.stage("write_karyotype", start);
+
+		List<GCProfile> gcProfiles = circos.getGcProfiles();
 
 		// Create GC content data file
 		if (circos.getGcContentPlotType() != null) {
 			logger.info("Creating data file for GC content");
+			start = System.nanoTime();
 
-			Map<String, Float> gcContentValues = new LinkedHashMap<>();
-
-			for (Map<String, Object> accession : accessions) {
-				String accessionID = accession.get("accession").toString();
-				String sequence = accession.get("sequence").toString();
-				int totalSeqLength = sequence.length();
-
-				// Iterate over each window_size-sized block and calculate its GC content.
-				// For instance, if the sequence length were 1,234,567 and the window size were 1000, we would iterate 1234 times, with the last
-				// iteration being the window from 1,234,001 to 1,234,566
-				for (int i = 0; i < (totalSeqLength / defaultWindowSize); i++) {
-
-					// Only use 0 as start index for first iteration, otherwise with a window_size of 1000, start should be something like 1001, 2001,
-					// and so on.
-					int startIndex = (i == 0) ? 0 : (i * defaultWindowSize + 1);
-
-					// End index should either be 'window_size' greater than the start or if we are at the last iteration, the end of the sequence.
-					int endIndex = Math.min((i + 1) * defaultWindowSize, totalSeqLength - 1);
-
-					int currentWindowSize = endIndex - startIndex;
-
-					// Store number of 'g' and 'c' characters from the sequence
-					Pattern pattern = Pattern.compile("[gcGC]");
-					Matcher matcher = pattern.matcher(sequence.subSequence(startIndex, endIndex));
-					int gcCount;
-					for (gcCount = 0; matcher.find(); gcCount++)
-						;
-					float gcPercentage = (gcCount / (float) currentWindowSize);
-
-					// Store percentage in gc_content_values hash as value with the range from the start index to the end index as the key
-					gcContentValues.put(accessionID + ":" + startIndex + ".." + endIndex, gcPercentage); // .round(5)
-				}
-			}
-			// Write GC content data for this accession
-			try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(dirData + "/gc.content.txt")))) {
-				Iterator<String> iterGC = gcContentValues.keySet().iterator();
-				while (iterGC.hasNext()) {
-					String range = iterGC.next();
-					String[] rangeId = range.split(":");
-					String[] rangeLoc = rangeId[1].split("\\.\\.");
-					// logger.info("{}, {}, {}", accession, strIndex, endIndex);
-					writer.format("%s\t%s\t%s\t%f\n", rangeId[0], rangeLoc[0], rangeLoc[1], gcContentValues.get(range));
+			try (CircosDataWriter writer = new CircosDataWriter(dirData + "/gc.content.txt")) {
+				for (GCProfile profile : gcProfiles) {
+					for (int i = 0; i < profile.size(); i++) {
+						writer.writeValue(profile.getAccession(), profile.getStart(i), profile.getEnd(i), profile.getContent(i));
+					}
 				}
 			}
 			catch (IOException e) {
 				e.printStackTrace();
 			}
-
-			genomeData.put("gc_content", new ArrayList<Map<String, Object>>());
+			timings.stage("write_gc", start);
 		}
 
 		// Create GC skew data file
 		if (circos.getGcSkewPlotType() != null) {
 			logger.info("Creating data file for GC skew");
+			start = System.nanoTime();
 
-			Map<String, Float> gcSkewValues = new LinkedHashMap<>();
-			for (Map<String, Object> accession : accessions) {
-				String accessionId = accession.get("accession").toString();
-				String sequence = accession.get("sequence").toString();
-				int totalSeqLength = sequence.length();
-
-				for (int i = 0; i < (totalSeqLength / defaultWindowSize); i++) {
-					int startIndex = (i == 0) ? 0 : (i * defaultWindowSize + 1);
-					int endIndex = Math.min((i + 1) * defaultWindowSize, totalSeqLength - 1);
-
-					Pattern ptrnGContent = Pattern.compile("[gG]");
-					Pattern ptrnCContent = Pattern.compile("[cC]");
-					Matcher mtchrG = ptrnGContent.matcher(sequence.subSequence(startIndex, endIndex));
-					Matcher mtchrC = ptrnCContent.matcher(sequence.subSequence(startIndex, endIndex));
-
-					int gCount, cCount;
-					for (gCount = 0; mtchrG.find(); gCount++)
-						;
-					for (cCount = 0; mtchrC.find(); cCount++)
-						;
-					float gcSkew = (float) (gCount - cCount) / (gCount + cCount);
-					gcSkewValues.put(accessionId + ":" + startIndex + ".." + endIndex, gcSkew);
-				}
-			}
-			// Write GC skew data for this accession
-			try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(dirData + "/gc.skew.txt")));) {
-				Iterator<String> iterGC = gcSkewValues.keySet().iterator();
-				while (iterGC.hasNext()) {
-					String range = iterGC.next();
-					String[] rangeId = range.split(":");
-					String[] rangeLoc = rangeId[1].split("\\.\\.");
-					writer.format("%s\t%s\t%s\t%f\n", rangeId[0], rangeLoc[0], rangeLoc[1], gcSkewValues.get(range));
+			try (CircosDataWriter writer = new CircosDataWriter(dirData + "/gc.skew.txt")) {
+				for (GCProfile profile : gcProfiles) {
+					for (int i = 0; i < profile.size(); i++) {
+						float value = circos.isGcSkewCumulative() ? profile.getCumulativeSkew(i) : profile.getSkew(i);
+						writer.writeValue(profile.getAccession(), profile.getStart(i), profile.getEnd(i), value);
+					}
 				}
 			}
 			catch (IOException e) {
 				e.printStackTrace();
 			}
-
-			genomeData.put("gc_skew", new ArrayList<Map<String, Object>>());
+			timings.stage("write_gc", start);
 		}
 		// Write "large tiles" file
 		logger.info("Creating large tiles file for genome, {}", genome);
-		try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(dirData + "/large.tiles.txt")))) {
+		start = System.nanoTime();
+		try (CircosDataWriter writer = new CircosDataWriter(dirData + "/large.tiles.txt")) {
 			for (Map<String, Object> accession : accessions) {
-				writer.format("%s\t0\t%d\n", accession.get("accession"), accession.get("length"));
+				writer.write(accession.get("accession").toString());
+				writer.write("\t0\t");
+				writer.write(((Number) accession.get("length")).longValue());
+				writer.write('\n');
 			}
-			writer.close();
 		}
 		catch (IOException e) {
 			e.printStackTrace();
 		}
+		timings.stage("write_large_tiles", start);
+
+		if (circos.isComparative()) {
+			writeLinks(circos, dirData, timings);
+		}
 
 		// Process upload files
 		List<Map<String, Object>> fileupload = new ArrayList<Map<String, Object>>();
@@ -358,205 +1097,167 @@ public class CircosGenerator {
 			String key = paramKeys.next();
 			if (key.matches("file_(\\d+)$")) {
 				int num = Integer.parseInt(key.substring(key.lastIndexOf("_") + 1));
-				FileItem item = (FileItem) parameters.get("file_" + num);
-				// logger.info("{} matches, filename={}", key, item.getName().toString());
-				if (item.getName().toString().equals("") == false) {
+				TrackUpload upload = (TrackUpload) parameters.get("file_" + num);
+				if (upload.isEmpty() == false) {
 					trackNums.add(num);
 				}
 			}
 		}
 		for (Integer trackNum : trackNums) {
 			if (parameters.containsKey("file_" + trackNum)) {
-				FileItem item = (FileItem) parameters.get("file_" + trackNum);
+				TrackUpload upload = (TrackUpload) parameters.get("file_" + trackNum);
+				String fileName = "user.upload." + trackNum + ".txt";
+				String plotType = parameters.get("file_plot_type_" + trackNum).toString();
+
+				// Rows were checked while the file was received
+				String error = upload.getError(plotType);
+				if (error != null) {
+					logger.warn("Skipping upload: {}", error);
+					continue;
+				}
+				start = System.nanoTime();
 				try {
-					String fileName = "user.upload." + trackNum + ".txt";
-					String plotType = parameters.get("file_plot_type_" + trackNum).toString();
-					boolean isValid = true;
-
-					try (BufferedReader br = new BufferedReader(new InputStreamReader(item.getInputStream()))) {
-						String line;
-						while ((line = br.readLine()) != null && isValid == true) {
-							String[] tab = line.split("\t");
-							if (plotType.equals("tile")) {
-								if (tab.length == 3) {
-								}
-								else if (tab[3].contains("id=") == false) {
-									isValid = false;
-								}
-								else {
-									isValid = false;
-								}
-							}
-							else if (plotType.equals("line") || plotType.equals("histogram") || plotType.equals("heatmap")) {
-								try {
-									Float.parseFloat(tab[3]);
-								}
-								catch (NumberFormatException | NullPointerException ex) {
-									isValid = false;
-								}
-							}
-							else {
-								isValid = false;
-							}
-						}
+					// Numeric tracks with more rows than pixels around the image are re-binned, others are moved as they are
+					long targetBins = Math.round(2 * Math.PI * 0.85 * circos.getImageSize() * uploadPointsPerPixel);
+					if (uploadReduce != null && plotType.equals("tile") == false && upload.getRows() > targetBins) {
+						new TrackReducer(circos.getAccessions(), targetBins, uploadReduce).reduce(upload.getPath(), dirData + "/" + fileName);
+						upload.delete();
 					}
-					catch (IOException e) {
-						e.printStackTrace();
-					}
-					if (isValid) {
-						item.write(new File(dirData + "/" + fileName));
-						Map<String, Object> file = new HashMap<>();
-						file.put("file_name", fileName);
-						file.put("plot_type", plotType);
-						fileupload.add(file);
+					else {
+						upload.moveTo(Paths.get(dirData, fileName));
 					}
+					Map<String, Object> file = new HashMap<>();
+					file.put("file_name", fileName);
+					file.put("plot_type", plotType);
+					fileupload.add(file);
 				}
-				catch (Exception e) {
+				catch (IOException e) {
 					e.printStackTrace();
 				}
+				timings.stage("write_upload", start);
 			}
 		}
 		if (trackNums.size() > 0) {
-			genomeData.put("user_upload", fileupload);
+			circos.setUserUploads(fileupload);
 		}
 	}
 
-	private void createCircosConfigFiles(Circos circos) {
-		Map<String, List<Map<String, Object>>> genomeData = circos.getGenomeData();
+	/**
+	 * Writes the links between the features of the compared genome and the features of the same family in the other genomes,
+	 * see {@link LinkBuilder}. Links take the color of the other genome.
+	 */
+	private void writeLinks(Circos circos, String dirData, Metrics.Request timings) {
+		logger.info("Creating links file for {} genomes by {}", circos.getFamilies().size(), circos.getFamilyField());
+		long start = System.nanoTime();
+		Map<String, String> colors = new HashMap<>();
+		for (Map<String, Object> accession : circos.getAccessions()) {
+			colors.put(accession.get("gid").toString(), accession.get("color") + "_a3");
+		}
+		Map<String, FamilyTrack> others = new LinkedHashMap<>(circos.getFamilies());
+		FamilyTrack reference = others.remove(circos.getGenomeId());
+		try (CircosDataWriter writer = new CircosDataWriter(dirData + "/links.txt")) {
+			int links = (reference != null) ? LinkBuilder.write(reference, others, colors, compareMaxCopies, compareMaxLinks, writer) : 0;
+			logger.info("Linked {} features of {} to {} genomes", links, circos.getGenomeId(), others.size());
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		timings.stage("write_links", start);
+	}
+
+	/**
+	 * Builds the tile and non-tile plot lists used by the plots.conf template and by the native SVG renderer. Each plot keeps the
+	 * name of its track under "track".
+	 */
+	Map<String, List<Map<String, String>>> createPlotData(Circos circos) {
+		// Feature tracks come first, followed by the GC tracks and the user uploaded files
+		List<String> tracks = new ArrayList<>(circos.getGenomeData().keySet());
+		if (circos.getGcContentPlotType() != null) {
+			tracks.add("gc_content");
+		}
+		if (circos.getGcSkewPlotType() != null) {
+			tracks.add("gc_skew");
+		}
+		if (circos.getUserUploads() != null) {
+			tracks.add("user_upload");
+		}
 		List<String> colors = new LinkedList<>();
 		colors.addAll(Arrays.asList(new String[] { "vdblue", "vdgreen", "lgreen", "vdred", "lred", "vdpurple", "lpurple", "vdorange", "lorange",
 				"vdyellow", "lyellow" }));
 		String gId = circos.getGenomeId();
 		String dataDir = circos.getTmpDir() + DIR_DATA;
-		String confDir = circos.getTmpDir() + DIR_CONFIG;
 
-		// Create folder for config files
-		// Copy static conf files to temp directory
-		try {
-			Files.createDirectory(Paths.get(confDir));
-			Files.copy(Paths.get(appDir + "/conf_templates/ideogram.conf"), Paths.get(confDir + "/ideogram.conf"));
-			Files.copy(Paths.get(appDir + "/conf_templates/ticks.conf"), Paths.get(confDir + "/ticks.conf"));
+		List<Map<String, String>> tilePlots = new ArrayList<>();
+		float currentRadius = 1.0f;
+		float trackThickness = circos.getImageSize() * circos.getTrackWidth();
+
+		// Build hash for large tile data because it is not included in the
+		// genomic data
+
+		if (circos.isIncludeOuterTrack()) {
+			Map<String, String> largeTileData = new HashMap<>();
+			largeTileData.put("file", dataDir + "/large.tiles.txt");
+			largeTileData.put("thickness", Float.toString((trackThickness / 2)) + "p");
+			largeTileData.put("type", "tile");
+			largeTileData.put("color", colors.remove(0));
+			largeTileData.put("r1", Float.toString(currentRadius) + "r");
+			largeTileData.put("r0", Float.toString((currentRadius -= 0.02)) + "r");
+			largeTileData.put("gid", gId);
+			largeTileData.put("track", "large_tiles");
+			tilePlots.add(largeTileData);
 		}
-		catch (IOException e) {
-			logger.error(e.getMessage());
+		else {
+			colors.remove(0);
 		}
 
-		logger.info("Writing config file for plots");
-		// Open final plot configuration file for creation
-		try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(confDir + "/plots.conf")))) {
-			List<Map<String, String>> tilePlots = new ArrayList<>();
-			float currentRadius = 1.0f;
-			float trackThickness = circos.getImageSize() * circos.getTrackWidth();
-
-			// Build hash for large tile data because it is not included in the
-			// genomic data
-
-			if (circos.isIncludeOuterTrack()) {
-				Map<String, String> largeTileData = new HashMap<>();
-				largeTileData.put("file", dataDir + "/large.tiles.txt");
-				largeTileData.put("thickness", Float.toString((trackThickness / 2)) + "p");
-				largeTileData.put("type", "tile");
-				largeTileData.put("color", colors.remove(0));
-				largeTileData.put("r1", Float.toString(currentRadius) + "r");
-				largeTileData.put("r0", Float.toString((currentRadius -= 0.02)) + "r");
-				largeTileData.put("gid", gId);
-				tilePlots.add(largeTileData);
-			}
-			else {
-				colors.remove(0);
-			}
-
-			// Space in between tracks
-			float trackBuffer = circos.getTrackWidth() - 0.03f;
-
-			List<Map<String, String>> nonTilePlots = new ArrayList<>();
-
-			// Build hash of plot data for Mustache to render
-			Iterator<String> keys = genomeData.keySet().iterator();
-			while (keys.hasNext()) {
-				String track = keys.next();
-				Map<String, String> plotData = new HashMap<>();
-
-				// Handle user uploaded files
-				if (track.contains("user_upload")) {
-					List<Map<String, Object>> files = genomeData.get(track);
-
-					for (Map<String, Object> file : files) {
-						plotData = new HashMap<>();
-						String plotType = file.get("plot_type").toString();
-
-						if (plotType.equals("tile") || plotType.equals("heatmap")) {
-							plotData.put("file", dataDir + "/" + file.get("file_name"));
-							plotData.put("thickness", Float.toString(trackThickness) + "p");
-							plotData.put("type", plotType);
-							if (plotType.equals("tile")) {
-								plotData.put("color", colors.remove(0));
-							}
-							else {
-								plotData.put("color", "rdbu-10-div");
-							}
-							float r1 = (currentRadius -= (0.01 + trackBuffer));
-							float r0 = (currentRadius -= (0.04 + trackBuffer));
-							plotData.put("r1", Float.toString(r1) + "r");
-							plotData.put("r0", Float.toString(r0) + "r");
-							plotData.put("gid", gId);
-
-							tilePlots.add(plotData);
+		// Space in between tracks
+		float trackBuffer = circos.getTrackWidth() - 0.03f;
+
+		List<Map<String, String>> nonTilePlots = new ArrayList<>();
+
+		// Build hash of plot data for Mustache to render
+		Iterator<String> keys = tracks.iterator();
+		while (keys.hasNext()) {
+			String track = keys.next();
+			Map<String, String> plotData = new HashMap<>();
+			plotData.put("track", track);
+
+			// Handle user uploaded files
+			if (track.contains("user_upload")) {
+				List<Map<String, Object>> files = circos.getUserUploads();
+
+				for (Map<String, Object> file : files) {
+					plotData = new HashMap<>();
+					plotData.put("track", track);
+					String plotType = file.get("plot_type").toString();
+
+					if (plotType.equals("tile") || plotType.equals("heatmap")) {
+						plotData.put("file", dataDir + "/" + file.get("file_name"));
+						plotData.put("thickness", Float.toString(trackThickness) + "p");
+						plotData.put("type", plotType);
+						if (plotType.equals("tile")) {
+							plotData.put("color", colors.remove(0));
 						}
 						else {
-							plotData.put("file", dataDir + "/" + file.get("file_name"));
-							plotData.put("type", plotType);
-							plotData.put("color", colors.remove(0));
-							float r1 = (currentRadius -= (0.01 + trackBuffer));
-							float r0 = (currentRadius -= (0.10 + trackBuffer));
-							plotData.put("r1", Float.toString(r1) + "r");
-							plotData.put("r0", Float.toString(r0) + "r");
-							plotData.put("min", "0.0");
-							plotData.put("max", "1.0");
-							if (plotType.equals("histogram")) {
-								plotData.put("extendbin", "extend_bin = no");
-							}
-							else {
-								plotData.put("extendbin", "");
-							}
-							String baseColor = plotData.get("color").replaceAll("^[vld]+", "");
-							plotData.put("plotbgcolor", "vvl" + baseColor);
-							// plotData.put("plotbgcolor", "white"); // temporary value
-
-							nonTilePlots.add(plotData);
+							plotData.put("color", "rdbu-10-div");
 						}
-					}
-				}
-				else if (track.contains("gc")) { // gc_content or gc_skew
-					String plotType;
-					if (track.equals("gc_content")) {
-						plotType = circos.getGcContentPlotType();
-					}
-					else {
-						plotType = circos.getGcSkewPlotType();
-					}
-					if (plotType.equals("heatmap")) {
-						plotData.put("file", dataDir + "/" + track.replace("_", ".") + ".txt");
-						plotData.put("thickness", Float.toString(trackThickness) + "p");
-						plotData.put("type", plotType);
-						plotData.put("color", "rdbu-10-div");
 						float r1 = (currentRadius -= (0.01 + trackBuffer));
 						float r0 = (currentRadius -= (0.04 + trackBuffer));
 						plotData.put("r1", Float.toString(r1) + "r");
 						plotData.put("r0", Float.toString(r0) + "r");
-
 						plotData.put("gid", gId);
+
 						tilePlots.add(plotData);
 					}
 					else {
-						plotData.put("file", dataDir + "/" + track.replace("_", ".") + ".txt");
+						plotData.put("file", dataDir + "/" + file.get("file_name"));
 						plotData.put("type", plotType);
 						plotData.put("color", colors.remove(0));
 						float r1 = (currentRadius -= (0.01 + trackBuffer));
 						float r0 = (currentRadius -= (0.10 + trackBuffer));
 						plotData.put("r1", Float.toString(r1) + "r");
 						plotData.put("r0", Float.toString(r0) + "r");
-						plotData.put("min", (track.equals("gc_skew") ? "-1.0" : "0.0"));
+						plotData.put("min", "0.0");
 						plotData.put("max", "1.0");
 						if (plotType.equals("histogram")) {
 							plotData.put("extendbin", "extend_bin = no");
@@ -571,27 +1272,107 @@ public class CircosGenerator {
 						nonTilePlots.add(plotData);
 					}
 				}
+			}
+			else if (track.contains("gc")) { // gc_content or gc_skew
+				String plotType;
+				if (track.equals("gc_content")) {
+					plotType = circos.getGcContentPlotType();
+				}
 				else {
-					// handle default/custom tracks
+					plotType = circos.getGcSkewPlotType();
+				}
+				if (plotType.equals("heatmap")) {
 					plotData.put("file", dataDir + "/" + track.replace("_", ".") + ".txt");
 					plotData.put("thickness", Float.toString(trackThickness) + "p");
-					plotData.put("type", "tile");
-					plotData.put("color", colors.remove(0));
+					plotData.put("type", plotType);
+					plotData.put("color", "rdbu-10-div");
 					float r1 = (currentRadius -= (0.01 + trackBuffer));
 					float r0 = (currentRadius -= (0.04 + trackBuffer));
 					plotData.put("r1", Float.toString(r1) + "r");
 					plotData.put("r0", Float.toString(r0) + "r");
+
 					plotData.put("gid", gId);
 					tilePlots.add(plotData);
 				}
+				else {
+					plotData.put("file", dataDir + "/" + track.replace("_", ".") + ".txt");
+					plotData.put("type", plotType);
+					plotData.put("color", colors.remove(0));
+					float r1 = (currentRadius -= (0.01 + trackBuffer));
+					float r0 = (currentRadius -= (0.10 + trackBuffer));
+					plotData.put("r1", Float.toString(r1) + "r");
+					plotData.put("r0", Float.toString(r0) + "r");
+					if (track.equals("gc_skew")) {
+						plotData.put("min", Float.toString(circos.getGcSkewMin()));
+						plotData.put("max", Float.toString(circos.getGcSkewMax()));
+					}
+					else {
+						plotData.put("min", "0.0");
+						plotData.put("max", "1.0");
+					}
+					if (plotType.equals("histogram")) {
+						plotData.put("extendbin", "extend_bin = no");
+					}
+					else {
+						plotData.put("extendbin", "");
+					}
+					String baseColor = plotData.get("color").replaceAll("^[vld]+", "");
+					plotData.put("plotbgcolor", "vvl" + baseColor);
+					// plotData.put("plotbgcolor", "white"); // temporary value
+
+					nonTilePlots.add(plotData);
+				}
+			}
+			else {
+				// handle default/custom tracks
+				plotData.put("file", dataDir + "/" + track.replace("_", ".") + ".txt");
+				plotData.put("thickness", Float.toString(trackThickness) + "p");
+				plotData.put("type", "tile");
+				plotData.put("color", colors.remove(0));
+				float r1 = (currentRadius -= (0.01 + trackBuffer));
+				float r0 = (currentRadius -= (0.04 + trackBuffer));
+				plotData.put("r1", Float.toString(r1) + "r");
+				plotData.put("r0", Float.toString(r0) + "r");
+				plotData.put("gid", gId);
+				tilePlots.add(plotData);
 			}
+		}
+
+		// Links of a comparative plot are drawn inside the innermost track
+		List<Map<String, String>> links = new ArrayList<>();
+		if (circos.isComparative()) {
+			Map<String, String> linkData = new HashMap<>();
+			linkData.put("file", dataDir + "/links.txt");
+			linkData.put("radius", Float.toString(currentRadius - 0.02f) + "r");
+			links.add(linkData);
+		}
+
+		// plots configuration file
+		Map<String, List<Map<String, String>>> data = new HashMap<>();
+		data.put("tileplots", tilePlots);
+		data.put("nontileplots", nonTilePlots);
+		data.put("links", links);
+		return data;
+	}
 
-			// plots configuration file
-			Map<String, List<Map<String, String>>> data = new HashMap<>();
-			data.put("tileplots", tilePlots);
-			data.put("nontileplots", nonTilePlots);
+	private void createCircosConfigFiles(Circos circos) {
+		String confDir = circos.getTmpDir() + DIR_CONFIG;
+
+		// Create folder for config files
+		// Copy static conf files to temp directory
+		try {
+			Files.createDirectory(Paths.get(confDir));
+			Files.copy(Paths.get(appDir + "/conf_templates/ideogram.conf"), Paths.get(confDir + "/ideogram.conf"));
+			Files.copy(Paths.get(appDir + "/conf_templates/ticks.conf"), Paths.get(confDir + "/ticks.conf"));
+		}
+		catch (IOException e) {
+			logger.error(e.getMessage());
+		}
 
-			tmplPlotConf.execute(data, writer);
+		logger.info("Writing config file for plots");
+		// Open final plot configuration file for creation
+		try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(confDir + "/plots.conf")))) {
+			tmplPlotConf.execute(createPlotData(circos), writer);
 		}
 		catch (IOException e) {
 			logger.error(e.getMessage());
@@ -0,0 +1,267 @@
+package org.patricbrc.circos;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the external circos script. At most circos.process.max processes run at the same time, each one is killed after
+ * circos.process.timeout seconds, and stdout/stderr are drained while the process runs so a verbose run cannot block on a full
+ * pipe. The "-debug_group summary,timer" output is parsed into per-stage timings.
+ */
+public class CircosProcessRunner {
+
+	private static final Logger logger = LoggerFactory.getLogger(CircosProcessRunner.class);
+
+	// debuggroup timer 2.51s <stage> 0.123 s
+	private static final Pattern TIMER_LINE = Pattern.compile("^debuggroup\\s+timer\\s+[\\d.]+s\\s+(.*?)\\s+([\\d.]+)\\s*(ms|s)$");
+
+	// debuggroup summary 2.51s <message>
+	private static final Pattern SUMMARY_LINE = Pattern.compile("^debuggroup\\s+summary\\s+([\\d.]+)s\\s+(.*)$");
+
+	// How long the output is still read once the process exited or was killed
+	private static final long DRAIN_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+
+	private final int maxProcesses;
+
+	private final Semaphore permits;
+
+	private final long timeout;
+
+	private final ExecutorService ioExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "circos-process-io");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final AtomicLong runs = new AtomicLong();
+
+	private final AtomicLong timeouts = new AtomicLong();
+
+	private final AtomicLong failures = new AtomicLong();
+
+	// Total seconds spent per stage over all runs
+	private final Map<String, Double> stageTotals = new LinkedHashMap<>();
+
+	public CircosProcessRunner() {
+		maxProcesses = Integer.parseInt(System.getProperty("circos.process.max", Integer.toString(Runtime.getRuntime().availableProcessors())));
+		permits = new Semaphore(maxProcesses, true);
+		timeout = TimeUnit.SECONDS.toMillis(Long.parseLong(System.getProperty("circos.process.timeout", "300")));
+	}
+
+	public Result run(String... command) throws IOException, InterruptedException {
+		permits.acquire();
+		try {
+			return execute(command);
+		}
+		finally {
+			permits.release();
+		}
+	}
+
+	private Result execute(String[] command) throws IOException, InterruptedException {
+		logger.info("Starting Circos script: {}", Arrays.toString(command));
+		long start = System.currentTimeMillis();
+		runs.incrementAndGet();
+
+		final Process p = new ProcessBuilder(command).start();
+		Future<List<String>> stdout = ioExecutor.submit(drain(p.getInputStream()));
+		Future<List<String>> stderr = ioExecutor.submit(drain(p.getErrorStream()));
+		Future<Integer> exit = ioExecutor.submit(new Callable<Integer>() {
+			@Override
+			public Integer call() throws InterruptedException {
+				return p.waitFor();
+			}
+		});
+
+		Result result = new Result();
+		try {
+			result.exitCode = exit.get(timeout, TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException e) {
+			logger.error("Circos script timed out after {} ms, killing it", timeout);
+			result.timedOut = true;
+			timeouts.incrementAndGet();
+			p.destroy();
+			exit.cancel(true);
+			// A process that ignores the kill, or a child of it, may hold the pipes open, so the readers are not waited for
+			// longer than DRAIN_TIMEOUT
+			closeQuietly(p.getInputStream());
+			closeQuietly(p.getErrorStream());
+			closeQuietly(p.getOutputStream());
+		}
+		catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+		result.elapsed = System.currentTimeMillis() - start;
+
+		long drainDeadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+		result.output = join(stdout, drainDeadline);
+		List<String> errors = join(stderr, drainDeadline);
+		for (String line : errors) {
+			logger.warn("circos: {}", line);
+		}
+		parseTimings(result);
+
+		if (result.exitCode != 0 || result.timedOut) {
+			failures.incrementAndGet();
+		}
+		synchronized (stageTotals) {
+			for (Map.Entry<String, Double> stage : result.stages.entrySet()) {
+				Double total = stageTotals.get(stage.getKey());
+				stageTotals.put(stage.getKey(), ((total != null) ? total : 0.0) + stage.getValue());
+			}
+		}
+		logger.info("Circos script finished with exit code {} in {} ms, stages: {}", result.exitCode, result.elapsed, result.stages);
+		return result;
+	}
+
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("running", maxProcesses - permits.availablePermits());
+		stats.put("waiting", permits.getQueueLength());
+		stats.put("runs", runs.get());
+		stats.put("timeouts", timeouts.get());
+		stats.put("failures", failures.get());
+		synchronized (stageTotals) {
+			stats.put("stageSeconds", new LinkedHashMap<>(stageTotals));
+		}
+		return stats;
+	}
+
+	public void shutdown() {
+		ioExecutor.shutdownNow();
+	}
+
+	/**
+	 * Stage timings come from the timer lines when circos reports them; otherwise each summary step lasts until the next one.
+	 */
+	static void parseTimings(Result result) {
+		String previousStep = null;
+		double previousElapsed = 0;
+		Map<String, Double> summaryStages = new LinkedHashMap<>();
+		for (String line : result.output) {
+			Matcher timer = TIMER_LINE.matcher(line.trim());
+			if (timer.matches()) {
+				double seconds = Double.parseDouble(timer.group(2));
+				result.stages.put(timer.group(1), timer.group(3).equals("ms") ? seconds / 1000 : seconds);
+				continue;
+			}
+			Matcher summary = SUMMARY_LINE.matcher(line.trim());
+			if (summary.matches()) {
+				double elapsed = Double.parseDouble(summary.group(1));
+				if (previousStep != null) {
+					summaryStages.put(previousStep, elapsed - previousElapsed);
+				}
+				previousStep = summary.group(2);
+				previousElapsed = elapsed;
+			}
+		}
+		if (result.stages.isEmpty()) {
+			result.stages.putAll(summaryStages);
+		}
+	}
+
+	private static Callable<List<String>> drain(final InputStream stream) {
+		return new Callable<List<String>>() {
+			@Override
+			public List<String> call() throws IOException {
+				List<String> lines = new ArrayList<>();
+				try (BufferedReader br = new BufferedReader(new InputStreamReader(stream))) {
+					String line;
+					while ((line = br.readLine()) != null) {
+						lines.add(line);
+					}
+				}
+				return lines;
+			}
+		};
+	}
+
+	private static List<String> join(Future<List<String>> lines, long deadline) throws InterruptedException {
+		try {
+			return lines.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException e) {
+			logger.error("Circos output was not closed {} ms after the script ended, giving up on it", DRAIN_TIMEOUT);
+			lines.cancel(true);
+		}
+		catch (ExecutionException e) {
+			logger.error("Circos output could not be read", e.getCause());
+		}
+		return new ArrayList<>();
+	}
+
+	private static void closeQuietly(Closeable stream) {
+		try {
+			stream.close();
+		}
+		catch (IOException e) {
+			logger.debug("Closing a circos process stream failed", e);
+		}
+	}
+
+	public static class Result {
+		int exitCode = -1;
+
+		boolean timedOut = false;
+
+		long elapsed;
+
+		List<String> output = new ArrayList<>();
+
+		Map<String, Double> stages = new LinkedHashMap<>();
+
+		public long getElapsed() {
+			return elapsed;
+		}
+
+		public int getExitCode() {
+			return exitCode;
+		}
+
+		public List<String> getOutput() {
+			return output;
+		}
+
+		/**
+		 * Seconds spent in each circos stage, in the order they were reported
+		 */
+		public Map<String, Double> getStages() {
+			return stages;
+		}
+
+		public boolean isSuccess() {
+			return exitCode == 0 && timedOut == false;
+		}
+
+		public boolean isTimedOut() {
+			return timedOut;
+		}
+	}
+}
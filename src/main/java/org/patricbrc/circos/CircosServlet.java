@@ -2,9 +2,13 @@ package org.patricbrc.circos;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -12,10 +16,12 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadException;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
+import org.json.simple.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,19 +29,66 @@ public class CircosServlet extends HttpServlet {
 
 	private static final long serialVersionUID = 1L;
 
+	private static final int SC_TOO_MANY_REQUESTS = 429;
+
 	private static final Logger logger = LoggerFactory.getLogger(CircosGenerator.class);
 
 	CircosGenerator circosGenerator;
 
+	RenderQueue renderQueue;
+
+	private Path uploadDir;
+
+	private long uploadMaxBytes;
+
+	private long uploadMaxRows;
+
 	public void init(ServletConfig config) throws ServletException {
 		String contextPath = config.getServletContext().getRealPath(File.separator);
 		circosGenerator = new CircosGenerator(contextPath);
+		renderQueue = new RenderQueue(circosGenerator);
+		// Shared with MetricsServlet
+		config.getServletContext().setAttribute(CircosGenerator.class.getName(), circosGenerator);
+		config.getServletContext().setAttribute(RenderQueue.class.getName(), renderQueue);
+		// Uploads are staged next to the images directory so moving them into an image is a rename
+		uploadDir = Paths.get(contextPath, "uploads");
+		uploadMaxBytes = Long.parseLong(System.getProperty("circos.upload.maxBytes", Long.toString(512L * 1024 * 1024)));
+		uploadMaxRows = Long.parseLong(System.getProperty("circos.upload.maxRows", "10000000"));
+		try {
+			Files.createDirectories(uploadDir);
+		}
+		catch (IOException e) {
+			throw new ServletException("Cannot create upload directory " + uploadDir, e);
+		}
 		super.init(config);
 	}
 
+	@Override
+	public void destroy() {
+		renderQueue.shutdown();
+		circosGenerator.shutdown();
+		super.destroy();
+	}
+
+	@SuppressWarnings("unchecked")
 	@Override
 	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 
+		// Job status: /home?jobId=...
+		String jobId = request.getParameter("jobId");
+		if (jobId != null) {
+			RenderJob job = renderQueue.getJob(jobId);
+			if (job == null) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown job " + jobId);
+				return;
+			}
+			JSONObject status = job.toJSON();
+			status.put("queueDepth", renderQueue.getQueueDepth());
+			response.setContentType("application/json");
+			response.getWriter().write(status.toJSONString());
+			return;
+		}
+
 		request.getRequestDispatcher("/jsp/index.jsp").include(request, response);
 	}
 
@@ -44,31 +97,78 @@ public class CircosServlet extends HttpServlet {
 
 		Map<String, Object> parameters = new LinkedHashMap<>();
 		int fileCount = 0;
-		// Parse request before run circosGenerator
+		long start = System.nanoTime();
+		// Parse request before run circosGenerator. Files are validated while they are copied to the staging directory.
 		try {
-			List<FileItem> items = new ServletFileUpload(new DiskFileItemFactory()).parseRequest(request);
-			for (FileItem item : items) {
-				if (item.isFormField()) {
-					parameters.put(item.getFieldName(), item.getString());
-				}
-				else {
-					parameters.put("file_" + fileCount, item);
-					fileCount++;
+			FileItemIterator items = new ServletFileUpload().getItemIterator(request);
+			while (items.hasNext()) {
+				FileItemStream item = items.next();
+				try (InputStream in = item.openStream()) {
+					if (item.isFormField()) {
+						parameters.put(item.getFieldName(), Streams.asString(in));
+					}
+					else {
+						TrackUpload upload = TrackUpload.receive(item.getName(), in, uploadDir, uploadMaxBytes, uploadMaxRows);
+						circosGenerator.metrics.increment("upload_bytes", upload.getBytes());
+						parameters.put("file_" + fileCount, upload);
+						fileCount++;
+					}
 				}
 			}
 		}
 		catch (FileUploadException e) {
+			TrackUpload.deleteAll(parameters);
 			throw new ServletException("Cannot parse multipart reqeust", e);
 		}
+		catch (IOException e) {
+			TrackUpload.deleteAll(parameters);
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+
+		circosGenerator.metrics.record("upload_parse", start);
+
+		// Plot types come after the files in the form, so each file is checked against its plot type once everything is read
+		for (int i = 0; i < fileCount; i++) {
+			TrackUpload upload = (TrackUpload) parameters.get("file_" + i);
+			Object plotType = parameters.get("file_plot_type_" + i);
+			String error = (upload.isEmpty() || plotType == null) ? null : upload.getError(plotType.toString());
+			if (error != null) {
+				logger.info("Rejected upload: {}", error);
+				circosGenerator.metrics.increment("uploads_rejected", 1);
+				TrackUpload.deleteAll(parameters);
+				sendError(response, HttpServletResponse.SC_BAD_REQUEST, error);
+				return;
+			}
+		}
 
 		// Generate Circo Image
 		logger.info("parameters: {}", parameters.toString());
 
-		String imageId = circosGenerator.createCircosImage(parameters);
-		logger.info("imageId:{}", imageId);
-
-		if (imageId != null) {
-			response.getWriter().write("{success: true, \"imageId\":\"" + imageId + "\"}"); // ExtJS return format
+		// Queue the image and return right away, the client polls the job status
+		RenderJob job;
+		try {
+			job = renderQueue.submit(parameters);
+		}
+		catch (RejectedExecutionException e) {
+			logger.warn("Render queue is full: {}", renderQueue.getStats());
+			TrackUpload.deleteAll(parameters);
+			response.setHeader("Retry-After", "30");
+			response.sendError(SC_TOO_MANY_REQUESTS, "Too many images are being generated, please try again later");
+			return;
 		}
+		logger.info("jobId:{}", job.getId());
+
+		response.getWriter().write("{\"success\": true, \"jobId\":\"" + job.getId() + "\"}"); // ExtJS return format
+	}
+
+	@SuppressWarnings("unchecked")
+	private void sendError(HttpServletResponse response, int status, String message) throws IOException {
+		response.setStatus(status);
+		response.setContentType("application/json");
+		JSONObject json = new JSONObject();
+		json.put("success", false);
+		json.put("message", message);
+		response.getWriter().write(json.toJSONString());
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,380 @@
+package org.patricbrc.circos;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of long-lived circos worker processes that already have the Circos modules loaded, so an image does not pay the Perl
+ * startup cost. Workers speak a line protocol on stdin/stdout:
+ *
+ * <pre>
+ * PING               -> PONG
+ * RENDER &lt;conf&gt;      -> circos output lines, then DONE &lt;exit code&gt;
+ * </pre>
+ *
+ * The pool is enabled by setting circos.worker.pool to the number of workers. Workers are health checked with PING when they
+ * have been idle for a while, replaced when they die or time out, and recycled after circos.worker.maxJobs images. When no
+ * worker can be used, images fall back to a one-shot circos process; while no worker is alive at all they fall back at once,
+ * and workers that could not be started are retried in the background every circos.worker.retry seconds.
+ */
+public class CircosWorkerPool {
+
+	private static final Logger logger = LoggerFactory.getLogger(CircosWorkerPool.class);
+
+	private static final long IDLE_CHECK = TimeUnit.SECONDS.toMillis(60);
+
+	// A render waiting for a busy worker checks this often whether any worker is still alive
+	private static final long POLL_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+	private final String[] command;
+
+	private final String circosCommand;
+
+	private final int size;
+
+	private final int maxJobs;
+
+	private final long timeout;
+
+	private final long pingTimeout;
+
+	private final long retryDelay;
+
+	private final CircosProcessRunner fallback;
+
+	private final BlockingQueue<Worker> idle;
+
+	private final ExecutorService ioExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "circos-worker-io");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final ScheduledExecutorService retryExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "circos-worker-retry");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	// Workers started and not destroyed yet, idle or rendering
+	private final AtomicInteger live = new AtomicInteger();
+
+	private final AtomicLong pooledRuns = new AtomicLong();
+
+	private final AtomicLong fallbackRuns = new AtomicLong();
+
+	private final AtomicLong recycled = new AtomicLong();
+
+	private volatile boolean shutdown = false;
+
+	public CircosWorkerPool(String appDir, CircosProcessRunner fallback) {
+		this.fallback = fallback;
+		size = Integer.parseInt(System.getProperty("circos.worker.pool", "0"));
+		maxJobs = Integer.parseInt(System.getProperty("circos.worker.maxJobs", "100"));
+		timeout = TimeUnit.SECONDS.toMillis(Long.parseLong(System.getProperty("circos.process.timeout", "300")));
+		pingTimeout = TimeUnit.SECONDS.toMillis(Long.parseLong(System.getProperty("circos.worker.pingTimeout", "10")));
+		retryDelay = TimeUnit.SECONDS.toMillis(Long.parseLong(System.getProperty("circos.worker.retry", "30")));
+		command = System.getProperty("circos.worker.command", "perl " + appDir + "/WEB-INF/bin/circos-worker.pl").split(" ");
+		circosCommand = System.getProperty("circos.command", "circos");
+		idle = new ArrayBlockingQueue<>(Math.max(size, 1));
+
+		for (int i = 0; i < size; i++) {
+			Worker worker = startWorker();
+			if (worker != null) {
+				idle.add(worker);
+			}
+			else {
+				startLater();
+			}
+		}
+		if (size > 0) {
+			logger.info("Started {} of {} circos workers", idle.size(), size);
+		}
+	}
+
+	public boolean isEnabled() {
+		return size > 0;
+	}
+
+	/**
+	 * Renders with a new circos process, started with circos.command
+	 */
+	private CircosProcessRunner.Result runOnce(String conf) throws IOException, InterruptedException {
+		List<String> args = new ArrayList<>(Arrays.asList(circosCommand.split(" ")));
+		args.addAll(Arrays.asList("-conf", conf, "-debug_group", "summary,timer"));
+		return fallback.run(args.toArray(new String[args.size()]));
+	}
+
+	/**
+	 * Renders the image described by the given circos.conf on a pooled worker, or with a one-shot process if no worker answers.
+	 */
+	public CircosProcessRunner.Result render(String conf) throws IOException, InterruptedException {
+		Worker worker = (size > 0) ? idle.poll() : null;
+		// Wait for a busy worker only as long as there is one
+		long deadline = System.currentTimeMillis() + timeout;
+		while (worker == null && size > 0 && live.get() > 0 && System.currentTimeMillis() < deadline) {
+			worker = idle.poll(Math.min(POLL_INTERVAL, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		}
+		if (worker != null && worker.isHealthy() == false) {
+			discard(worker);
+			worker = startWorker();
+			if (worker == null) {
+				startLater();
+			}
+		}
+		if (worker == null) {
+			fallbackRuns.incrementAndGet();
+			return runOnce(conf);
+		}
+
+		CircosProcessRunner.Result result = null;
+		try {
+			result = worker.render(conf);
+			pooledRuns.incrementAndGet();
+		}
+		finally {
+			release(worker, result);
+		}
+		if (result == null) {
+			fallbackRuns.incrementAndGet();
+			return runOnce(conf);
+		}
+		return result;
+	}
+
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new LinkedHashMap<>();
+		stats.put("workers", (long) size);
+		stats.put("live", (long) live.get());
+		stats.put("idle", (long) idle.size());
+		stats.put("pooledRuns", pooledRuns.get());
+		stats.put("fallbackRuns", fallbackRuns.get());
+		stats.put("recycled", recycled.get());
+		return stats;
+	}
+
+	public void shutdown() {
+		shutdown = true;
+		retryExecutor.shutdownNow();
+		Worker worker;
+		while ((worker = idle.poll()) != null) {
+			discard(worker);
+		}
+		ioExecutor.shutdownNow();
+	}
+
+	private void release(Worker worker, CircosProcessRunner.Result result) {
+		if (shutdown) {
+			discard(worker);
+			return;
+		}
+		if (result == null || result.isTimedOut() || worker.jobs >= maxJobs) {
+			discard(worker);
+			recycled.incrementAndGet();
+			worker = startWorker();
+		}
+		if (worker != null) {
+			idle.offer(worker);
+		}
+		else {
+			startLater();
+		}
+	}
+
+	/**
+	 * Tries to start a worker in place of one that could not be started, after circos.worker.retry seconds and then again
+	 * until it succeeds.
+	 */
+	private void startLater() {
+		if (shutdown) {
+			return;
+		}
+		retryExecutor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (shutdown) {
+					return;
+				}
+				Worker worker = startWorker();
+				if (worker != null) {
+					logger.info("Circos worker started again, {} of {} alive", live.get(), size);
+					idle.offer(worker);
+				}
+				else {
+					startLater();
+				}
+			}
+		}, retryDelay, TimeUnit.MILLISECONDS);
+	}
+
+	private void discard(Worker worker) {
+		worker.destroy();
+		live.decrementAndGet();
+	}
+
+	private Worker startWorker() {
+		try {
+			Worker worker = new Worker(new ProcessBuilder(command).redirectErrorStream(true).start());
+			if (worker.ping()) {
+				live.incrementAndGet();
+				return worker;
+			}
+			logger.error("Circos worker did not answer PING");
+			worker.destroy();
+		}
+		catch (IOException e) {
+			logger.error("Circos worker could not be started: {}", e.getMessage());
+		}
+		return null;
+	}
+
+	private class Worker {
+		final Process process;
+
+		final BufferedWriter in;
+
+		final BufferedReader out;
+
+		int jobs = 0;
+
+		long lastUsed = System.currentTimeMillis();
+
+		Worker(Process process) {
+			this.process = process;
+			in = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
+			out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		}
+
+		boolean isHealthy() {
+			if (isAlive() == false) {
+				return false;
+			}
+			return System.currentTimeMillis() - lastUsed < IDLE_CHECK || ping();
+		}
+
+		boolean ping() {
+			try {
+				String answer = request("PING", new Callable<String>() {
+					@Override
+					public String call() throws IOException {
+						return out.readLine();
+					}
+				}, pingTimeout);
+				return "PONG".equals(answer);
+			}
+			catch (IOException | InterruptedException | TimeoutException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * Returns null if the worker failed, so the image can be retried with a one-shot process.
+		 */
+		CircosProcessRunner.Result render(String conf) throws InterruptedException {
+			jobs++;
+			lastUsed = System.currentTimeMillis();
+			CircosProcessRunner.Result result = new CircosProcessRunner.Result();
+			try {
+				// The reader keeps its own lines, a reader that is still running after a timeout never touches the result
+				List<String> lines = request("RENDER " + conf, new Callable<List<String>>() {
+					@Override
+					public List<String> call() throws IOException {
+						List<String> output = new ArrayList<>();
+						String line;
+						while ((line = out.readLine()) != null) {
+							output.add(line);
+							if (line.startsWith("DONE ")) {
+								return output;
+							}
+						}
+						return null;
+					}
+				}, timeout);
+				if (lines == null) {
+					return null;
+				}
+				String done = lines.remove(lines.size() - 1);
+				result.output = lines;
+				result.exitCode = Integer.parseInt(done.substring("DONE ".length()).trim());
+			}
+			catch (TimeoutException e) {
+				logger.error("Circos worker timed out after {} ms, killing it", timeout);
+				result.timedOut = true;
+			}
+			catch (IOException | NumberFormatException e) {
+				logger.error("Circos worker failed: {}", e.getMessage());
+				return null;
+			}
+			result.elapsed = System.currentTimeMillis() - lastUsed;
+			CircosProcessRunner.parseTimings(result);
+			logger.info("Circos worker finished with exit code {} in {} ms, stages: {}", result.exitCode, result.elapsed, result.stages);
+			return result;
+		}
+
+		private <T> T request(String line, Callable<T> reader, long timeout) throws IOException, InterruptedException,
+				TimeoutException {
+			in.write(line);
+			in.newLine();
+			in.flush();
+			Future<T> answer = ioExecutor.submit(reader);
+			try {
+				return answer.get(timeout, TimeUnit.MILLISECONDS);
+			}
+			catch (TimeoutException e) {
+				answer.cancel(true);
+				destroy();
+				throw e;
+			}
+			catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			}
+		}
+
+		boolean isAlive() {
+			try {
+				process.exitValue();
+				return false;
+			}
+			catch (IllegalThreadStateException e) {
+				return true;
+			}
+		}
+
+		/**
+		 * The worker kills the process group of the image it is rendering when it gets SIGTERM
+		 */
+		void destroy() {
+			process.destroy();
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package org.patricbrc.circos;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers which image directory holds the data files of which data inputs (genome, feature tracks and GC settings), so a
+ * request that only changes presentation parameters, like the image size, track width or GC plot type, can link the files of
+ * the earlier render into its own data directory instead of fetching and writing them again.
+ *
+ * Feature tracks are binned at the resolution of the image, so each track file is recorded with the gap it was binned at and
+ * only reused at the same gap. Entries are dropped after circos.cache.ttl seconds, like the genome data they were made from, and
+ * the least recently used entries are dropped beyond circos.reuse.maxEntries.
+ */
+public class DataDirCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(DataDirCache.class);
+
+	private final Path imagesDir;
+
+	private final boolean enabled;
+
+	private final long ttl;
+
+	private final Map<String, Entry> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong linkedFiles = new AtomicLong();
+
+	public DataDirCache(String appDir) {
+		imagesDir = Paths.get(appDir, "images");
+		enabled = System.getProperty("circos.reuse.enabled", "true").equals("true");
+		ttl = TimeUnit.SECONDS.toMillis(Long.parseLong(System.getProperty("circos.cache.ttl", "86400")));
+		final int maxEntries = Integer.parseInt(System.getProperty("circos.reuse.maxEntries", "1000"));
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, DataDirCache.Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Returns the data directory rendered earlier from the same data inputs, or null if there is none or it was deleted.
+	 */
+	public synchronized Entry lookup(String key) {
+		Entry entry = entries.get(key);
+		if (entry != null && (System.currentTimeMillis() - entry.created > ttl || Files.isDirectory(entry.getDataDir()) == false)) {
+			entries.remove(key);
+			entry = null;
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+		}
+		else {
+			hits.incrementAndGet();
+		}
+		return entry;
+	}
+
+	/**
+	 * Records the data directory of an image, with the gap each feature track was binned at and the range of the cumulative GC
+	 * skew. An entry made from reused files keeps the creation time of the data it came from.
+	 */
+	public synchronized void record(String key, String imageId, Map<String, Double> trackGaps, float gcSkewMin, float gcSkewMax,
+			long created) {
+		entries.put(key, new Entry(imagesDir.resolve(imageId).resolve("data"), new HashMap<>(trackGaps), gcSkewMin, gcSkewMax, created));
+	}
+
+	/**
+	 * Hard links a data file of an earlier image into a new data directory, or copies it where links are not supported. Returns
+	 * false if the file is gone, e.g. deleted by the image disk quota.
+	 */
+	public boolean link(Entry entry, String fileName, String dataDir) {
+		Path source = entry.getDataDir().resolve(fileName);
+		Path target = Paths.get(dataDir, fileName);
+		try {
+			try {
+				Files.createLink(target, source);
+			}
+			catch (UnsupportedOperationException | IOException e) {
+				Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+			linkedFiles.incrementAndGet();
+			return true;
+		}
+		catch (IOException e) {
+			logger.warn("Cannot reuse data file {}: {}", source, e.getMessage());
+			return false;
+		}
+	}
+
+	public synchronized Map<String, Long> getStats() {
+		Map<String, Long> stats = new LinkedHashMap<>();
+		stats.put("hits", hits.get());
+		stats.put("misses", misses.get());
+		stats.put("linkedFiles", linkedFiles.get());
+		stats.put("entries", (long) entries.size());
+		return stats;
+	}
+
+	public static class Entry {
+
+		private final Path dataDir;
+
+		private final Map<String, Double> trackGaps;
+
+		private final float gcSkewMin;
+
+		private final float gcSkewMax;
+
+		private final long created;
+
+		Entry(Path dataDir, Map<String, Double> trackGaps, float gcSkewMin, float gcSkewMax, long created) {
+			this.dataDir = dataDir;
+			this.trackGaps = trackGaps;
+			this.gcSkewMin = gcSkewMin;
+			this.gcSkewMax = gcSkewMax;
+			this.created = created;
+		}
+
+		public Path getDataDir() {
+			return dataDir;
+		}
+
+		/**
+		 * Gap in bases the track was binned at, 0 if it was not binned, null if the directory has no such track
+		 */
+		public Double getTrackGap(String track) {
+			return trackGaps.get(track);
+		}
+
+		public float getGcSkewMin() {
+			return gcSkewMin;
+		}
+
+		public float getGcSkewMax() {
+			return gcSkewMax;
+		}
+
+		public long getCreated() {
+			return created;
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package org.patricbrc.circos;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Features of one genome with the protein family each of them belongs to, the input of {@link LinkBuilder}. Features are added
+ * with their family, getFamily(i) is the family of feature i.
+ */
+public class FamilyTrack extends FeatureTrack {
+
+	private final List<String> families = new ArrayList<>();
+
+	public void add(String accession, int start, int end, long featureId, String family) {
+		add(accession, start, end, featureId);
+		families.add(family);
+	}
+
+	public String getFamily(int i) {
+		return families.get(i);
+	}
+
+	@Override
+	public long getWeight() {
+		return super.getWeight() + 64L * families.size();
+	}
+}
@@ -0,0 +1,45 @@
+package org.patricbrc.circos;
+
+/**
+ * Merges features that are closer together than the resolution of the image into single tiles. At 1000 pixels a bacterial
+ * genome has around a kilobase per pixel along a tile track, so neighbouring genes land on the same pixels and each one would
+ * still cost circos a tile and an image map entry.
+ *
+ * A feature that stays on its own keeps its id, so it can still be clicked. Merged tiles get FeatureTrack.NO_ID and no link.
+ */
+public class FeatureBinner {
+
+	private FeatureBinner() {
+	}
+
+	/**
+	 * Bases covered by one pixel along a track of the given radius in pixels, with the spacing between accessions left out
+	 */
+	public static double basesPerPixel(long karyotypeLength, int accessionCount, double radius) {
+		double spacing = (accessionCount > 1) ? accessionCount * 0.005 : 0;
+		double pixels = 2 * Math.PI * radius * (1 - spacing);
+		return (pixels > 0) ? karyotypeLength / pixels : 0;
+	}
+
+	/**
+	 * Merges runs of features of the same accession whose gaps are smaller than minGap bases. Features must be sorted by accession
+	 * and start, as CircosData returns them.
+	 */
+	public static FeatureTrack bin(FeatureTrack track, double minGap) {
+		FeatureTrack binned = new FeatureTrack();
+		int i = 0;
+		while (i < track.size()) {
+			String accession = track.getAccession(i);
+			int start = track.getStart(i);
+			int end = track.getEnd(i);
+			int j = i + 1;
+			while (j < track.size() && track.getAccession(j).equals(accession) && track.getStart(j) - end < minGap) {
+				end = Math.max(end, track.getEnd(j));
+				j++;
+			}
+			binned.add(accession, start, end, (j - i == 1) ? track.getId(i) : FeatureTrack.NO_ID);
+			i = j;
+		}
+		return binned;
+	}
+}
@@ -0,0 +1,10 @@
+package org.patricbrc.circos;
+
+import java.io.IOException;
+
+/**
+ * Receives features one at a time, in (accession, start) order, as they are read from Solr.
+ */
+public interface FeatureHandler {
+	void feature(String accession, int start, int end, long featureId) throws IOException;
+}
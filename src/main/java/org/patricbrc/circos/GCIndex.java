@@ -0,0 +1,177 @@
+package org.patricbrc.circos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Prefix counts of G and C bases for one sequence. Built once per accession, after which the number of G or C bases in any
+ * range is answered in constant time, so windows of any size and step can be computed without rescanning the sequence.
+ */
+public class GCIndex {
+
+	// gPrefix[i] and cPrefix[i] hold the number of G and C bases in sequence[0, i)
+	private final int[] gPrefix;
+
+	private final int[] cPrefix;
+
+	private GCIndex(int[] gPrefix, int[] cPrefix) {
+		this.gPrefix = gPrefix;
+		this.cPrefix = cPrefix;
+	}
+
+	public static GCIndex build(CharSequence sequence) {
+		int length = sequence.length();
+		int[] gPrefix = new int[length + 1];
+		int[] cPrefix = new int[length + 1];
+
+		int gCount = 0;
+		int cCount = 0;
+		for (int pos = 0; pos < length; pos++) {
+			switch (sequence.charAt(pos)) {
+			case 'G':
+			case 'g':
+				gCount++;
+				break;
+			case 'C':
+			case 'c':
+				cCount++;
+				break;
+			default:
+			}
+			gPrefix[pos + 1] = gCount;
+			cPrefix[pos + 1] = cCount;
+		}
+		return new GCIndex(gPrefix, cPrefix);
+	}
+
+	/**
+	 * Builds the index by splitting the sequence into chunks that are counted in parallel. Must be called from within a
+	 * fork/join task.
+	 */
+	static GCIndex buildParallel(CharSequence sequence, int chunkSize) {
+		int length = sequence.length();
+		if (length <= chunkSize) {
+			return build(sequence);
+		}
+		int[] gPrefix = new int[length + 1];
+		int[] cPrefix = new int[length + 1];
+
+		// Count each chunk relative to its own start
+		List<ChunkCountTask> counts = new ArrayList<>();
+		for (int from = 0; from < length; from += chunkSize) {
+			counts.add(new ChunkCountTask(sequence, gPrefix, cPrefix, from, Math.min(from + chunkSize, length)));
+		}
+		ForkJoinTask.invokeAll(counts);
+
+		// Then shift every chunk by the totals of the chunks before it
+		List<ChunkOffsetTask> offsets = new ArrayList<>();
+		int gOffset = 0;
+		int cOffset = 0;
+		for (ChunkCountTask chunk : counts) {
+			if (gOffset != 0 || cOffset != 0) {
+				offsets.add(new ChunkOffsetTask(gPrefix, cPrefix, chunk.from, chunk.to, gOffset, cOffset));
+			}
+			gOffset += gPrefix[chunk.to];
+			cOffset += cPrefix[chunk.to];
+		}
+		ForkJoinTask.invokeAll(offsets);
+
+		return new GCIndex(gPrefix, cPrefix);
+	}
+
+	public int length() {
+		return gPrefix.length - 1;
+	}
+
+	/**
+	 * Number of G bases in [from, to)
+	 */
+	public int gCount(int from, int to) {
+		return gPrefix[to] - gPrefix[from];
+	}
+
+	/**
+	 * Number of C bases in [from, to)
+	 */
+	public int cCount(int from, int to) {
+		return cPrefix[to] - cPrefix[from];
+	}
+
+	private static class ChunkCountTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final CharSequence sequence;
+
+		private final int[] gPrefix;
+
+		private final int[] cPrefix;
+
+		private final int from;
+
+		private final int to;
+
+		ChunkCountTask(CharSequence sequence, int[] gPrefix, int[] cPrefix, int from, int to) {
+			this.sequence = sequence;
+			this.gPrefix = gPrefix;
+			this.cPrefix = cPrefix;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			int gCount = 0;
+			int cCount = 0;
+			for (int pos = from; pos < to; pos++) {
+				switch (sequence.charAt(pos)) {
+				case 'G':
+				case 'g':
+					gCount++;
+					break;
+				case 'C':
+				case 'c':
+					cCount++;
+					break;
+				default:
+				}
+				gPrefix[pos + 1] = gCount;
+				cPrefix[pos + 1] = cCount;
+			}
+		}
+	}
+
+	private static class ChunkOffsetTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int[] gPrefix;
+
+		private final int[] cPrefix;
+
+		private final int from;
+
+		private final int to;
+
+		private final int gOffset;
+
+		private final int cOffset;
+
+		ChunkOffsetTask(int[] gPrefix, int[] cPrefix, int from, int to, int gOffset, int cOffset) {
+			this.gPrefix = gPrefix;
+			this.cPrefix = cPrefix;
+			this.from = from;
+			this.to = to;
+			this.gOffset = gOffset;
+			this.cOffset = cOffset;
+		}
+
+		@Override
+		protected void compute() {
+			for (int pos = from + 1; pos <= to; pos++) {
+				gPrefix[pos] += gOffset;
+				cPrefix[pos] += cOffset;
+			}
+		}
+	}
+}
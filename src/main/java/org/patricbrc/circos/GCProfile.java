@@ -0,0 +1,62 @@
+package org.patricbrc.circos;
+
+/**
+ * GC content and GC skew values of one accession, stored as parallel primitive arrays indexed by window.
+ */
+public class GCProfile {
+	private final String accession;
+
+	private final int[] starts;
+
+	private final int[] ends;
+
+	private final float[] content;
+
+	private final float[] skew;
+
+	private final float[] cumulativeSkew;
+
+	public GCProfile(String accession, int[] starts, int[] ends, float[] content, float[] skew, float[] cumulativeSkew) {
+		this.accession = accession;
+		this.starts = starts;
+		this.ends = ends;
+		this.content = content;
+		this.skew = skew;
+		this.cumulativeSkew = cumulativeSkew;
+	}
+
+	public String getAccession() {
+		return accession;
+	}
+
+	public float getContent(int window) {
+		return content[window];
+	}
+
+	public float getCumulativeSkew(int window) {
+		return cumulativeSkew[window];
+	}
+
+	public int getEnd(int window) {
+		return ends[window];
+	}
+
+	public float getSkew(int window) {
+		return skew[window];
+	}
+
+	public int getStart(int window) {
+		return starts[window];
+	}
+
+	/**
+	 * Approximate heap size of this profile in bytes
+	 */
+	public long getWeight() {
+		return 128 + 24L * starts.length;
+	}
+
+	public int size() {
+		return starts.length;
+	}
+}
@@ -0,0 +1,81 @@
+package org.patricbrc.circos;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Precomputes GC content and skew profiles of genomes into the {@link GenomeStore}, so requests with one of these window sizes
+ * copy the stored profile and never fetch the sequence. Steps are equal to the window size, the default of the page.
+ *
+ * Usage: GCProfileBuilder [-store dir] [-windows 2000,5000,10000] (gid ... | -gids file)
+ */
+public class GCProfileBuilder {
+
+	private static final Logger logger = LoggerFactory.getLogger(GCProfileBuilder.class);
+
+	public static void main(String[] args) throws IOException {
+		String storeDir = System.getProperty("circos.store.dir", "store");
+		String windows = Integer.toString(GCStatistics.DEFAULT_WINDOW_SIZE) + ",5000,10000";
+		List<String> gids = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-store":
+				storeDir = args[++i];
+				break;
+			case "-windows":
+				windows = args[++i];
+				break;
+			case "-gids":
+				for (String line : Files.readAllLines(Paths.get(args[++i]), StandardCharsets.UTF_8)) {
+					if (line.trim().isEmpty() == false) {
+						gids.add(line.trim());
+					}
+				}
+				break;
+			default:
+				gids.add(args[i]);
+			}
+		}
+		if (gids.isEmpty()) {
+			System.err.println("Usage: GCProfileBuilder [-store dir] [-windows 2000,5000,10000] (gid ... | -gids file)");
+			System.exit(1);
+		}
+
+		CircosData circosData = new CircosData();
+		GenomeStore genomeStore = new GenomeStore(storeDir, circosData);
+		int failed = 0;
+		try {
+			for (String gid : gids) {
+				List<Map<String, Object>> accessions = circosData.getAccessions(gid, true);
+				if (accessions.isEmpty()) {
+					logger.error("Genome {} has no sequences", gid);
+					failed++;
+					continue;
+				}
+				List<String> accessionIds = new ArrayList<>();
+				List<CharSequence> sequences = new ArrayList<>();
+				for (Map<String, Object> accession : accessions) {
+					accessionIds.add(accession.get("accession").toString());
+					sequences.add((CharSequence) accession.get("sequence"));
+				}
+				for (String window : windows.split(",")) {
+					int windowSize = Integer.parseInt(window.trim());
+					genomeStore.putGCProfiles(gid, windowSize, windowSize, GCStatistics.computeAll(accessionIds, sequences, windowSize, windowSize));
+				}
+				logger.info("Stored GC profiles of {} at windows {}", gid, windows);
+			}
+		}
+		finally {
+			circosData.shutdown();
+		}
+		System.exit((failed > 0) ? 2 : 0);
+	}
+}
@@ -0,0 +1,130 @@
+package org.patricbrc.circos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Computes GC content, GC skew and cumulative GC skew of a sequence over windows of a given size and step. Counts are taken
+ * from a {@link GCIndex}, so each window costs O(1) regardless of its size.
+ *
+ * Accessions are processed in parallel on a pool shared by all requests, and sequences longer than a chunk are indexed in
+ * parallel chunks. The pool size is set with the circos.gc.parallelism system property (defaults to the number of processors).
+ */
+public class GCStatistics {
+
+	private static final Logger logger = LoggerFactory.getLogger(GCStatistics.class);
+
+	public static final int DEFAULT_WINDOW_SIZE = 2000;
+
+	private static final int CHUNK_SIZE = 1 << 20;
+
+	private static final ForkJoinPool pool = new ForkJoinPool(Integer.parseInt(System.getProperty("circos.gc.parallelism",
+			Integer.toString(Runtime.getRuntime().availableProcessors()))));
+
+	private GCStatistics() {
+	}
+
+	/**
+	 * Computes the profiles of all accessions on the shared pool. Profiles are returned in the order of the given accessions.
+	 */
+	public static List<GCProfile> computeAll(List<String> accessions, List<? extends CharSequence> sequences, int windowSize,
+			int stepSize) {
+		logger.debug("Computing GC profiles for {} accessions on pool {}", accessions.size(), pool);
+		List<ProfileTask> tasks = new ArrayList<>();
+		for (int i = 0; i < accessions.size(); i++) {
+			tasks.add(new ProfileTask(accessions.get(i), sequences.get(i), windowSize, stepSize));
+		}
+		return pool.invoke(new ProfilesTask(tasks));
+	}
+
+	public static GCProfile compute(String accession, CharSequence sequence, int windowSize, int stepSize) {
+		return compute(accession, GCIndex.build(sequence), windowSize, stepSize);
+	}
+
+	public static GCProfile compute(String accession, GCIndex index, int windowSize, int stepSize) {
+		int totalSeqLength = index.length();
+		int windows = (totalSeqLength < windowSize) ? 0 : (totalSeqLength - windowSize) / stepSize + 1;
+
+		int[] starts = new int[windows];
+		int[] ends = new int[windows];
+		float[] content = new float[windows];
+		float[] skew = new float[windows];
+		float[] cumulativeSkew = new float[windows];
+
+		// Overlapping windows are weighted by step/window so that the cumulative skew does not count the same bases repeatedly
+		float cumulativeWeight = Math.min(1.0f, (float) stepSize / windowSize);
+		float cumulative = 0.0f;
+
+		// Window layout is kept from the original implementation: the first window starts at 0, the following ones at
+		// i * step_size + 1, and the last one is clipped to the end of the sequence. With step_size == window_size this gives
+		// the same non-overlapping windows as before.
+		for (int i = 0; i < windows; i++) {
+			int startIndex = (i == 0) ? 0 : (i * stepSize + 1);
+			int endIndex = Math.min(i * stepSize + windowSize, totalSeqLength - 1);
+
+			int gCount = index.gCount(startIndex, endIndex);
+			int cCount = index.cCount(startIndex, endIndex);
+
+			starts[i] = startIndex;
+			ends[i] = endIndex;
+			content[i] = (gCount + cCount) / (float) (endIndex - startIndex);
+			skew[i] = (float) (gCount - cCount) / (gCount + cCount);
+
+			if (gCount + cCount > 0) {
+				cumulative += skew[i] * cumulativeWeight;
+			}
+			cumulativeSkew[i] = cumulative;
+		}
+		return new GCProfile(accession, starts, ends, content, skew, cumulativeSkew);
+	}
+
+	private static class ProfilesTask extends RecursiveTask<List<GCProfile>> {
+		private static final long serialVersionUID = 1L;
+
+		private final List<ProfileTask> tasks;
+
+		ProfilesTask(List<ProfileTask> tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected List<GCProfile> compute() {
+			ForkJoinTask.invokeAll(tasks);
+			List<GCProfile> profiles = new ArrayList<>(tasks.size());
+			for (ProfileTask task : tasks) {
+				profiles.add(task.join());
+			}
+			return profiles;
+		}
+	}
+
+	private static class ProfileTask extends RecursiveTask<GCProfile> {
+		private static final long serialVersionUID = 1L;
+
+		private final String accession;
+
+		private final CharSequence sequence;
+
+		private final int windowSize;
+
+		private final int stepSize;
+
+		ProfileTask(String accession, CharSequence sequence, int windowSize, int stepSize) {
+			this.accession = accession;
+			this.sequence = sequence;
+			this.windowSize = windowSize;
+			this.stepSize = stepSize;
+		}
+
+		@Override
+		protected GCProfile compute() {
+			return GCStatistics.compute(accession, GCIndex.buildParallel(sequence, CHUNK_SIZE), windowSize, stepSize);
+		}
+	}
+}
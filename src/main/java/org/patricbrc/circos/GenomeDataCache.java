@@ -0,0 +1,349 @@
+package org.patricbrc.circos;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches Solr results and GC profiles per genome in front of {@link CircosData} and {@link GCStatistics}. Entries are keyed by
+ * gid plus the track specification, weighted by their approximate heap size, and evicted least recently used first once the
+ * total weight goes over circos.cache.maxBytes, or when they are older than circos.cache.ttl seconds. A maxBytes of 0 disables
+ * the cache.
+ */
+public class GenomeDataCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(GenomeDataCache.class);
+
+	private final CircosData circosData;
+
+	private final GenomeStore genomeStore;
+
+	private final long maxWeight;
+
+	private final long ttl;
+
+	// Access ordered, so iteration starts with the least recently used entry
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long weight = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Genome data missing from the cache is read from genomeStore if it is enabled, or straight from Solr.
+	 */
+	public GenomeDataCache(CircosData circosData, GenomeStore genomeStore) {
+		this.circosData = circosData;
+		this.genomeStore = genomeStore;
+		maxWeight = Long.parseLong(System.getProperty("circos.cache.maxBytes", Long.toString(256L * 1024 * 1024)));
+		ttl = TimeUnit.SECONDS.toMillis(Long.parseLong(System.getProperty("circos.cache.ttl", "86400")));
+	}
+
+	/**
+	 * Features of a track. A failed query is not cached and throws, so the features read before the failure are never drawn as
+	 * if they were the whole track.
+	 */
+	public FeatureTrack getFeatures(String gid, String featureType, String strand, String keyword) throws SolrServerException,
+			IOException {
+		String key = "features|" + gid + "|" + featureType + "|" + strand + "|" + keyword;
+		FeatureTrack track = (FeatureTrack) get(key);
+		if (track == null) {
+			if (genomeStore.isEnabled() && keyword == null) {
+				track = genomeStore.getFeatures(gid, featureType, strand);
+			}
+			else {
+				track = new FeatureTrack();
+				circosData.streamFeatures(gid, featureType, strand, keyword, track);
+			}
+			put(key, track, track.getWeight());
+		}
+		return track;
+	}
+
+	/**
+	 * Protein families of the CDS features of several genomes, by gid. Genomes that are not cached are fetched with one query,
+	 * gid:(a OR b ...); if it fails they get an empty track that is not cached.
+	 */
+	public Map<String, FamilyTrack> getFamilies(List<String> gids, String familyField) {
+		Map<String, FamilyTrack> tracks = new LinkedHashMap<>();
+		List<String> missing = new ArrayList<>();
+		for (String gid : gids) {
+			FamilyTrack track = (FamilyTrack) get("families|" + gid + "|" + familyField);
+			if (track == null) {
+				missing.add(gid);
+			}
+			tracks.put(gid, track);
+		}
+		if (missing.isEmpty() == false) {
+			try {
+				for (Map.Entry<String, FamilyTrack> track : circosData.getFamilies(missing, familyField).entrySet()) {
+					put("families|" + track.getKey() + "|" + familyField, track.getValue(), track.getValue().getWeight());
+					tracks.put(track.getKey(), track.getValue());
+				}
+			}
+			catch (SolrServerException | IOException e) {
+				e.printStackTrace();
+				for (String gid : missing) {
+					tracks.put(gid, new FamilyTrack());
+				}
+			}
+		}
+		return tracks;
+	}
+
+	public List<Map<String, Object>> getAccessions(String gid) {
+		return getAccessions(gid, true);
+	}
+
+	/**
+	 * Accessions of a genome. Without sequence, accessions cached with their sequence are used if there are any.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Map<String, Object>> getAccessions(String gid, boolean withSequence) {
+		String key = "accessions|" + gid;
+		List<Map<String, Object>> accessions = (List<Map<String, Object>>) get(key);
+		if (accessions == null && withSequence == false) {
+			key = "accessions|" + gid + "|nosequence";
+			accessions = (List<Map<String, Object>>) get(key);
+		}
+		if (accessions == null) {
+			if (genomeStore.isEnabled()) {
+				accessions = genomeStore.getAccessions(gid);
+			}
+			else {
+				accessions = circosData.getAccessions(gid, withSequence);
+			}
+			if (accessions.isEmpty() == false) {
+				put(key, accessions, accessionsWeight(accessions));
+			}
+		}
+		return accessions;
+	}
+
+	public String getGenomeName(String gid) {
+		String key = "genomename|" + gid;
+		String genomeName = (String) get(key);
+		if (genomeName == null) {
+			genomeName = circosData.getGenomeName(gid);
+			if (genomeName != null) {
+				put(key, genomeName, 64 + 2L * genomeName.length());
+			}
+		}
+		return genomeName;
+	}
+
+	@SuppressWarnings("unchecked")
+	public List<GCProfile> getGCProfiles(String gid, List<Map<String, Object>> accessions, int windowSize, int stepSize) {
+		String key = "gc|" + gid + "|" + windowSize + "|" + stepSize;
+		List<GCProfile> profiles = (List<GCProfile>) get(key);
+		if (profiles == null) {
+			try {
+				profiles = genomeStore.getGCProfiles(gid, windowSize, stepSize);
+			}
+			catch (IOException e) {
+				logger.error("Cannot read stored GC profiles of {}: {}", gid, e.getMessage());
+			}
+		}
+		if (profiles == null) {
+			// Accessions fetched without sequence, because precomputed profiles were expected
+			if (accessions.isEmpty() == false && accessions.get(0).containsKey("sequence") == false) {
+				accessions = getAccessions(gid, true);
+			}
+			List<String> accessionIds = new ArrayList<>();
+			List<CharSequence> sequences = new ArrayList<>();
+			for (Map<String, Object> accession : accessions) {
+				accessionIds.add(accession.get("accession").toString());
+				sequences.add((CharSequence) accession.get("sequence"));
+			}
+			profiles = GCStatistics.computeAll(accessionIds, sequences, windowSize, stepSize);
+			long profilesWeight = 0;
+			for (GCProfile profile : profiles) {
+				profilesWeight += profile.getWeight();
+			}
+			put(key, profiles, profilesWeight);
+		}
+		return profiles;
+	}
+
+	/**
+	 * Loads the genome names, accessions and feature tracks of several genomes that are not cached yet with one Solr query per
+	 * kind of data, gid:(a OR b ...), so requests for these genomes find them in the cache. Accessions and default tracks of the
+	 * genome store are read by the requests themselves. Does nothing when the cache is disabled.
+	 *
+	 * @param withSequence gids whose accessions are needed with their sequence
+	 * @param featureQueries feature type, strand and keyword of each track
+	 */
+	public void prefetch(List<String> gids, Collection<String> withSequence, Collection<String[]> featureQueries) {
+		if (maxWeight <= 0 || gids.isEmpty()) {
+			return;
+		}
+		try {
+			List<String> missing = missing(gids, "genomename|", "");
+			if (missing.isEmpty() == false) {
+				for (Map.Entry<String, String> genomeName : circosData.getGenomeNames(missing).entrySet()) {
+					put("genomename|" + genomeName.getKey(), genomeName.getValue(), 64 + 2L * genomeName.getValue().length());
+				}
+			}
+
+			if (genomeStore.isEnabled() == false) {
+				List<String> sequenceGids = new ArrayList<>();
+				List<String> lengthGids = new ArrayList<>();
+				for (String gid : missing(gids, "accessions|", "")) {
+					if (withSequence.contains(gid)) {
+						sequenceGids.add(gid);
+					}
+					else if (isCached("accessions|" + gid + "|nosequence") == false) {
+						lengthGids.add(gid);
+					}
+				}
+				if (sequenceGids.isEmpty() == false) {
+					for (Map.Entry<String, List<Map<String, Object>>> accessions : circosData.getAccessions(sequenceGids, true).entrySet()) {
+						put("accessions|" + accessions.getKey(), accessions.getValue(), accessionsWeight(accessions.getValue()));
+					}
+				}
+				if (lengthGids.isEmpty() == false) {
+					for (Map.Entry<String, List<Map<String, Object>>> accessions : circosData.getAccessions(lengthGids, false).entrySet()) {
+						put("accessions|" + accessions.getKey() + "|nosequence", accessions.getValue(), accessionsWeight(accessions.getValue()));
+					}
+				}
+			}
+
+			for (String[] featureQuery : featureQueries) {
+				if (genomeStore.isEnabled() && featureQuery[2] == null) {
+					continue;
+				}
+				String suffix = "|" + featureQuery[0] + "|" + featureQuery[1] + "|" + featureQuery[2];
+				missing = missing(gids, "features|", suffix);
+				if (missing.isEmpty() == false) {
+					for (Map.Entry<String, FeatureTrack> track : circosData.getFeatures(missing, featureQuery[0], featureQuery[1], featureQuery[2])
+							.entrySet()) {
+						put("features|" + track.getKey() + suffix, track.getValue(), track.getValue().getWeight());
+					}
+				}
+			}
+		}
+		catch (SolrServerException | IOException e) {
+			logger.error("Prefetch of {} genomes failed, they are fetched one by one: {}", gids.size(), e.getMessage());
+		}
+	}
+
+	/**
+	 * True if GC profiles of this window and step were precomputed for the genome, so its sequence is not needed
+	 */
+	public boolean hasStoredGCProfiles(String gid, int windowSize, int stepSize) {
+		return genomeStore.hasGCProfiles(gid, windowSize, stepSize);
+	}
+
+	/**
+	 * Hit, miss and eviction counters, with the current number of entries and their total weight in bytes.
+	 */
+	public synchronized Map<String, Long> getStats() {
+		Map<String, Long> stats = new LinkedHashMap<>();
+		stats.put("hits", hits.get());
+		stats.put("misses", misses.get());
+		stats.put("evictions", evictions.get());
+		stats.put("entries", (long) entries.size());
+		stats.put("weight", weight);
+		return stats;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		weight = 0;
+	}
+
+	private List<String> missing(List<String> gids, String prefix, String suffix) {
+		List<String> missing = new ArrayList<>();
+		for (String gid : gids) {
+			if (isCached(prefix + gid + suffix) == false) {
+				missing.add(gid);
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * Like get, without counting a hit or miss
+	 */
+	private synchronized boolean isCached(String key) {
+		Entry entry = entries.get(key);
+		return entry != null && System.currentTimeMillis() - entry.created <= ttl;
+	}
+
+	private static long accessionsWeight(List<Map<String, Object>> accessions) {
+		long accessionsWeight = 0;
+		for (Map<String, Object> accession : accessions) {
+			// Sequences of the genome store are memory mapped and take no heap
+			Object sequence = accession.get("sequence");
+			accessionsWeight += 256 + ((sequence instanceof String) ? 2L * ((String) sequence).length() : 0);
+		}
+		return accessionsWeight;
+	}
+
+	private synchronized Object get(String key) {
+		Entry entry = entries.get(key);
+		if (entry != null && System.currentTimeMillis() - entry.created > ttl) {
+			remove(key);
+			evictions.incrementAndGet();
+			entry = null;
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.value;
+	}
+
+	private synchronized void put(String key, Object value, long valueWeight) {
+		if (valueWeight > maxWeight) {
+			return;
+		}
+		remove(key);
+		entries.put(key, new Entry(value, valueWeight));
+		weight += valueWeight;
+
+		Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator();
+		while (weight > maxWeight && iter.hasNext()) {
+			Map.Entry<String, Entry> eldest = iter.next();
+			logger.debug("Evicting {} from genome data cache", eldest.getKey());
+			weight -= eldest.getValue().weight;
+			iter.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	private void remove(String key) {
+		Entry entry = entries.remove(key);
+		if (entry != null) {
+			weight -= entry.weight;
+		}
+	}
+
+	private static class Entry {
+		final Object value;
+
+		final long weight;
+
+		final long created = System.currentTimeMillis();
+
+		Entry(Object value, long weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+}
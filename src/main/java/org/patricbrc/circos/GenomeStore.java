@@ -0,0 +1,388 @@
+package org.patricbrc.circos;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local binary copy of the genome data fetched from Solr, one directory per gid under circos.store.dir. A genome is written the
+ * first time it is requested and read back through memory mapped files afterwards.
+ *
+ * accessions.bin holds the accession table followed by the sequences, one byte per base. Sequences are handed out as
+ * CharSequences over the mapped file, so they never become Java Strings and stay out of the heap. Default feature tracks are
+ * kept as columns in &lt;type&gt;.&lt;strand&gt;.bin. Every file starts with a magic number, the format version and the data
+ * version set with circos.store.version; a file with another version is fetched again, so raising circos.store.version after a
+ * Solr data release refreshes the store.
+ *
+ * GC profiles precomputed by {@link GCProfileBuilder} are kept in gc.&lt;window&gt;.&lt;step&gt;.bin and are used whenever
+ * they exist, also when circos.store.enabled is off.
+ */
+public class GenomeStore {
+
+	private static final Logger logger = LoggerFactory.getLogger(GenomeStore.class);
+
+	private static final int MAGIC = 0x43475331; // "CGS1"
+
+	private static final int FORMAT_VERSION = 1;
+
+	private final Path storeDir;
+
+	private final String dataVersion;
+
+	private final CircosData circosData;
+
+	private final boolean enabled;
+
+	private final AtomicLong reads = new AtomicLong();
+
+	private final AtomicLong writes = new AtomicLong();
+
+	public GenomeStore(String storeDir, CircosData circosData) {
+		this.storeDir = Paths.get(storeDir);
+		this.dataVersion = System.getProperty("circos.store.version", "1");
+		this.circosData = circosData;
+		this.enabled = System.getProperty("circos.store.enabled", "false").equals("true");
+	}
+
+	/**
+	 * True if accessions and feature tracks are kept in the store
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Accessions with their length and a memory mapped sequence, fetched from Solr if the genome is not stored yet
+	 */
+	public List<Map<String, Object>> getAccessions(String gid) {
+		Path file = storeDir.resolve(gid).resolve("accessions.bin");
+		try {
+			List<Map<String, Object>> accessions = readAccessions(file);
+			if (accessions != null) {
+				reads.incrementAndGet();
+				return accessions;
+			}
+			accessions = circosData.getAccessions(gid);
+			if (accessions.isEmpty()) {
+				return accessions;
+			}
+			writeAccessions(file, accessions);
+			writes.incrementAndGet();
+			return readAccessions(file);
+		}
+		catch (IOException e) {
+			logger.error("Genome store failed for {}: {}", gid, e.getMessage());
+			return circosData.getAccessions(gid);
+		}
+	}
+
+	/**
+	 * Features of a default track (no keyword), fetched from Solr if the track is not stored yet
+	 */
+	public FeatureTrack getFeatures(String gid, String featureType, String strand) throws SolrServerException, IOException {
+		String strandName = (strand == null) ? "both" : (strand.equals("+") ? "forward" : "reverse");
+		Path file = storeDir.resolve(gid).resolve(featureType + "." + strandName + ".bin");
+		FeatureTrack track = readFeatures(file);
+		if (track != null) {
+			reads.incrementAndGet();
+			return track;
+		}
+		track = new FeatureTrack();
+		circosData.streamFeatures(gid, featureType, strand, null, track);
+		// An unknown gid has no features either, it is not given a store directory
+		if (track.size() == 0) {
+			return track;
+		}
+		writeFeatures(file, track);
+		writes.incrementAndGet();
+		return track;
+	}
+
+	public boolean hasGCProfiles(String gid, int windowSize, int stepSize) {
+		return Files.exists(gcProfileFile(gid, windowSize, stepSize));
+	}
+
+	/**
+	 * Precomputed GC profiles of a genome, or null if there are none for this window and step
+	 */
+	public List<GCProfile> getGCProfiles(String gid, int windowSize, int stepSize) throws IOException {
+		ByteBuffer buffer = map(gcProfileFile(gid, windowSize, stepSize));
+		if (buffer == null) {
+			return null;
+		}
+		int count = buffer.getInt();
+		List<GCProfile> profiles = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			String accession = readString(buffer);
+			int size = buffer.getInt();
+			int[] starts = new int[size];
+			int[] ends = new int[size];
+			float[] content = new float[size];
+			float[] skew = new float[size];
+			float[] cumulativeSkew = new float[size];
+			buffer.asIntBuffer().get(starts);
+			buffer.position(buffer.position() + 4 * size);
+			buffer.asIntBuffer().get(ends);
+			buffer.position(buffer.position() + 4 * size);
+			buffer.asFloatBuffer().get(content);
+			buffer.position(buffer.position() + 4 * size);
+			buffer.asFloatBuffer().get(skew);
+			buffer.position(buffer.position() + 4 * size);
+			buffer.asFloatBuffer().get(cumulativeSkew);
+			buffer.position(buffer.position() + 4 * size);
+			profiles.add(new GCProfile(accession, starts, ends, content, skew, cumulativeSkew));
+		}
+		reads.incrementAndGet();
+		return profiles;
+	}
+
+	public void putGCProfiles(String gid, int windowSize, int stepSize, List<GCProfile> profiles) throws IOException {
+		Path file = gcProfileFile(gid, windowSize, stepSize);
+		try (DataOutputStream out = create(file)) {
+			out.writeInt(profiles.size());
+			for (GCProfile profile : profiles) {
+				out.write(writeString(profile.getAccession()));
+				out.writeInt(profile.size());
+				for (int i = 0; i < profile.size(); i++) {
+					out.writeInt(profile.getStart(i));
+				}
+				for (int i = 0; i < profile.size(); i++) {
+					out.writeInt(profile.getEnd(i));
+				}
+				for (int i = 0; i < profile.size(); i++) {
+					out.writeFloat(profile.getContent(i));
+				}
+				for (int i = 0; i < profile.size(); i++) {
+					out.writeFloat(profile.getSkew(i));
+				}
+				for (int i = 0; i < profile.size(); i++) {
+					out.writeFloat(profile.getCumulativeSkew(i));
+				}
+			}
+		}
+		commit(file);
+		writes.incrementAndGet();
+	}
+
+	private Path gcProfileFile(String gid, int windowSize, int stepSize) {
+		return storeDir.resolve(gid).resolve("gc." + windowSize + "." + stepSize + ".bin");
+	}
+
+	/**
+	 * Genome files read from and written to the store
+	 */
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new LinkedHashMap<>();
+		stats.put("reads", reads.get());
+		stats.put("writes", writes.get());
+		return stats;
+	}
+
+	private List<Map<String, Object>> readAccessions(Path file) throws IOException {
+		ByteBuffer buffer = map(file);
+		if (buffer == null) {
+			return null;
+		}
+		int count = buffer.getInt();
+		List<Map<String, Object>> accessions = new LinkedList<>();
+		for (int i = 0; i < count; i++) {
+			Map<String, Object> accession = new HashMap<>();
+			accession.put("accession", readString(buffer));
+			accession.put("length", buffer.getInt());
+			int offset = buffer.getInt();
+			int length = buffer.getInt();
+			accession.put("sequence", new MappedSequence(buffer, offset, length));
+			accessions.add(accession);
+		}
+		return accessions;
+	}
+
+	private void writeAccessions(Path file, List<Map<String, Object>> accessions) throws IOException {
+		// Header and accession table first, sequences after it at known offsets
+		int tableSize = 16 + writeString(dataVersion).length + 4;
+		for (Map<String, Object> accession : accessions) {
+			tableSize += writeString(accession.get("accession").toString()).length + 12;
+		}
+		try (DataOutputStream out = create(file)) {
+			out.writeInt(accessions.size());
+			int offset = tableSize;
+			for (Map<String, Object> accession : accessions) {
+				out.write(writeString(accession.get("accession").toString()));
+				out.writeInt(((Number) accession.get("length")).intValue());
+				int length = accession.get("sequence").toString().length();
+				out.writeInt(offset);
+				out.writeInt(length);
+				offset += length;
+			}
+			for (Map<String, Object> accession : accessions) {
+				CharSequence sequence = (CharSequence) accession.get("sequence");
+				for (int i = 0; i < sequence.length(); i++) {
+					out.write(sequence.charAt(i));
+				}
+			}
+		}
+		commit(file);
+	}
+
+	private FeatureTrack readFeatures(Path file) throws IOException {
+		ByteBuffer buffer = map(file);
+		if (buffer == null) {
+			return null;
+		}
+		String[] accessionNames = new String[buffer.getInt()];
+		for (int i = 0; i < accessionNames.length; i++) {
+			accessionNames[i] = readString(buffer);
+		}
+		int size = buffer.getInt();
+		FeatureTrack track = new FeatureTrack();
+		for (int i = 0; i < size; i++) {
+			track.add(accessionNames[buffer.getInt()], buffer.getInt(), buffer.getInt(), buffer.getLong());
+		}
+		return track;
+	}
+
+	private void writeFeatures(Path file, FeatureTrack track) throws IOException {
+		Map<String, Integer> accessionIndex = new HashMap<>();
+		List<String> accessionNames = new LinkedList<>();
+		for (int i = 0; i < track.size(); i++) {
+			if (accessionIndex.containsKey(track.getAccession(i)) == false) {
+				accessionIndex.put(track.getAccession(i), accessionNames.size());
+				accessionNames.add(track.getAccession(i));
+			}
+		}
+		try (DataOutputStream out = create(file)) {
+			out.writeInt(accessionNames.size());
+			for (String accession : accessionNames) {
+				out.write(writeString(accession));
+			}
+			out.writeInt(track.size());
+			for (int i = 0; i < track.size(); i++) {
+				out.writeInt(accessionIndex.get(track.getAccession(i)));
+				out.writeInt(track.getStart(i));
+				out.writeInt(track.getEnd(i));
+				out.writeLong(track.getId(i));
+			}
+		}
+		commit(file);
+	}
+
+	/**
+	 * Maps a store file and checks its header. Returns null if the file is missing or has another version.
+	 */
+	private ByteBuffer map(Path file) throws IOException {
+		if (Files.exists(file) == false) {
+			return null;
+		}
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+			logger.info("Genome store file {} has an old format", file);
+			return null;
+		}
+		buffer.getLong(); // created
+		if (readString(buffer).equals(dataVersion) == false) {
+			logger.info("Genome store file {} has an old data version", file);
+			return null;
+		}
+		return buffer;
+	}
+
+	/**
+	 * Opens the temporary file of a store file and writes the header
+	 */
+	private DataOutputStream create(Path file) throws IOException {
+		Files.createDirectories(file.getParent());
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary(file))));
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeLong(System.currentTimeMillis());
+		out.write(writeString(dataVersion));
+		return out;
+	}
+
+	/**
+	 * Replaces the store file by its completely written temporary file, so readers never map a partial file
+	 */
+	private void commit(Path file) throws IOException {
+		Files.move(temporary(file), file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static Path temporary(Path file) {
+		return file.resolveSibling(file.getFileName() + "." + Thread.currentThread().getId() + ".tmp");
+	}
+
+	private static byte[] writeString(String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		return ByteBuffer.allocate(2 + bytes.length).putShort((short) bytes.length).put(bytes).array();
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * A sequence read straight from the mapped store file, one byte per base
+	 */
+	static class MappedSequence implements CharSequence {
+
+		private final ByteBuffer buffer;
+
+		private final int offset;
+
+		private final int length;
+
+		MappedSequence(ByteBuffer buffer, int offset, int length) {
+			this.buffer = buffer;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return (char) buffer.get(offset + index);
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new MappedSequence(buffer, offset + start, end - start);
+		}
+
+		@Override
+		public String toString() {
+			byte[] bytes = new byte[length];
+			for (int i = 0; i < length; i++) {
+				bytes[i] = buffer.get(offset + i);
+			}
+			return new String(bytes, StandardCharsets.US_ASCII);
+		}
+	}
+}
@@ -0,0 +1,335 @@
+package org.patricbrc.circos;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers which image directory was rendered from which fully resolved request, so an identical request can reuse the image
+ * instead of running circos again. The request is identified by a SHA-256 over the generated config files, with the image
+ * directory replaced by a placeholder, and the bytes of every data file. The hash is stored next to the image, so the index is
+ * rebuilt from /images on startup.
+ *
+ * Image directories are also kept under a disk quota (circos.images.maxBytes): once it is exceeded, the least recently
+ * modified directories are deleted. The disk usage is kept as a running total, updated as images are recorded and deleted, and
+ * files hard linked into several directories by {@link DataDirCache} count once. Directories that are never recorded, like
+ * natively rendered or failed images, are picked up by a full scan of /images every circos.images.rescan seconds.
+ */
+public class ImageCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(ImageCache.class);
+
+	private static final String HASH_FILE = "request.sha256";
+
+	private static final String IMAGE_FILE = "circos.svg";
+
+	private final Path imagesDir;
+
+	private final long maxBytes;
+
+	private final long rescanInterval;
+
+	// Files of each image directory, oldest directory first
+	private final LinkedHashMap<Path, List<Object>> directories = new LinkedHashMap<>();
+
+	// Size and number of links of each file, by file key (the inode on Unix)
+	private final Map<Object, long[]> files = new HashMap<>();
+
+	private long totalBytes = 0;
+
+	private long lastScan = 0;
+
+	private final Map<String, String> imageByHash = new ConcurrentHashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	public ImageCache(String appDir) {
+		imagesDir = Paths.get(appDir, "images");
+		maxBytes = Long.parseLong(System.getProperty("circos.images.maxBytes", Long.toString(10L * 1024 * 1024 * 1024)));
+		rescanInterval = TimeUnit.SECONDS.toMillis(Long.parseLong(System.getProperty("circos.images.rescan", "600")));
+
+		if (Files.isDirectory(imagesDir)) {
+			try (DirectoryStream<Path> dirs = Files.newDirectoryStream(imagesDir)) {
+				for (Path dir : dirs) {
+					Path hashFile = dir.resolve(HASH_FILE);
+					if (Files.exists(hashFile) && Files.exists(dir.resolve(IMAGE_FILE))) {
+						String hash = new String(Files.readAllBytes(hashFile), StandardCharsets.US_ASCII).trim();
+						imageByHash.put(hash, dir.getFileName().toString());
+					}
+				}
+			}
+			catch (IOException e) {
+				logger.error(e.getMessage());
+			}
+		}
+		logger.info("Image cache loaded {} rendered images", imageByHash.size());
+	}
+
+	/**
+	 * Hashes the config and data files of a prepared (not yet rendered) image directory.
+	 */
+	public String hash(Circos circos, String dirConfig, String dirData) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+
+		// Config files refer to the image directory, which is unique per request
+		for (Path file : listFiles(Paths.get(circos.getTmpDir() + dirConfig))) {
+			String conf = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).replace(circos.getTmpDir(), "{{folder}}");
+			digest.update(file.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+			digest.update(conf.getBytes(StandardCharsets.UTF_8));
+		}
+
+		byte[] buffer = new byte[64 * 1024];
+		for (Path file : listFiles(Paths.get(circos.getTmpDir() + dirData))) {
+			digest.update(file.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+			try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+				while (in.read(buffer) != -1) {
+					;
+				}
+			}
+		}
+
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Returns the id of an image rendered from the same request, or null if there is none.
+	 */
+	public String lookup(String hash) {
+		String imageId = imageByHash.get(hash);
+		if (imageId != null && Files.exists(imagesDir.resolve(imageId).resolve(IMAGE_FILE)) == false) {
+			imageByHash.remove(hash);
+			imageId = null;
+		}
+		if (imageId == null) {
+			misses.incrementAndGet();
+		}
+		else {
+			hits.incrementAndGet();
+		}
+		return imageId;
+	}
+
+	/**
+	 * Records a rendered image under its request hash, then enforces the disk quota.
+	 */
+	public void record(String hash, Circos circos) {
+		Path dir = Paths.get(circos.getTmpDir());
+		if (Files.exists(dir.resolve(IMAGE_FILE)) == false) {
+			return;
+		}
+		try {
+			Files.write(dir.resolve(HASH_FILE), hash.getBytes(StandardCharsets.US_ASCII));
+			imageByHash.put(hash, circos.getUuid());
+		}
+		catch (IOException e) {
+			logger.error(e.getMessage());
+		}
+		enforceQuota(dir);
+	}
+
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new LinkedHashMap<>();
+		stats.put("hits", hits.get());
+		stats.put("misses", misses.get());
+		stats.put("evictions", evictions.get());
+		stats.put("images", (long) imageByHash.size());
+		synchronized (this) {
+			stats.put("bytes", totalBytes);
+		}
+		return stats;
+	}
+
+	/**
+	 * Adds a recorded image directory to the running total, or rescans all of /images if the last scan is old enough, then
+	 * deletes the oldest directories until the total is under the quota.
+	 */
+	private synchronized void enforceQuota(Path recorded) {
+		try {
+			if (System.currentTimeMillis() - lastScan > rescanInterval) {
+				scan();
+			}
+			else {
+				add(recorded);
+			}
+		}
+		catch (IOException e) {
+			logger.error(e.getMessage());
+			return;
+		}
+
+		Iterator<Path> oldestFirst = directories.keySet().iterator();
+		while (totalBytes > maxBytes && oldestFirst.hasNext()) {
+			Path dir = oldestFirst.next();
+			logger.info("Deleting image directory {} to stay under disk quota", dir);
+			imageByHash.values().remove(dir.getFileName().toString());
+			try {
+				deleteDirectory(dir);
+				evictions.incrementAndGet();
+			}
+			catch (IOException e) {
+				// Counted again by the next scan if it is still there
+				logger.error(e.getMessage());
+			}
+			unlink(directories.get(dir));
+			oldestFirst.remove();
+		}
+	}
+
+	/**
+	 * Recounts all image directories, ordered by modification time
+	 */
+	private void scan() throws IOException {
+		final Map<Path, Long> modified = new HashMap<>();
+		try (DirectoryStream<Path> dirs = Files.newDirectoryStream(imagesDir)) {
+			for (Path dir : dirs) {
+				if (Files.isDirectory(dir)) {
+					modified.put(dir, Files.getLastModifiedTime(dir).toMillis());
+				}
+			}
+		}
+		List<Path> oldestFirst = new ArrayList<>(modified.keySet());
+		Collections.sort(oldestFirst, new Comparator<Path>() {
+			@Override
+			public int compare(Path a, Path b) {
+				return Long.compare(modified.get(a), modified.get(b));
+			}
+		});
+
+		directories.clear();
+		files.clear();
+		totalBytes = 0;
+		for (Path dir : oldestFirst) {
+			try {
+				add(dir);
+			}
+			catch (IOException e) {
+				// Deleted while scanning
+				logger.debug(e.getMessage());
+			}
+		}
+		lastScan = System.currentTimeMillis();
+		logger.info("Image directories use {} bytes in {} directories", totalBytes, directories.size());
+	}
+
+	/**
+	 * Counts the files of an image directory as the newest one. A file already counted through a hard link adds nothing.
+	 */
+	private void add(Path dir) throws IOException {
+		unlink(directories.remove(dir));
+		final List<Object> keys = new ArrayList<>();
+		try {
+			Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					// File systems without inodes give no key, their files are counted per path
+					Object key = (attrs.fileKey() != null) ? attrs.fileKey() : file;
+					long[] sizeAndLinks = files.get(key);
+					if (sizeAndLinks == null) {
+						sizeAndLinks = new long[] { attrs.size(), 0 };
+						files.put(key, sizeAndLinks);
+						totalBytes += attrs.size();
+					}
+					sizeAndLinks[1]++;
+					keys.add(key);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		catch (IOException e) {
+			unlink(keys);
+			throw e;
+		}
+		directories.put(dir, keys);
+	}
+
+	/**
+	 * Uncounts the files of a deleted directory, freeing the bytes of those that have no other link
+	 */
+	private void unlink(List<Object> keys) {
+		if (keys == null) {
+			return;
+		}
+		for (Object key : keys) {
+			long[] sizeAndLinks = files.get(key);
+			if (sizeAndLinks != null && --sizeAndLinks[1] == 0) {
+				files.remove(key);
+				totalBytes -= sizeAndLinks[0];
+			}
+		}
+	}
+
+	private static List<Path> listFiles(Path dir) throws IOException {
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path file : stream) {
+				if (Files.isRegularFile(file)) {
+					files.add(file);
+				}
+			}
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+	public static void deleteDirectory(String dir) throws IOException {
+		deleteDirectory(new File(dir).toPath());
+	}
+
+	public static void deleteDirectory(Path dir) throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				if (e != null) {
+					throw e;
+				}
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
@@ -0,0 +1,78 @@
+package org.patricbrc.circos;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Links the features of the reference genome of a comparative plot to the features of the same protein family in the other
+ * genomes. The links come from a hash join: the reference features are indexed by family once, then the features of each other
+ * genome are read once and looked up in the index. The work grows with the number of features, not with the product of the
+ * genome sizes as comparing every pair of features would.
+ *
+ * Families with more than maxCopies features in one of the two genomes are paralog families and get no links, so with the
+ * default of 1 only single copy orthologs are linked.
+ */
+public class LinkBuilder {
+
+	private static final Logger logger = LoggerFactory.getLogger(LinkBuilder.class);
+
+	private LinkBuilder() {
+	}
+
+	/**
+	 * Writes one link per pair of features of the same family, reference feature first, in the color of the other genome (may be
+	 * null). A maxCopies of 0 links every family. Stops after maxLinks links and returns the number of links written.
+	 */
+	public static int write(FamilyTrack reference, Map<String, FamilyTrack> others, Map<String, String> colors, int maxCopies,
+			int maxLinks, CircosDataWriter writer) throws IOException {
+		// Build side: the last reference feature of each family, and before each feature the previous one of its family
+		Map<String, Integer> lastFeature = new HashMap<>();
+		int[] previousFeature = new int[reference.size()];
+		for (int i = 0; i < reference.size(); i++) {
+			Integer previous = lastFeature.put(reference.getFamily(i), i);
+			previousFeature[i] = (previous != null) ? previous : -1;
+		}
+		Map<String, Integer> referenceCopies = copies(reference);
+
+		// Probe side: each feature of the other genomes looks up its family
+		int links = 0;
+		for (Map.Entry<String, FamilyTrack> genome : others.entrySet()) {
+			FamilyTrack track = genome.getValue();
+			Map<String, Integer> trackCopies = copies(track);
+			String color = colors.get(genome.getKey());
+			for (int j = 0; j < track.size(); j++) {
+				String family = track.getFamily(j);
+				Integer last = lastFeature.get(family);
+				if (last == null || (maxCopies > 0 && (referenceCopies.get(family) > maxCopies || trackCopies.get(family) > maxCopies))) {
+					continue;
+				}
+				for (int i = last; i >= 0; i = previousFeature[i]) {
+					if (links == maxLinks) {
+						logger.warn("Stopped at {} links, genomes after {} have no or only some links", maxLinks, genome.getKey());
+						return links;
+					}
+					writer.writeLink(reference.getAccession(i), reference.getStart(i), reference.getEnd(i), track.getAccession(j),
+							track.getStart(j), track.getEnd(j), color);
+					links++;
+				}
+			}
+		}
+		return links;
+	}
+
+	/**
+	 * Number of features of each family
+	 */
+	private static Map<String, Integer> copies(FamilyTrack track) {
+		Map<String, Integer> copies = new HashMap<>();
+		for (int i = 0; i < track.size(); i++) {
+			Integer count = copies.get(track.getFamily(i));
+			copies.put(track.getFamily(i), (count != null) ? count + 1 : 1);
+		}
+		return copies;
+	}
+}
@@ -0,0 +1,167 @@
+package org.patricbrc.circos;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Stage timings and counters of image requests. Every stage has a latency histogram with fixed millisecond buckets, so the
+ * metrics endpoint can export it for percentiles per stage. A {@link Request} collects the stages of one request for its log
+ * line and records each of them here as well.
+ */
+public class Metrics {
+
+	// Upper bounds of the histogram buckets in milliseconds, the last bucket is unbounded
+	static final long[] BUCKETS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000 };
+
+	private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+	private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+	/**
+	 * Records the time since startNanos (from System.nanoTime) for a stage and returns it in milliseconds
+	 */
+	public long record(String stage, long startNanos) {
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+		histogram(stage).add(millis);
+		return millis;
+	}
+
+	public void increment(String counter, long delta) {
+		AtomicLong value = counters.get(counter);
+		if (value == null) {
+			AtomicLong created = new AtomicLong();
+			value = counters.putIfAbsent(counter, created);
+			if (value == null) {
+				value = created;
+			}
+		}
+		value.addAndGet(delta);
+	}
+
+	public Request startRequest() {
+		return new Request();
+	}
+
+	/**
+	 * Histograms by stage name, sorted
+	 */
+	public Map<String, Histogram> getHistograms() {
+		return new TreeMap<>(histograms);
+	}
+
+	/**
+	 * Counter values by name, sorted
+	 */
+	public Map<String, Long> getCounters() {
+		Map<String, Long> values = new TreeMap<>();
+		for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+			values.put(counter.getKey(), counter.getValue().get());
+		}
+		return values;
+	}
+
+	/**
+	 * Threads and heap of this JVM. The heap peak is the sum of the peak usage of the heap pools since the JVM started.
+	 */
+	public static Map<String, Long> getJvmStats() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Map<String, Long> stats = new LinkedHashMap<>();
+		stats.put("threads", (long) threads.getThreadCount());
+		stats.put("threadsPeak", (long) threads.getPeakThreadCount());
+		stats.put("threadsDaemon", (long) threads.getDaemonThreadCount());
+		long heapPeak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+				heapPeak += pool.getPeakUsage().getUsed();
+			}
+		}
+		stats.put("heapUsed", ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+		stats.put("heapCommitted", ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getCommitted());
+		stats.put("heapMax", ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax());
+		stats.put("heapPeak", heapPeak);
+		return stats;
+	}
+
+	private Histogram histogram(String stage) {
+		Histogram histogram = histograms.get(stage);
+		if (histogram == null) {
+			Histogram created = new Histogram();
+			histogram = histograms.putIfAbsent(stage, created);
+			if (histogram == null) {
+				histogram = created;
+			}
+		}
+		return histogram;
+	}
+
+	public static class Histogram {
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+
+		private final AtomicLong count = new AtomicLong();
+
+		private final AtomicLong sum = new AtomicLong();
+
+		void add(long millis) {
+			int bucket = 0;
+			while (bucket < BUCKETS.length && millis > BUCKETS[bucket]) {
+				bucket++;
+			}
+			buckets.incrementAndGet(bucket);
+			count.incrementAndGet();
+			sum.addAndGet(millis);
+		}
+
+		/**
+		 * Number of samples in bucket i, not cumulative
+		 */
+		public long getBucket(int i) {
+			return buckets.get(i);
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getSum() {
+			return sum.get();
+		}
+	}
+
+	/**
+	 * Stage timings of one request. Stages may be recorded from several threads, a stage recorded twice adds up.
+	 */
+	public class Request {
+
+		private final long startNanos = System.nanoTime();
+
+		private final Map<String, Long> stages = new LinkedHashMap<>();
+
+		public void stage(String stage, long startNanos) {
+			long millis = record(stage, startNanos);
+			synchronized (stages) {
+				Long previous = stages.get(stage);
+				stages.put(stage, (previous != null) ? previous + millis : millis);
+			}
+		}
+
+		/**
+		 * Records the whole request under the given stage and returns the stages in milliseconds for logging
+		 */
+		public String finish(String stage) {
+			stage(stage, startNanos);
+			synchronized (stages) {
+				return stages.toString();
+			}
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package org.patricbrc.circos;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Exports the stage histograms, counters and component stats of the running {@link CircosServlet}, in Prometheus text format
+ * by default or as JSON with format=json.
+ */
+public class MetricsServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	// Component stats that only grow, exported as counters
+	private static final Set<String> COUNTER_STATS = new HashSet<>(Arrays.asList("runs", "timeouts", "failures", "pooledRuns",
+			"fallbackRuns", "recycled", "hits", "misses", "evictions", "reads", "writes", "linkedFiles", "completed", "failed",
+			"rejected"));
+
+	@SuppressWarnings("unchecked")
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		CircosGenerator circosGenerator = (CircosGenerator) getServletContext().getAttribute(CircosGenerator.class.getName());
+		RenderQueue renderQueue = (RenderQueue) getServletContext().getAttribute(RenderQueue.class.getName());
+		if (circosGenerator == null || renderQueue == null) {
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "CircosServlet is not initialized");
+			return;
+		}
+		Metrics metrics = circosGenerator.metrics;
+
+		// Point in time values of the components, by component
+		Map<String, Map<String, ?>> gauges = new LinkedHashMap<>();
+		gauges.put("render_queue", renderQueue.getStats());
+		gauges.put("process", circosGenerator.processRunner.getStats());
+		gauges.put("worker_pool", circosGenerator.workerPool.getStats());
+		gauges.put("solr_pool", circosGenerator.circosData.getPoolStats());
+		gauges.put("genome_cache", circosGenerator.genomeDataCache.getStats());
+		gauges.put("genome_store", circosGenerator.genomeStore.getStats());
+		gauges.put("image_cache", circosGenerator.imageCache.getStats());
+		gauges.put("data_cache", circosGenerator.dataDirCache.getStats());
+		BatchRenderer batchRenderer = (BatchRenderer) getServletContext().getAttribute(BatchRenderer.class.getName());
+		if (batchRenderer != null) {
+			gauges.put("batches", batchRenderer.getStats());
+		}
+		gauges.put("jvm", Metrics.getJvmStats());
+
+		if ("json".equals(request.getParameter("format"))) {
+			JSONObject json = new JSONObject();
+			JSONObject stages = new JSONObject();
+			for (Map.Entry<String, Metrics.Histogram> stage : metrics.getHistograms().entrySet()) {
+				Metrics.Histogram histogram = stage.getValue();
+				JSONObject buckets = new JSONObject();
+				long cumulative = 0;
+				for (int i = 0; i <= Metrics.BUCKETS.length; i++) {
+					cumulative += histogram.getBucket(i);
+					buckets.put((i < Metrics.BUCKETS.length) ? Long.toString(Metrics.BUCKETS[i]) : "+Inf", cumulative);
+				}
+				JSONObject values = new JSONObject();
+				values.put("count", histogram.getCount());
+				values.put("sumMillis", histogram.getSum());
+				values.put("buckets", buckets);
+				stages.put(stage.getKey(), values);
+			}
+			json.put("stages", stages);
+			json.put("counters", metrics.getCounters());
+			json.put("gauges", gauges);
+			response.setContentType("application/json");
+			response.getWriter().write(json.toJSONString());
+			return;
+		}
+
+		response.setContentType("text/plain; version=0.0.4");
+		PrintWriter out = response.getWriter();
+		out.println("# HELP circos_stage_milliseconds Time spent per request stage");
+		out.println("# TYPE circos_stage_milliseconds histogram");
+		for (Map.Entry<String, Metrics.Histogram> stage : metrics.getHistograms().entrySet()) {
+			Metrics.Histogram histogram = stage.getValue();
+			long cumulative = 0;
+			for (int i = 0; i <= Metrics.BUCKETS.length; i++) {
+				cumulative += histogram.getBucket(i);
+				String le = (i < Metrics.BUCKETS.length) ? Long.toString(Metrics.BUCKETS[i]) : "+Inf";
+				out.println("circos_stage_milliseconds_bucket{stage=\"" + label(stage.getKey()) + "\",le=\"" + le + "\"} " + cumulative);
+			}
+			out.println("circos_stage_milliseconds_sum{stage=\"" + label(stage.getKey()) + "\"} " + histogram.getSum());
+			out.println("circos_stage_milliseconds_count{stage=\"" + label(stage.getKey()) + "\"} " + histogram.getCount());
+		}
+		for (Map.Entry<String, Long> counter : metrics.getCounters().entrySet()) {
+			out.println("# TYPE circos_" + counter.getKey() + "_total counter");
+			out.println("circos_" + counter.getKey() + "_total " + counter.getValue());
+		}
+		for (Map.Entry<String, Map<String, ?>> component : gauges.entrySet()) {
+			writeStats(out, "circos_" + component.getKey(), component.getValue());
+		}
+	}
+
+	/**
+	 * Counter stats get a metric of their own, circos_component_stat_total. Other numeric stats are one gauge per component,
+	 * labelled with the stat name. Nested maps, like the circos stage times, get their own gauge.
+	 */
+	@SuppressWarnings("unchecked")
+	private void writeStats(PrintWriter out, String name, Map<String, ?> stats) {
+		List<String> gaugeLines = new ArrayList<>();
+		for (Map.Entry<String, ?> stat : stats.entrySet()) {
+			if (stat.getValue() instanceof Number && COUNTER_STATS.contains(stat.getKey())) {
+				String counter = name + "_" + snakeCase(stat.getKey()) + "_total";
+				out.println("# TYPE " + counter + " counter");
+				out.println(counter + " " + stat.getValue());
+			}
+			else if (stat.getValue() instanceof Number) {
+				gaugeLines.add(name + "{stat=\"" + label(stat.getKey()) + "\"} " + stat.getValue());
+			}
+			else if (stat.getValue() instanceof Map) {
+				writeStats(out, name + "_" + snakeCase(stat.getKey()), (Map<String, ?>) stat.getValue());
+			}
+		}
+		if (gaugeLines.isEmpty() == false) {
+			out.println("# TYPE " + name + " gauge");
+			for (String line : gaugeLines) {
+				out.println(line);
+			}
+		}
+	}
+
+	/**
+	 * fallbackRuns as fallback_runs
+	 */
+	private static String snakeCase(String name) {
+		StringBuilder snakeCase = new StringBuilder();
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (Character.isUpperCase(c)) {
+				snakeCase.append('_').append(Character.toLowerCase(c));
+			}
+			else {
+				snakeCase.append(c);
+			}
+		}
+		return snakeCase.toString();
+	}
+
+	/**
+	 * Escapes a label value of the text format
+	 */
+	private static String label(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
@@ -0,0 +1,94 @@
+package org.patricbrc.circos;
+
+import java.util.Map;
+import java.util.UUID;
+
+import org.json.simple.JSONObject;
+
+/**
+ * One image request waiting in or processed by the {@link RenderQueue}.
+ */
+public class RenderJob {
+
+	public enum Status {
+		QUEUED, RUNNING, DONE, FAILED
+	}
+
+	private final String id;
+
+	private final Map<String, Object> parameters;
+
+	private volatile Status status = Status.QUEUED;
+
+	private volatile String imageId;
+
+	private final long submitted = System.currentTimeMillis();
+
+	private volatile long started;
+
+	private volatile long finished;
+
+	public RenderJob(Map<String, Object> parameters) {
+		this.id = UUID.randomUUID().toString();
+		this.parameters = parameters;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getImageId() {
+		return imageId;
+	}
+
+	public Map<String, Object> getParameters() {
+		return parameters;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public long getFinished() {
+		return finished;
+	}
+
+	/**
+	 * Milliseconds spent waiting in the queue
+	 */
+	public long getQueueTime() {
+		return ((started > 0) ? started : System.currentTimeMillis()) - submitted;
+	}
+
+	/**
+	 * Milliseconds spent rendering
+	 */
+	public long getRunTime() {
+		if (started == 0) {
+			return 0;
+		}
+		return ((finished > 0) ? finished : System.currentTimeMillis()) - started;
+	}
+
+	void start() {
+		started = System.currentTimeMillis();
+		status = Status.RUNNING;
+	}
+
+	void finish(String imageId) {
+		this.imageId = imageId;
+		finished = System.currentTimeMillis();
+		status = (imageId != null) ? Status.DONE : Status.FAILED;
+	}
+
+	@SuppressWarnings("unchecked")
+	public JSONObject toJSON() {
+		JSONObject json = new JSONObject();
+		json.put("jobId", id);
+		json.put("status", status.name().toLowerCase());
+		json.put("imageId", imageId);
+		json.put("queueTime", getQueueTime());
+		json.put("runTime", getRunTime());
+		return json;
+	}
+}
@@ -0,0 +1,126 @@
+package org.patricbrc.circos;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs image requests on a bounded pool of workers so that servlet threads return as soon as a job is queued. The number of
+ * workers and the queue capacity are set with circos.jobs.workers and circos.jobs.queueCapacity; once the queue is full new
+ * jobs are rejected. Finished jobs are kept for circos.jobs.retention seconds so their status can be polled.
+ */
+public class RenderQueue {
+
+	private static final Logger logger = LoggerFactory.getLogger(RenderQueue.class);
+
+	private final CircosGenerator circosGenerator;
+
+	private final ThreadPoolExecutor executor;
+
+	private final int queueCapacity;
+
+	private final long retention;
+
+	private final Map<String, RenderJob> jobs = new ConcurrentHashMap<>();
+
+	private final AtomicLong completed = new AtomicLong();
+
+	private final AtomicLong failed = new AtomicLong();
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	public RenderQueue(CircosGenerator circosGenerator) {
+		this.circosGenerator = circosGenerator;
+		int workers = Integer.parseInt(System.getProperty("circos.jobs.workers", "4"));
+		queueCapacity = Integer.parseInt(System.getProperty("circos.jobs.queueCapacity", "100"));
+		retention = TimeUnit.SECONDS.toMillis(Long.parseLong(System.getProperty("circos.jobs.retention", "3600")));
+		executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity));
+	}
+
+	/**
+	 * Queues a job. Throws RejectedExecutionException if the queue is full.
+	 */
+	public RenderJob submit(Map<String, Object> parameters) {
+		removeExpiredJobs();
+
+		final RenderJob job = new RenderJob(parameters);
+		jobs.put(job.getId(), job);
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					job.start();
+					String imageId = null;
+					try {
+						imageId = circosGenerator.createCircosImage(job.getParameters());
+					}
+					catch (RuntimeException e) {
+						logger.error("Job " + job.getId() + " failed", e);
+					}
+					finally {
+						// Also after an Error, so the job never stays RUNNING. Uploads not moved into the image, e.g. of a failed job,
+						// are dropped from the staging directory.
+						TrackUpload.deleteAll(job.getParameters());
+						job.finish(imageId);
+						if (imageId != null) {
+							completed.incrementAndGet();
+						}
+						else {
+							failed.incrementAndGet();
+						}
+						logger.info("Job {} {}: queued {} ms, ran {} ms", job.getId(), job.getStatus(), job.getQueueTime(), job.getRunTime());
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			jobs.remove(job.getId());
+			rejected.incrementAndGet();
+			throw e;
+		}
+		return job;
+	}
+
+	public RenderJob getJob(String jobId) {
+		return jobs.get(jobId);
+	}
+
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new LinkedHashMap<>();
+		stats.put("queued", (long) executor.getQueue().size());
+		stats.put("running", (long) executor.getActiveCount());
+		stats.put("capacity", (long) queueCapacity);
+		stats.put("completed", completed.get());
+		stats.put("failed", failed.get());
+		stats.put("rejected", rejected.get());
+		return stats;
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private void removeExpiredJobs() {
+		long now = System.currentTimeMillis();
+		Iterator<RenderJob> iter = jobs.values().iterator();
+		while (iter.hasNext()) {
+			RenderJob job = iter.next();
+			if (job.getFinished() > 0 && now - job.getFinished() > retention) {
+				iter.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,345 @@
+package org.patricbrc.circos;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Draws the common plots in-process: the karyotype ideograms with major ticks, the feature tile tracks, the outer large tile
+ * track and the GC line, histogram and heatmap tracks. It reads the plot model built for plots.conf together with the features
+ * and GC profiles in memory, and streams circos.svg and the circosmap image map directly to the given writers.
+ *
+ * Geometry follows the config templates: ideograms at 0.85 of the image radius, track radii relative to the ideogram radius,
+ * angle 0 at 12 o'clock and 0.005 of the circle between accessions. Colors approximate circos' colors.conf. Requests with
+ * uploaded files, with features streamed to disk or comparing several genomes are left to circos.
+ */
+public class SvgRenderer {
+
+	private static final double IDEOGRAM_RADIUS = 0.85;
+
+	private static final double SPACING = 0.005;
+
+	// chromosomes_units = 1000, major ticks every 100u labelled in Mb, minor ticks every 20u
+	private static final long MAJOR_TICK = 100000;
+
+	private static final long MINOR_TICK = 20000;
+
+	private static final String[] RDBU_10_DIV = { "#67001f", "#b2182b", "#d6604d", "#f4a582", "#fddbc7", "#d1e5f0", "#92c5de", "#4393c3",
+			"#2166ac", "#053061" };
+
+	private static final Map<String, String> COLORS = new HashMap<>();
+	static {
+		String[][] families = {
+				// vvl, vl, l, base, d, vd
+				{ "red", "#ffc1c8", "#ff7a89", "#ff3d52", "#f72a42", "#cd3345", "#9a2634" },
+				{ "green", "#ccffda", "#80ffa4", "#33ff70", "#33cc5e", "#269947", "#134d23" },
+				{ "blue", "#d4ddff", "#80b0ff", "#4080ff", "#3674d9", "#265299", "#13294d" },
+				{ "purple", "#ead1ff", "#d5a3ff", "#ab47ff", "#9136d9", "#6c28a3", "#491b6d" },
+				{ "orange", "#ffe4c1", "#ffbb6e", "#ffa243", "#ff8800", "#cc6d00", "#995200" },
+				{ "yellow", "#fffdca", "#fffc96", "#fffa5b", "#ffff00", "#bfba30", "#807c20" } };
+		String[] prefixes = { "vvl", "vl", "l", "", "d", "vd" };
+		for (String[] family : families) {
+			for (int i = 0; i < prefixes.length; i++) {
+				COLORS.put(prefixes[i] + family[0], family[i + 1]);
+			}
+		}
+		COLORS.put("black", "#000000");
+		COLORS.put("white", "#ffffff");
+		COLORS.put("lgrey", "#dcdcdc");
+		COLORS.put("grey", "#c8c8c8");
+		COLORS.put("dgrey", "#aaaaaa");
+	}
+
+	private final Circos circos;
+
+	private final double center;
+
+	private final double ideogramRadius;
+
+	private final List<Map<String, Object>> accessions;
+
+	// Angle in radians where each accession starts, and radians per base
+	private final Map<String, Double> accessionStart = new HashMap<>();
+
+	private double radiansPerBase;
+
+	public SvgRenderer(Circos circos) {
+		this.circos = circos;
+		this.center = circos.getImageSize();
+		this.ideogramRadius = IDEOGRAM_RADIUS * circos.getImageSize();
+		this.accessions = circos.getAccessions();
+
+		long total = 0;
+		for (Map<String, Object> accession : accessions) {
+			total += ((Number) accession.get("length")).longValue();
+		}
+		double gap = (accessions.size() > 1) ? SPACING * 2 * Math.PI : 0;
+		radiansPerBase = (2 * Math.PI - gap * accessions.size()) / Math.max(total, 1);
+		double angle = -Math.PI / 2;
+		for (Map<String, Object> accession : accessions) {
+			accessionStart.put(accession.get("accession").toString(), angle);
+			angle += ((Number) accession.get("length")).longValue() * radiansPerBase + gap;
+		}
+	}
+
+	/**
+	 * True if the request only uses plots this renderer can draw.
+	 */
+	public static boolean isSupported(Circos circos, Map<String, Object> parameters, boolean featureStreaming) {
+		if (featureStreaming || circos.getAccessions().isEmpty() || circos.isComparative()) {
+			return false;
+		}
+		for (Object value : parameters.values()) {
+			if (value instanceof TrackUpload && ((TrackUpload) value).isEmpty() == false) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public void render(Map<String, List<Map<String, String>>> plots, Writer svg, Writer html) throws IOException {
+		int size = 2 * circos.getImageSize();
+		svg.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n");
+		svg.write("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + size + "px\" height=\"" + size + "px\" viewBox=\"0 0 " + size + " "
+				+ size + "\">\n");
+		svg.write("<rect x=\"0\" y=\"0\" width=\"" + size + "\" height=\"" + size + "\" fill=\"white\"/>\n");
+		html.write("<map name='circosmap'>\n");
+
+		renderIdeograms(svg);
+		for (Map<String, String> plot : plots.get("tileplots")) {
+			if (plot.get("type").equals("heatmap")) {
+				renderHeatmap(plot, svg);
+			}
+			else {
+				renderTiles(plot, svg, html);
+			}
+		}
+		for (Map<String, String> plot : plots.get("nontileplots")) {
+			renderNonTile(plot, svg);
+		}
+
+		svg.write("</svg>\n");
+		html.write("</map>\n");
+	}
+
+	private void renderIdeograms(Writer svg) throws IOException {
+		svg.write("<g id=\"ideograms\">\n");
+		for (Map<String, Object> accession : accessions) {
+			String name = accession.get("accession").toString();
+			long length = ((Number) accession.get("length")).longValue();
+			arc(svg, angle(name, 0), angle(name, length), ideogramRadius, ideogramRadius + 1, "#000000", null);
+
+			for (long pos = 0; pos <= length; pos += MINOR_TICK) {
+				boolean major = pos % MAJOR_TICK == 0;
+				double a = angle(name, pos);
+				double r0 = ideogramRadius + 1;
+				double r1 = r0 + (major ? 6 : 3);
+				svg.write("<line x1=\"" + fmt(x(a, r0)) + "\" y1=\"" + fmt(y(a, r0)) + "\" x2=\"" + fmt(x(a, r1)) + "\" y2=\"" + fmt(y(a, r1))
+						+ "\" stroke=\"" + (major ? "#000000" : COLORS.get("dgrey")) + "\" stroke-width=\"1\"/>\n");
+				if (major) {
+					double r = r1 + 2;
+					double degrees = Math.toDegrees(a) + 90;
+					svg.write("<text x=\"" + fmt(x(a, r)) + "\" y=\"" + fmt(y(a, r)) + "\" font-size=\"9px\" font-weight=\"bold\""
+							+ " font-family=\"sans-serif\" transform=\"rotate(" + fmt(degrees) + "," + fmt(x(a, r)) + "," + fmt(y(a, r)) + ")\">"
+							+ String.format(Locale.US, "%.1f", pos * 1e-6) + "</text>\n");
+				}
+			}
+		}
+		svg.write("</g>\n");
+	}
+
+	private void renderTiles(Map<String, String> plot, Writer svg, Writer html) throws IOException {
+		double r1 = radius(plot.get("r1"));
+		double r0 = Math.max(radius(plot.get("r0")), r1 - Double.parseDouble(plot.get("thickness").replace("p", "")));
+		String color = color(plot.get("color"));
+		String track = plot.get("track");
+
+		svg.write("<g id=\"" + track + "\">\n");
+		if (track.equals("large_tiles")) {
+			for (Map<String, Object> accession : accessions) {
+				String name = accession.get("accession").toString();
+				arc(svg, angle(name, 0), angle(name, ((Number) accession.get("length")).longValue()), r0, r1, color, null);
+			}
+		}
+		else {
+			FeatureTrack features = circos.getGenomeData().get(track);
+			for (int i = 0; i < features.size(); i++) {
+				String name = features.getAccession(i);
+				if (accessionStart.containsKey(name) == false) {
+					continue;
+				}
+				double a0 = angle(name, features.getStart(i));
+				double a1 = angle(name, features.getEnd(i));
+				arc(svg, a0, a1, r0, r1, color, null);
+				if (features.getId(i) != FeatureTrack.NO_ID) {
+					area(html, a0, a1, r0, r1, features.getId(i));
+				}
+			}
+		}
+		svg.write("</g>\n");
+	}
+
+	private void renderHeatmap(Map<String, String> plot, Writer svg) throws IOException {
+		double r1 = radius(plot.get("r1"));
+		double r0 = Math.max(radius(plot.get("r0")), r1 - Double.parseDouble(plot.get("thickness").replace("p", "")));
+		String track = plot.get("track");
+
+		float min = Float.MAX_VALUE;
+		float max = -Float.MAX_VALUE;
+		for (GCProfile profile : circos.getGcProfiles()) {
+			for (int i = 0; i < profile.size(); i++) {
+				float value = value(track, profile, i);
+				if (Float.isNaN(value) == false) {
+					min = Math.min(min, value);
+					max = Math.max(max, value);
+				}
+			}
+		}
+
+		svg.write("<g id=\"" + track + "\">\n");
+		for (GCProfile profile : circos.getGcProfiles()) {
+			for (int i = 0; i < profile.size(); i++) {
+				float value = value(track, profile, i);
+				if (Float.isNaN(value)) {
+					continue;
+				}
+				int bin = (max > min) ? (int) ((value - min) / (max - min) * RDBU_10_DIV.length) : 0;
+				String color = RDBU_10_DIV[Math.min(bin, RDBU_10_DIV.length - 1)];
+				arc(svg, angle(profile.getAccession(), profile.getStart(i)), angle(profile.getAccession(), profile.getEnd(i)), r0, r1, color, null);
+			}
+		}
+		svg.write("</g>\n");
+	}
+
+	/**
+	 * Line and histogram plots. With "orientation = in" the maximum is drawn at the inner radius.
+	 */
+	private void renderNonTile(Map<String, String> plot, Writer svg) throws IOException {
+		double r1 = radius(plot.get("r1"));
+		double r0 = radius(plot.get("r0"));
+		double min = Double.parseDouble(plot.get("min"));
+		double max = Double.parseDouble(plot.get("max"));
+		String color = color(plot.get("color"));
+		String track = plot.get("track");
+		boolean histogram = plot.get("type").equals("histogram");
+
+		svg.write("<g id=\"" + track + "\">\n");
+		for (Map<String, Object> accession : accessions) {
+			String name = accession.get("accession").toString();
+			double a0 = angle(name, 0);
+			double a1 = angle(name, ((Number) accession.get("length")).longValue());
+			arc(svg, a0, a1, r0, r1, color(plot.get("plotbgcolor")), null);
+			for (int axis = 1; axis < 4; axis++) {
+				double r = r0 + (r1 - r0) * axis * 0.25;
+				arc(svg, a0, a1, r, r, null, COLORS.get("dgrey"));
+			}
+		}
+
+		double base = scale(Math.max(min, Math.min(max, 0)), min, max, r0, r1);
+		for (GCProfile profile : circos.getGcProfiles()) {
+			StringBuilder line = new StringBuilder();
+			for (int i = 0; i < profile.size(); i++) {
+				float value = value(track, profile, i);
+				if (Float.isNaN(value)) {
+					continue;
+				}
+				double r = scale(Math.max(min, Math.min(max, value)), min, max, r0, r1);
+				double a0 = angle(profile.getAccession(), profile.getStart(i));
+				double a1 = angle(profile.getAccession(), profile.getEnd(i));
+				if (histogram) {
+					arc(svg, a0, a1, Math.min(base, r), Math.max(base, r), color, null);
+				}
+				else {
+					double a = (a0 + a1) / 2;
+					line.append((line.length() == 0) ? "M" : " L").append(fmt(x(a, r))).append(',').append(fmt(y(a, r)));
+				}
+			}
+			if (line.length() > 0) {
+				svg.write("<path d=\"" + line + "\" fill=\"none\" stroke=\"" + color + "\" stroke-width=\"1\"/>\n");
+			}
+		}
+		svg.write("</g>\n");
+	}
+
+	private float value(String track, GCProfile profile, int i) {
+		if (track.equals("gc_content")) {
+			return profile.getContent(i);
+		}
+		return circos.isGcSkewCumulative() ? profile.getCumulativeSkew(i) : profile.getSkew(i);
+	}
+
+	private static double scale(double value, double min, double max, double r0, double r1) {
+		if (max <= min) {
+			return r1;
+		}
+		return r1 - (value - min) / (max - min) * (r1 - r0);
+	}
+
+	/**
+	 * Filled annular sector between two angles and two radii, or an arc line when there is no fill. Arcs of half a circle or more
+	 * are drawn in two halves: an SVG arc whose end point is its start point, like the ideogram of a genome with one accession,
+	 * would not be drawn at all.
+	 */
+	private void arc(Writer svg, double a0, double a1, double r0, double r1, String fill, String stroke) throws IOException {
+		double[] angles = (a1 - a0 >= Math.PI) ? new double[] { a0, (a0 + a1) / 2, a1 } : new double[] { a0, a1 };
+		StringBuilder d = new StringBuilder();
+		d.append('M').append(fmt(x(a0, r1))).append(',').append(fmt(y(a0, r1)));
+		for (int i = 1; i < angles.length; i++) {
+			d.append(" A").append(fmt(r1)).append(',').append(fmt(r1)).append(" 0 0,1 ");
+			d.append(fmt(x(angles[i], r1))).append(',').append(fmt(y(angles[i], r1)));
+		}
+		if (fill != null) {
+			d.append(" L").append(fmt(x(a1, r0))).append(',').append(fmt(y(a1, r0)));
+			for (int i = angles.length - 2; i >= 0; i--) {
+				d.append(" A").append(fmt(r0)).append(',').append(fmt(r0)).append(" 0 0,0 ");
+				d.append(fmt(x(angles[i], r0))).append(',').append(fmt(y(angles[i], r0)));
+			}
+			d.append(" Z");
+			svg.write("<path d=\"" + d + "\" fill=\"" + fill + "\"/>\n");
+		}
+		else {
+			svg.write("<path d=\"" + d + "\" fill=\"none\" stroke=\"" + stroke + "\" stroke-width=\"0.5\"/>\n");
+		}
+	}
+
+	/**
+	 * Image map entry of a feature, with the same link as the url of the tile plots in plots.conf.
+	 */
+	private void area(Writer html, double a0, double a1, double r0, double r1, long featureId) throws IOException {
+		html.write("<area shape='poly' coords='" + Math.round(x(a0, r1)) + "," + Math.round(y(a0, r1)) + "," + Math.round(x(a1, r1)) + ","
+				+ Math.round(y(a1, r1)) + "," + Math.round(x(a1, r0)) + "," + Math.round(y(a1, r0)) + "," + Math.round(x(a0, r0)) + ","
+				+ Math.round(y(a0, r0)) + "' href='javascript:linkFeature(" + featureId + ")' onmouseover='tooltipFeature(this, " + featureId
+				+ ")'>\n");
+	}
+
+	private double angle(String accession, long position) {
+		return accessionStart.get(accession) + position * radiansPerBase;
+	}
+
+	/**
+	 * Track radii such as "0.97r" are relative to the ideogram radius
+	 */
+	private double radius(String relative) {
+		return Double.parseDouble(relative.replace("r", "")) * ideogramRadius;
+	}
+
+	private double x(double angle, double radius) {
+		return center + radius * Math.cos(angle);
+	}
+
+	private double y(double angle, double radius) {
+		return center + radius * Math.sin(angle);
+	}
+
+	private static String color(String name) {
+		String color = COLORS.get(name);
+		return (color != null) ? color : COLORS.get("grey");
+	}
+
+	private static String fmt(double value) {
+		return String.format(Locale.US, "%.1f", value);
+	}
+}
@@ -0,0 +1,140 @@
+package org.patricbrc.circos;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Re-bins an uploaded line, histogram or heatmap file to a fixed number of bins per accession. Every accession gets bins in
+ * proportion to its share of the karyotype. Each row is added to the bin holding its midpoint, so the input does not have to be
+ * sorted and only the bins are kept in memory. Rows of accessions missing from the karyotype are dropped, as circos would drop
+ * them.
+ */
+public class TrackReducer {
+
+	private static final Logger logger = LoggerFactory.getLogger(TrackReducer.class);
+
+	public enum Aggregate {
+		MEAN, MAX, MIN
+	}
+
+	private final Aggregate aggregate;
+
+	private final Map<String, Bins> binsByAccession = new HashMap<>();
+
+	private final List<Map<String, Object>> accessions;
+
+	public TrackReducer(List<Map<String, Object>> accessions, long targetBins, Aggregate aggregate) {
+		this.accessions = accessions;
+		this.aggregate = aggregate;
+		long total = 0;
+		for (Map<String, Object> accession : accessions) {
+			total += ((Number) accession.get("length")).longValue();
+		}
+		for (Map<String, Object> accession : accessions) {
+			long length = ((Number) accession.get("length")).longValue();
+			int count = (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.round((double) targetBins * length / Math.max(total, 1))));
+			binsByAccession.put(accession.get("accession").toString(), new Bins(length, count));
+		}
+	}
+
+	/**
+	 * Reads the rows of input and writes one row per non-empty bin to output
+	 */
+	public void reduce(Path input, String output) throws IOException {
+		long rows = 0;
+		long dropped = 0;
+		try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// Same rules as the TrackUpload check: carriage returns are ignored, blank and comment lines skipped
+				if (line.indexOf('\r') >= 0) {
+					line = line.replace("\r", "");
+				}
+				if (line.trim().isEmpty() || line.charAt(0) == '#') {
+					continue;
+				}
+				int tab1 = line.indexOf('\t');
+				int tab2 = (tab1 >= 0) ? line.indexOf('\t', tab1 + 1) : -1;
+				int tab3 = (tab2 >= 0) ? line.indexOf('\t', tab2 + 1) : -1;
+				if (tab3 < 0) {
+					continue;
+				}
+				rows++;
+				int tab4 = line.indexOf('\t', tab3 + 1);
+				Bins bins = binsByAccession.get(line.substring(0, tab1));
+				if (bins == null) {
+					dropped++;
+					continue;
+				}
+				long start = Long.parseLong(line.substring(tab1 + 1, tab2));
+				long end = Long.parseLong(line.substring(tab2 + 1, tab3).trim());
+				float value = Float.parseFloat(line.substring(tab3 + 1, (tab4 > 0) ? tab4 : line.length()));
+				bins.add((start + end) / 2, value);
+			}
+		}
+
+		long written = 0;
+		try (CircosDataWriter writer = new CircosDataWriter(output)) {
+			for (Map<String, Object> accession : accessions) {
+				String name = accession.get("accession").toString();
+				Bins bins = binsByAccession.get(name);
+				for (int i = 0; i < bins.counts.length; i++) {
+					if (bins.counts[i] > 0) {
+						writer.writeValue(name, (int) (i * bins.size), (int) Math.min((i + 1) * bins.size - 1, bins.length), bins.value(i));
+						written++;
+					}
+				}
+			}
+		}
+		logger.info("Reduced {} by {} from {} rows to {} bins, dropped {} rows outside the karyotype", input.getFileName(), aggregate, rows,
+				written, dropped);
+	}
+
+	private class Bins {
+
+		final long length;
+
+		final long size;
+
+		final int[] counts;
+
+		final double[] values;
+
+		Bins(long length, int count) {
+			this.length = length;
+			this.size = Math.max(1, (length + count - 1) / count);
+			this.counts = new int[(int) Math.max(1, (length + size - 1) / size)];
+			this.values = new double[counts.length];
+		}
+
+		void add(long position, float value) {
+			int i = (int) Math.max(0, Math.min(counts.length - 1, position / size));
+			if (counts[i] == 0) {
+				values[i] = value;
+			}
+			else if (aggregate == Aggregate.MEAN) {
+				values[i] += value;
+			}
+			else if (aggregate == Aggregate.MAX) {
+				values[i] = Math.max(values[i], value);
+			}
+			else {
+				values[i] = Math.min(values[i], value);
+			}
+			counts[i]++;
+		}
+
+		float value(int i) {
+			return (float) ((aggregate == Aggregate.MEAN) ? values[i] / counts[i] : values[i]);
+		}
+	}
+}
@@ -0,0 +1,304 @@
+package org.patricbrc.circos;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+/**
+ * A user uploaded data file. The multipart stream is copied to a staging file once, and every row is checked on the way through
+ * the copy buffer, so the upload is never held in memory or split into strings. The staging file is later moved into the data
+ * directory of the image.
+ *
+ * Rows are "accession start end" followed by a value for line, histogram and heatmap plots, or optionally by an "id=" option for
+ * tile plots. Blank lines and lines starting with '#' are skipped, as circos does. Since the plot type of a file is only known
+ * once the whole form is read, the first bad line is kept for both kinds of plot.
+ */
+public class TrackUpload {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// States of the number check on the fourth column, following Float.parseFloat for plain decimals
+	private static final int NUMBER_START = 0;
+
+	private static final int NUMBER_SIGN = 1;
+
+	private static final int NUMBER_INTEGER = 2;
+
+	private static final int NUMBER_DOT = 3;
+
+	private static final int NUMBER_FRACTION = 4;
+
+	private static final int NUMBER_EXPONENT = 5;
+
+	private static final int NUMBER_EXPONENT_SIGN = 6;
+
+	private static final int NUMBER_EXPONENT_DIGITS = 7;
+
+	private static final int NUMBER_TRAILING_SPACE = 8;
+
+	private static final int NUMBER_INVALID = -1;
+
+	private static final byte[] ID_OPTION = { 'i', 'd', '=' };
+
+	private final String name;
+
+	private final Path file;
+
+	private final long maxRows;
+
+	private long bytes = 0;
+
+	private long lines = 0;
+
+	private long rows = 0;
+
+	private boolean tooManyRows = false;
+
+	private long firstBadTileLine = 0;
+
+	private long firstBadValueLine = 0;
+
+	// State of the line being scanned
+	private int column = 0;
+
+	private int fieldLength = 0;
+
+	private boolean comment = false;
+
+	private boolean coordinatesValid = true;
+
+	private int numberState = NUMBER_START;
+
+	private int idMatched = 0;
+
+	private boolean hasId = false;
+
+	private boolean valueNumeric = false;
+
+	private TrackUpload(String name, Path file, long maxRows) {
+		this.name = name;
+		this.file = file;
+		this.maxRows = maxRows;
+	}
+
+	/**
+	 * Copies an uploaded file into the staging directory while checking its rows. Throws IOException once the file is larger than
+	 * maxBytes; the staging file is removed in that case. A file input left empty gives an upload without a file.
+	 */
+	public static TrackUpload receive(String name, InputStream in, Path stagingDir, long maxBytes, long maxRows) throws IOException {
+		if (name == null || name.equals("")) {
+			return new TrackUpload("", null, maxRows);
+		}
+		TrackUpload upload = new TrackUpload(name, Files.createTempFile(stagingDir, "upload.", ".txt"), maxRows);
+		try (OutputStream out = Files.newOutputStream(upload.file)) {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int n;
+			while ((n = in.read(buffer)) != -1 && upload.tooManyRows == false) {
+				upload.bytes += n;
+				if (upload.bytes > maxBytes) {
+					throw new IOException(name + " is larger than " + maxBytes + " bytes");
+				}
+				out.write(buffer, 0, n);
+				upload.scan(buffer, n);
+			}
+			upload.endOfFile();
+		}
+		catch (IOException e) {
+			upload.delete();
+			throw e;
+		}
+		return upload;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public Path getPath() {
+		return file;
+	}
+
+	public long getRows() {
+		return rows;
+	}
+
+	public boolean isEmpty() {
+		return file == null;
+	}
+
+	/**
+	 * Describes the first problem of this file for the given plot type, or returns null if it can be plotted
+	 */
+	public String getError(String plotType) {
+		if (tooManyRows) {
+			return name + " has more than " + maxRows + " rows";
+		}
+		switch (plotType) {
+		case "tile":
+			if (firstBadTileLine > 0) {
+				return name + " line " + firstBadTileLine + ": expected accession, start, end and optionally id=...";
+			}
+			return null;
+		case "line":
+		case "histogram":
+		case "heatmap":
+			if (firstBadValueLine > 0) {
+				return name + " line " + firstBadValueLine + ": expected accession, start, end and a numeric value";
+			}
+			return null;
+		default:
+			return name + ": unknown plot type " + plotType;
+		}
+	}
+
+	/**
+	 * Moves the staging file to its place in the data directory, a rename when both are on the same file system
+	 */
+	public void moveTo(Path target) throws IOException {
+		Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Removes the staging file if it was not moved
+	 */
+	public void delete() {
+		if (file != null) {
+			try {
+				Files.deleteIfExists(file);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Removes the staging files of all uploads of a request
+	 */
+	public static void deleteAll(Map<String, Object> parameters) {
+		for (Object value : parameters.values()) {
+			if (value instanceof TrackUpload) {
+				((TrackUpload) value).delete();
+			}
+		}
+	}
+
+	private void scan(byte[] buffer, int length) {
+		for (int i = 0; i < length && tooManyRows == false; i++) {
+			byte b = buffer[i];
+			switch (b) {
+			case '\n':
+				endLine();
+				break;
+			case '\r':
+				break;
+			case '\t':
+				endField();
+				column++;
+				fieldLength = 0;
+				break;
+			default:
+				field(b);
+			}
+		}
+	}
+
+	private void field(byte b) {
+		if (column == 0 && fieldLength == 0 && b == '#') {
+			comment = true;
+		}
+		fieldLength++;
+		if (column == 1 || column == 2) {
+			coordinatesValid &= (b >= '0' && b <= '9');
+		}
+		else if (column == 3) {
+			numberState = nextNumberState(numberState, b);
+			if (hasId == false) {
+				idMatched = (b == ID_OPTION[idMatched]) ? idMatched + 1 : ((b == ID_OPTION[0]) ? 1 : 0);
+				hasId = idMatched == ID_OPTION.length;
+			}
+		}
+	}
+
+	private void endField() {
+		if (column <= 2) {
+			coordinatesValid &= fieldLength > 0;
+		}
+		else if (column == 3) {
+			valueNumeric = numberState == NUMBER_INTEGER || numberState == NUMBER_FRACTION || numberState == NUMBER_EXPONENT_DIGITS
+					|| numberState == NUMBER_TRAILING_SPACE;
+		}
+	}
+
+	private void endLine() {
+		lines++;
+		endField();
+		boolean blank = column == 0 && fieldLength == 0;
+		if (comment == false && blank == false) {
+			rows++;
+			boolean malformed = column < 2 || coordinatesValid == false;
+			if ((malformed || (column >= 3 && hasId == false)) && firstBadTileLine == 0) {
+				firstBadTileLine = lines;
+			}
+			if ((malformed || column < 3 || valueNumeric == false) && firstBadValueLine == 0) {
+				firstBadValueLine = lines;
+			}
+			tooManyRows = rows > maxRows;
+		}
+
+		column = 0;
+		fieldLength = 0;
+		comment = false;
+		coordinatesValid = true;
+		numberState = NUMBER_START;
+		idMatched = 0;
+		hasId = false;
+		valueNumeric = false;
+	}
+
+	private void endOfFile() {
+		if (column > 0 || fieldLength > 0) {
+			endLine();
+		}
+	}
+
+	private static int nextNumberState(int state, byte b) {
+		boolean digit = b >= '0' && b <= '9';
+		boolean sign = b == '+' || b == '-';
+		boolean exponent = b == 'e' || b == 'E';
+		switch (state) {
+		case NUMBER_START:
+			return (b == ' ') ? NUMBER_START : (sign ? NUMBER_SIGN : (digit ? NUMBER_INTEGER : ((b == '.') ? NUMBER_DOT : NUMBER_INVALID)));
+		case NUMBER_SIGN:
+			return digit ? NUMBER_INTEGER : ((b == '.') ? NUMBER_DOT : NUMBER_INVALID);
+		case NUMBER_INTEGER:
+			return digit ? NUMBER_INTEGER : ((b == '.') ? NUMBER_FRACTION : (exponent ? NUMBER_EXPONENT : trailing(b)));
+		case NUMBER_DOT:
+			return digit ? NUMBER_FRACTION : NUMBER_INVALID;
+		case NUMBER_FRACTION:
+			return digit ? NUMBER_FRACTION : (exponent ? NUMBER_EXPONENT : trailing(b));
+		case NUMBER_EXPONENT:
+			return sign ? NUMBER_EXPONENT_SIGN : (digit ? NUMBER_EXPONENT_DIGITS : NUMBER_INVALID);
+		case NUMBER_EXPONENT_SIGN:
+			return digit ? NUMBER_EXPONENT_DIGITS : NUMBER_INVALID;
+		case NUMBER_EXPONENT_DIGITS:
+			return digit ? NUMBER_EXPONENT_DIGITS : trailing(b);
+		case NUMBER_TRAILING_SPACE:
+			return trailing(b);
+		default:
+			return NUMBER_INVALID;
+		}
+	}
+
+	private static int trailing(byte b) {
+		return (b == ' ') ? NUMBER_TRAILING_SPACE : NUMBER_INVALID;
+	}
+}
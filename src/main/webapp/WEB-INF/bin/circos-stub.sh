@@ -0,0 +1,25 @@
+#!/bin/sh
+#
+# Stand-in for a one-shot circos run. It takes the same arguments as circos, sleeps CIRCOS_STUB_DELAY seconds (default 0)
+# and writes an empty circos.svg and circos.html into the image directory.
+#
+#   -Dcircos.command="sh /path/to/WEB-INF/bin/circos-stub.sh"
+
+conf=""
+while [ $# -gt 0 ]; do
+	if [ "$1" = "-conf" ]; then
+		conf="$2"
+		shift
+	fi
+	shift
+done
+if [ -z "$conf" ]; then
+	echo "usage: circos-stub.sh -conf circos.conf" >&2
+	exit 1
+fi
+
+sleep "${CIRCOS_STUB_DELAY:-0}"
+dir=$(dirname "$(dirname "$conf")")
+echo '<svg xmlns="http://www.w3.org/2000/svg"/>' > "$dir/circos.svg"
+echo '<map name="circosmap"></map>' > "$dir/circos.html"
+echo "debuggroup summary 0.00s stub render $conf"
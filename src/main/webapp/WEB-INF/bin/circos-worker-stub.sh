@@ -0,0 +1,25 @@
+#!/bin/sh
+#
+# Stand-in for circos-worker.pl that speaks the same protocol without circos installed. It writes an empty circos.svg and
+# circos.html into the image directory after CIRCOS_STUB_DELAY seconds (default 0).
+#
+#   -Dcircos.worker.command="sh /path/to/WEB-INF/bin/circos-worker-stub.sh"
+
+while read -r cmd conf; do
+	case "$cmd" in
+	PING)
+		echo "PONG"
+		;;
+	RENDER)
+		sleep "${CIRCOS_STUB_DELAY:-0}"
+		dir=$(dirname "$(dirname "$conf")")
+		echo '<svg xmlns="http://www.w3.org/2000/svg"/>' > "$dir/circos.svg"
+		echo '<map name="circosmap"></map>' > "$dir/circos.html"
+		echo "debuggroup summary 0.00s stub render $conf"
+		echo "DONE 0"
+		;;
+	*)
+		echo "unknown command: $cmd"
+		;;
+	esac
+done
@@ -0,0 +1,77 @@
+#!/usr/bin/env perl
+#
+# Long-lived circos worker used by CircosWorkerPool. The Circos modules are loaded once; each image is rendered in a forked
+# child so that it starts from a clean, already compiled interpreter. The child runs in its own process group, which is
+# killed with the worker when CircosWorkerPool sends SIGTERM after a timeout.
+#
+#   PING          -> PONG
+#   RENDER <conf> -> circos output, then DONE <exit code>
+#
+# CIRCOS_HOME points to the circos installation, otherwise it is found from the circos script on the PATH.
+
+use strict;
+use warnings;
+use Cwd qw(abs_path);
+use File::Basename qw(dirname);
+
+my $circos_home;
+
+BEGIN {
+	$circos_home = $ENV{CIRCOS_HOME};
+	if (!$circos_home) {
+		my $script = `which circos`;
+		chomp $script;
+		die "circos not found on PATH\n" unless $script;
+		$circos_home = dirname(dirname(abs_path($script)));
+	}
+	unshift @INC, "$circos_home/lib";
+}
+
+# Circos looks up etc/ relative to the directory of its script
+use FindBin;
+$FindBin::Bin = $FindBin::RealBin = "$circos_home/bin";
+
+require Circos;
+
+$| = 1;
+
+# Process group of the image being rendered
+my $child = 0;
+
+$SIG{TERM} = sub {
+	kill 'TERM', -$child if $child;
+	exit 143;
+};
+
+while (my $line = <STDIN>) {
+	chomp $line;
+	if ($line eq 'PING') {
+		print "PONG\n";
+	}
+	elsif ($line =~ /^RENDER (.+)$/) {
+		my $conf = $1;
+		my $pid  = fork();
+		if (!defined $pid) {
+			print "fork failed: $!\n";
+			print "DONE 1\n";
+			next;
+		}
+		if ($pid == 0) {
+			$SIG{TERM} = 'DEFAULT';
+			setpgrp(0, 0);
+			open STDERR, '>&', \*STDOUT;
+			my $ok = eval { Circos->run(conf => $conf, debug_group => 'summary,timer'); 1 };
+			print "$@\n" unless $ok;
+			exit($ok ? 0 : 1);
+		}
+		# Set here as well, so the group exists even if the child has not run yet
+		setpgrp($pid, $pid);
+		$child = $pid;
+		waitpid($pid, 0);
+		$child = 0;
+		print "DONE " . ($? >> 8) . "\n";
+	}
+	else {
+		print "unknown command: $line\n";
+	}
+}
@@ -3,6 +3,10 @@ $(document).ready(function() {
         this.value = this.value.replace(/[^0-9\.]/g,'');
     });
 
+    $('#gc_window_size, #gc_step_size').keyup(function () {
+        this.value = this.value.replace(/[^0-9]/g,'');
+    });
+
     $("#track_width").change(function() {
         $("#slider_value").html(this.value + "%");
     });
@@ -42,22 +46,17 @@ $(document).ready(function() {
                 processData: false
             })
             .done(function(response) {
-            	var circos_map = $("#circosmap");
-                var image_file = "../images/"+response+"/circos.svg";
-                var image_map = "../images/"+response+"/circos.html";
-                circos_result.html("");
-                circos_result.load(image_map, function() {
-                	circos_result.append(
-                		"<h2>Your generated Circos plot:</h2>" +
-                		"<img src=\"../images/"+response+"/circos.svg\" usemap=\"#circosmap\">"
-                	);                	
-                });
+                pollJob(formURL, $.parseJSON(response).jobId);
             })
-            .fail(function() {
-                $("#errorMessage").html("The Circos image could not be created");
+            .fail(function(xhr) {
+                if (xhr.status == 429) {
+                    $("#errorMessage").html("Too many images are being generated, please try again later");
+                } else if (xhr.status == 400) {
+                    $("#errorMessage").text($.parseJSON(xhr.responseText).message);
+                } else {
+                    $("#errorMessage").html("The Circos image could not be created");
+                }
                 circos_result.html("");
-            })
-            .always(function() {
                 $("#go").removeAttr("disabled");
             });
             circos_result.append("<h2>Circos image is being generated...</h2>");
@@ -67,6 +66,37 @@ $(document).ready(function() {
     });
 });
 
+// Poll the job status until the image is generated
+function pollJob(formURL, jobId) {
+    var circos_result = $("#circos_result");
+    $.getJSON(formURL, { jobId: jobId })
+    .done(function(job) {
+        if (job.status == "queued" || job.status == "running") {
+            setTimeout(function() { pollJob(formURL, jobId); }, 1000);
+            return;
+        }
+        $("#go").removeAttr("disabled");
+        if (job.status == "failed") {
+            $("#errorMessage").html("The Circos image could not be created");
+            circos_result.html("");
+            return;
+        }
+        var image_map = "../images/"+job.imageId+"/circos.html";
+        circos_result.html("");
+        circos_result.load(image_map, function() {
+            circos_result.append(
+                "<h2>Your generated Circos plot:</h2>" +
+                "<img src=\"../images/"+job.imageId+"/circos.svg\" usemap=\"#circosmap\">"
+            );
+        });
+    })
+    .fail(function() {
+        $("#errorMessage").html("The Circos image could not be created");
+        circos_result.html("");
+        $("#go").removeAttr("disabled");
+    });
+}
+
 function validateForm() {
     var goButton = $("#go");
     var gid = $("#gid");
@@ -113,7 +143,9 @@ function addGCSkewDropdown() {
                               "  <option value=\"line\">Line Plot</option>" +
                               "  <option value=\"histogram\">Histogram</option>" +
                               "  <option value=\"heatmap\">Heatmap</option>" +
-                              "</select>");
+                              "</select>&nbsp;" +
+                              "<input name=\"gc_skew_cumulative\" id=\"gc_skew_cumulative\" type=\"checkbox\">" +
+                              "<label for=\"gc_skew_cumulative\">Cumulative</label>");
     } else {
         gcDropdownArea.html("");
     }
@@ -18,6 +18,18 @@
                 <h2>1. Enter the GID you want to display</h2>
                 <label for="gid">GID:</label>
                 <input name="gid" id="gid" type="text" value=87468 />
+                <br><br>
+                <label for="compare_gids">Compare with GIDs:</label>
+                <input name="compare_gids" id="compare_gids" type="text" placeholder="e.g. 83332.12, 83331.31"/>
+                <br>
+                <label for="link_family">Link features by:</label>
+                <select name="link_family" id="link_family">
+                    <option value="pgfam_id">PATRIC global families</option>
+                    <option value="plfam_id">PATRIC genus families</option>
+                    <option value="figfam_id">FIGfams</option>
+                </select>
+                <br>
+                <small>Compared genomes are drawn next to this one, with links between features of the same family</small>
                 <br><br><hr>
                 <h2>2. Default Data Tracks</h2>
                 <%
@@ -39,6 +51,13 @@
                 <input name="gc_skew" id="gc_skew" type="checkbox" onclick="addGCSkewDropdown();">
                 <label for="gc_skew">Include track for GC Skew?</label>
                 <div id="gc_skew_dropdown"></div>
+                <br>
+                <label for="gc_window_size">GC Window Size:</label>
+                <input name="gc_window_size" id="gc_window_size" type="text" placeholder="2000"/>
+                <label for="gc_step_size">Step:</label>
+                <input name="gc_step_size" id="gc_step_size" type="text" placeholder="2000"/>
+                <br>
+                <small>If the step is left empty, windows do not overlap</small>
                 <br><hr>
                 <h2>3. Custom Data Tracks</h2>
                 <input name="add_custom_track" id="add_custom_track" type="checkbox" onclick="firstCustomTrack();"/>
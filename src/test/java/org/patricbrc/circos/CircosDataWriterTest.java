@@ -0,0 +1,107 @@
+package org.patricbrc.circos;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CircosDataWriterTest {
+
+	private Path file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = Files.createTempFile("writer", ".txt");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Test
+	public void randomValuesMatchFormat() throws IOException {
+		Random random = new Random(42);
+		float[] values = new float[100000];
+		for (int i = 0; i < values.length; i++) {
+			switch (i % 4) {
+			case 0:
+				// GC content and skew
+				values[i] = random.nextFloat() * 2 - 1;
+				break;
+			case 1:
+				values[i] = (float) ((random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(16) - 6));
+				break;
+			case 2:
+				values[i] = Float.intBitsToFloat(random.nextInt());
+				break;
+			default:
+				// Six decimals of a float are often right at a rounding boundary
+				values[i] = random.nextInt(2000000) / 1000000f;
+			}
+		}
+		assertFormat(values);
+	}
+
+	@Test
+	public void specialValuesMatchFormat() throws IOException {
+		assertFormat(new float[] { 0f, -0f, Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.MIN_VALUE,
+				-Float.MIN_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, 1e-7f, -1e-7f, 4e-7f, -4e-7f, 1e12f, -1e12f, 999999.9999995f });
+	}
+
+	@Test
+	public void halfwayValuesMatchFormat() throws IOException {
+		float[] values = new float[4000];
+		for (int i = 0; i < 1000; i++) {
+			// x.yyyyyy5 in decimal, rarely exact in binary, so these land just above or below the boundary
+			float value = (float) ((i * 1000003L % 10000000 + 0.5) / 1e6);
+			values[4 * i] = value;
+			values[4 * i + 1] = -value;
+			values[4 * i + 2] = Math.nextUp(value);
+			values[4 * i + 3] = Math.nextAfter(value, 0);
+		}
+		assertFormat(values);
+		// Exact in binary
+		assertFormat(new float[] { 0.5f, 2.5f, 0.0000005f, 0.0000015f, 0.0000025f, 1.0000005f, -2.0000005f, 0.0078125f,
+				0.00390625f, 0.001953125f, 0.0009765625f, 0.00048828125f, 0.000244140625f, 0.0001220703125f });
+	}
+
+	@Test
+	public void integers() throws IOException {
+		long[] values = { 0, 1, -1, 9, 10, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE };
+		CircosDataWriter writer = new CircosDataWriter(file.toString());
+		StringBuilder expected = new StringBuilder();
+		for (long value : values) {
+			writer.write(value);
+			writer.write('\n');
+			expected.append(String.format("%d", value)).append('\n');
+		}
+		writer.close();
+		assertEquals(expected.toString(), read());
+	}
+
+	private void assertFormat(float[] values) throws IOException {
+		CircosDataWriter writer = new CircosDataWriter(file.toString());
+		for (float value : values) {
+			writer.writeValue("NC_1", 0, 99, value);
+		}
+		writer.close();
+		String[] lines = read().split("\n");
+		assertEquals(values.length, lines.length);
+		for (int i = 0; i < values.length; i++) {
+			assertEquals("value " + values[i] + " (bits " + Integer.toHexString(Float.floatToIntBits(values[i])) + ")",
+					String.format("NC_1\t0\t99\t%f", values[i]), lines[i]);
+		}
+	}
+
+	private String read() throws IOException {
+		return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,117 @@
+package org.patricbrc.circos;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class GCStatisticsTest {
+
+	@Test
+	public void defaultWindowsMatchRegexCounts() {
+		String sequence = randomSequence(new Random(1), 123457);
+		assertProfile(sequence, GCStatistics.compute("NC_1", sequence, GCStatistics.DEFAULT_WINDOW_SIZE,
+				GCStatistics.DEFAULT_WINDOW_SIZE), GCStatistics.DEFAULT_WINDOW_SIZE, GCStatistics.DEFAULT_WINDOW_SIZE);
+	}
+
+	@Test
+	public void slidingWindowsMatchRegexCounts() {
+		Random random = new Random(2);
+		String sequence = randomSequence(random, 50003);
+		int[][] layouts = { { 1000, 250 }, { 2000, 500 }, { 1000, 999 }, { 500, 1000 }, { 7, 3 }, { 50003, 1 } };
+		for (int[] layout : layouts) {
+			assertProfile(sequence, GCStatistics.compute("NC_1", sequence, layout[0], layout[1]), layout[0], layout[1]);
+		}
+	}
+
+	@Test
+	public void shortAndEmptySequences() {
+		assertEquals(0, GCStatistics.compute("NC_1", "", 100, 100).size());
+		assertEquals(0, GCStatistics.compute("NC_1", "ACGT", 100, 100).size());
+		// No G or C in a window gives a NaN skew, which does not move the cumulative skew
+		String sequence = "AAAAAAAAAAGGGGGGGGGGTTTTTTTTTTNNNNNNNNNN";
+		GCProfile profile = GCStatistics.compute("NC_1", sequence, 10, 10);
+		assertProfile(sequence, profile, 10, 10);
+		assertEquals(Float.NaN, profile.getSkew(0), 0);
+	}
+
+	@Test
+	public void parallelChunksMatchRegexCounts() {
+		Random random = new Random(3);
+		List<String> accessions = Arrays.asList("NC_1", "NC_2", "NC_3");
+		// Longer than a chunk, so the index is built in parallel pieces
+		List<String> sequences = Arrays.asList(randomSequence(random, 3 * 1024 * 1024 + 17), randomSequence(random, 999),
+				randomSequence(random, 20000));
+		List<GCProfile> profiles = GCStatistics.computeAll(accessions, sequences, 2000, 1500);
+		assertEquals(3, profiles.size());
+		for (int i = 0; i < 3; i++) {
+			assertEquals(accessions.get(i), profiles.get(i).getAccession());
+			assertProfile(sequences.get(i), profiles.get(i), 2000, 1500);
+		}
+	}
+
+	/**
+	 * Compares a profile with the regex counting of the original implementation, windows laid out as in GCStatistics.compute
+	 */
+	private static void assertProfile(String sequence, GCProfile profile, int windowSize, int stepSize) {
+		Pattern gc = Pattern.compile("[gcGC]");
+		Pattern g = Pattern.compile("[gG]");
+		Pattern c = Pattern.compile("[cC]");
+		int totalSeqLength = sequence.length();
+		int windows = (totalSeqLength < windowSize) ? 0 : (totalSeqLength - windowSize) / stepSize + 1;
+		assertEquals(windows, profile.size());
+
+		float cumulativeWeight = Math.min(1.0f, (float) stepSize / windowSize);
+		float cumulative = 0.0f;
+		for (int i = 0; i < windows; i++) {
+			int startIndex = (i == 0) ? 0 : (i * stepSize + 1);
+			int endIndex = Math.min(i * stepSize + windowSize, totalSeqLength - 1);
+			String window = "window " + i + " of " + windowSize + "/" + stepSize;
+			assertEquals(window, startIndex, profile.getStart(i));
+			assertEquals(window, endIndex, profile.getEnd(i));
+
+			int gcCount = count(gc.matcher(sequence.subSequence(startIndex, endIndex)));
+			int gCount = count(g.matcher(sequence.subSequence(startIndex, endIndex)));
+			int cCount = count(c.matcher(sequence.subSequence(startIndex, endIndex)));
+			float skew = (float) (gCount - cCount) / (gCount + cCount);
+			assertEquals(window, gcCount / (float) (endIndex - startIndex), profile.getContent(i), 0);
+			assertEquals(window, skew, profile.getSkew(i), 0);
+
+			if (gCount + cCount > 0) {
+				cumulative += skew * cumulativeWeight;
+			}
+			assertEquals(window, cumulative, profile.getCumulativeSkew(i), 0);
+		}
+	}
+
+	private static int count(Matcher matcher) {
+		int count;
+		for (count = 0; matcher.find(); count++)
+			;
+		return count;
+	}
+
+	private static String randomSequence(Random random, int length) {
+		String bases = "ACGTacgtNN";
+		StringBuilder sequence = new StringBuilder(length);
+		// Runs of one base, so some windows have no G or C
+		while (sequence.length() < length) {
+			if (random.nextInt(50) == 0) {
+				char base = "ATN".charAt(random.nextInt(3));
+				for (int i = random.nextInt(5000); i > 0; i--) {
+					sequence.append(base);
+				}
+			}
+			else {
+				sequence.append(bases.charAt(random.nextInt(bases.length())));
+			}
+		}
+		sequence.setLength(length);
+		return sequence.toString();
+	}
+}
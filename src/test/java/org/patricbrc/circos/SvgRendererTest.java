@@ -0,0 +1,126 @@
+package org.patricbrc.circos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class SvgRendererTest {
+
+	private static final Pattern PATH = Pattern.compile("<path d=\"([^\"]*)\"");
+
+	private static final Pattern COMMAND = Pattern.compile("([MLAZ])([^MLAZ]*)");
+
+	@Test
+	public void singleAccessionRingsAreDrawn() throws IOException {
+		String svg = render(1);
+		List<String> paths = paths(svg, "ideograms");
+		assertEquals(1, paths.size());
+		assertClosedArcsDrawn(paths.get(0));
+		for (String path : paths(svg, "large_tiles")) {
+			assertClosedArcsDrawn(path);
+		}
+		for (String path : paths(svg, "gc_content")) {
+			if (path.contains("A")) {
+				assertClosedArcsDrawn(path);
+			}
+		}
+	}
+
+	@Test
+	public void severalAccessionsHaveDrawableArcs() throws IOException {
+		String svg = render(3);
+		List<String> paths = paths(svg, "ideograms");
+		assertEquals(3, paths.size());
+		for (String path : paths) {
+			assertClosedArcsDrawn(path);
+		}
+	}
+
+	/**
+	 * Every arc command must end away from where it starts, otherwise SVG renderers omit it
+	 */
+	private static void assertClosedArcsDrawn(String path) {
+		Matcher command = COMMAND.matcher(path);
+		double[] current = null;
+		int arcs = 0;
+		while (command.find()) {
+			String[] args = command.group(2).trim().split("[ ,]+");
+			if (command.group(1).equals("Z")) {
+				continue;
+			}
+			double[] point = { Double.parseDouble(args[args.length - 2]), Double.parseDouble(args[args.length - 1]) };
+			if (command.group(1).equals("A")) {
+				assertFalse("Arc ends where it starts in " + path, Arrays.equals(current, point));
+				arcs++;
+			}
+			current = point;
+		}
+		assertTrue(arcs > 0);
+	}
+
+	private static String render(int accessionCount) throws IOException {
+		Circos circos = new Circos("/tmp");
+		List<Map<String, Object>> accessions = new ArrayList<>();
+		for (int i = 0; i < accessionCount; i++) {
+			Map<String, Object> accession = new HashMap<>();
+			accession.put("accession", "NC_00000" + i);
+			accession.put("length", 4000000 / accessionCount);
+			accessions.add(accession);
+		}
+		circos.setAccessions(accessions);
+		circos.setGenomeData(new LinkedHashMap<String, FeatureTrack>());
+		circos.setGcProfiles(new ArrayList<GCProfile>());
+		circos.setGcContentPlotType("line");
+
+		Map<String, String> largeTiles = new HashMap<>();
+		largeTiles.put("track", "large_tiles");
+		largeTiles.put("type", "tile");
+		largeTiles.put("color", "vdblue");
+		largeTiles.put("thickness", "15p");
+		largeTiles.put("r1", "1.0r");
+		largeTiles.put("r0", "0.98r");
+		Map<String, String> gcContent = new HashMap<>();
+		gcContent.put("track", "gc_content");
+		gcContent.put("type", "line");
+		gcContent.put("color", "vdgreen");
+		gcContent.put("plotbgcolor", "vvlgreen");
+		gcContent.put("r1", "0.97r");
+		gcContent.put("r0", "0.87r");
+		gcContent.put("min", "0.0");
+		gcContent.put("max", "1.0");
+		Map<String, List<Map<String, String>>> plots = new HashMap<>();
+		plots.put("tileplots", Arrays.asList(largeTiles));
+		plots.put("nontileplots", Arrays.asList(gcContent));
+
+		StringWriter svg = new StringWriter();
+		new SvgRenderer(circos).render(plots, svg, new StringWriter());
+		return svg.toString();
+	}
+
+	/**
+	 * Paths of the group with the given id
+	 */
+	private static List<String> paths(String svg, String group) {
+		int start = svg.indexOf("<g id=\"" + group + "\">");
+		String body = svg.substring(start, svg.indexOf("</g>", start));
+		List<String> paths = new ArrayList<>();
+		Matcher path = PATH.matcher(body);
+		while (path.find()) {
+			paths.add(path.group(1));
+		}
+		return paths;
+	}
+}
@@ -0,0 +1,63 @@
+package org.patricbrc.circos;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TrackReducerTest {
+
+	private Path dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("reducer");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		ImageCache.deleteDirectory(dir.toString());
+	}
+
+	@Test
+	public void crlfFileWithBlankLines() throws IOException {
+		String upload = "# comment\r\nNC_1\t0\t99\t1.0\r\n\r\n \r\r\nNC_1\t100\t199\t3.0\r\n\r\nNC_1\t500\t599\t2.5 \r\n";
+		assertEquals(Arrays.asList("NC_1\t0\t99\t1.000000", "NC_1\t100\t199\t3.000000", "NC_1\t500\t599\t2.500000"), reduce(upload, 10));
+	}
+
+	@Test
+	public void rowsWithoutValueAreSkipped() throws IOException {
+		String upload = "NC_1\t0\t99\t1.0\nNC_1\nNC_1\t0\nNC_1\t0\t99\n\t\nNC_1\t0\t99\t3.0\n";
+		assertEquals(Arrays.asList("NC_1\t0\t99\t2.000000"), reduce(upload, 10));
+	}
+
+	@Test
+	public void rowsOutsideTheKaryotypeAreDropped() throws IOException {
+		String upload = "NC_2\t0\t99\t1.0\nNC_1\t0\t999\t4.0\n";
+		assertEquals(Arrays.asList("NC_1\t400\t499\t4.000000"), reduce(upload, 10));
+	}
+
+	private List<String> reduce(String upload, long targetBins) throws IOException {
+		Path input = dir.resolve("upload.txt");
+		Files.write(input, upload.getBytes(StandardCharsets.UTF_8));
+		List<Map<String, Object>> accessions = new ArrayList<>();
+		Map<String, Object> accession = new HashMap<>();
+		accession.put("accession", "NC_1");
+		accession.put("length", 1000);
+		accessions.add(accession);
+		Path output = dir.resolve("reduced.txt");
+		new TrackReducer(accessions, targetBins, TrackReducer.Aggregate.MEAN).reduce(input, output.toString());
+		return Files.readAllLines(output, StandardCharsets.UTF_8);
+	}
+}
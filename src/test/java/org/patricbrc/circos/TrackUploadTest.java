@@ -0,0 +1,149 @@
+package org.patricbrc.circos;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TrackUploadTest {
+
+	private Path dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("upload");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		ImageCache.deleteDirectory(dir.toString());
+	}
+
+	@Test
+	public void goodValueRows() throws IOException {
+		TrackUpload upload = receive(
+				"# header\nNC_1\t0\t99\t1.5\nNC_1\t100\t199\t-2\n\nNC_1\t200\t299\t.5e-3 \nNC_1\t300\t399\t+7.\tcolor=red");
+		assertEquals(4, upload.getRows());
+		assertNull(upload.getError("line"));
+		assertNull(upload.getError("histogram"));
+		assertNull(upload.getError("heatmap"));
+		assertEquals("data.txt line 2: expected accession, start, end and optionally id=...", upload.getError("tile"));
+	}
+
+	@Test
+	public void goodTileRows() throws IOException {
+		TrackUpload upload = receive("NC_1\t0\t99\nNC_1\t100\t199\tid=fig|1.2.peg.3\nNC_1\t200\t299\tcolor=red,id=7\n");
+		assertEquals(3, upload.getRows());
+		assertNull(upload.getError("tile"));
+		assertEquals("data.txt line 1: expected accession, start, end and a numeric value", upload.getError("line"));
+	}
+
+	@Test
+	public void badRows() throws IOException {
+		String[] bad = { "NC_1\t0", "NC_1\t0\tend\t1", "NC_1\t-5\t99\t1", "NC_1\t\t99\t1", "NC_1 0 99 1", " " };
+		for (String row : bad) {
+			TrackUpload upload = receive("NC_1\t0\t99\n" + row + "\n");
+			assertEquals(row, "data.txt line 2: expected accession, start, end and optionally id=...", upload.getError("tile"));
+			upload = receive("NC_1\t0\t99\t1\n" + row + "\n");
+			assertEquals(row, "data.txt line 2: expected accession, start, end and a numeric value", upload.getError("line"));
+		}
+		String[] badValues = { "1.2.3", "abc", "1e", "-", ".", "1 2", "0x10", "NaN" };
+		for (String value : badValues) {
+			TrackUpload upload = receive("NC_1\t0\t99\t" + value + "\n");
+			assertEquals(value, "data.txt line 1: expected accession, start, end and a numeric value", upload.getError("heatmap"));
+		}
+		assertEquals("data.txt: unknown plot type scatter", receive("NC_1\t0\t99\t1\n").getError("scatter"));
+	}
+
+	@Test
+	public void crlfRows() throws IOException {
+		TrackUpload upload = receive("# header\r\nNC_1\t0\t99\t1.0\r\n\r\nNC_1\t100\t199\t2.0\r\n");
+		assertEquals(2, upload.getRows());
+		assertNull(upload.getError("line"));
+
+		upload = receive("NC_1\t0\t99\r\nNC_1\t100\t199\tid=2\r\n");
+		assertNull(upload.getError("tile"));
+	}
+
+	@Test
+	public void rowsSplitAcrossReads() throws IOException {
+		String content = "# header\r\nNC_1\t0\t99\t1.25e+2\r\nNC_1\t100\t199\t-0.5\tid=4\r\nNC_1\t200\t299\t3";
+		TrackUpload upload = TrackUpload.receive("data.txt", new TrickleInputStream(content), dir, 1024, 10);
+		assertEquals(3, upload.getRows());
+		assertNull(upload.getError("line"));
+		assertArrayEquals(content.getBytes(StandardCharsets.UTF_8), Files.readAllBytes(upload.getPath()));
+	}
+
+	@Test
+	public void maxRows() throws IOException {
+		TrackUpload upload = TrackUpload.receive("data.txt", stream("# a\n# b\nNC_1\t0\t1\t1\nNC_1\t1\t2\t1\n\n"), dir, 1024, 2);
+		assertNull(upload.getError("line"));
+
+		upload = TrackUpload.receive("data.txt", stream("NC_1\t0\t1\t1\nNC_1\t1\t2\t1\nNC_1\t2\t3\t1\n"), dir, 1024, 2);
+		assertEquals("data.txt has more than 2 rows", upload.getError("line"));
+		assertEquals("data.txt has more than 2 rows", upload.getError("tile"));
+	}
+
+	@Test
+	public void maxBytes() throws IOException {
+		String content = "NC_1\t0\t99\t1\n";
+		TrackUpload upload = TrackUpload.receive("data.txt", stream(content), dir, content.length(), 10);
+		assertEquals(content.length(), upload.getBytes());
+		upload.delete();
+
+		try {
+			TrackUpload.receive("data.txt", stream(content + content), dir, content.length(), 10);
+			fail("Upload larger than maxBytes accepted");
+		}
+		catch (IOException e) {
+			assertEquals("data.txt is larger than " + content.length() + " bytes", e.getMessage());
+		}
+		// The staging file is removed
+		assertEquals(0, dir.toFile().list().length);
+	}
+
+	@Test
+	public void emptyFileInput() throws IOException {
+		TrackUpload upload = TrackUpload.receive("", stream(""), dir, 1024, 10);
+		assertTrue(upload.isEmpty());
+		upload = receive("");
+		assertFalse(upload.isEmpty());
+		assertEquals(0, upload.getRows());
+	}
+
+	private TrackUpload receive(String content) throws IOException {
+		return TrackUpload.receive("data.txt", stream(content), dir, 1024 * 1024, 1000);
+	}
+
+	private static InputStream stream(String content) {
+		return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Returns at most three bytes per read, so rows are scanned across buffer boundaries
+	 */
+	private static class TrickleInputStream extends FilterInputStream {
+		TrickleInputStream(String content) {
+			super(stream(content));
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return super.read(b, off, Math.min(len, 3));
+		}
+	}
+}